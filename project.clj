@@ -30,5 +30,11 @@
     :javac-options ["-target" "1.6" "-source" "1.6" "-Xlint:-options"]
     :jvm-opts ["-Xmx1g"]
 
+    ;; lein with-profile +bench run -m org.openjdk.jmh.Main [-prof gc]
+    :profiles {:bench {:dependencies [[org.openjdk.jmh/jmh-core "1.37"]
+                                      [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]
+                       :java-source-paths ["src/tests/java/com/guokr/simbase/benchmarks/jmh"]
+                       :javac-options ^:replace ["-target" "1.8" "-source" "1.8" "-Xlint:-options"]}}
+
     :aot [simbase]
     :main simbase.main)
@@ -0,0 +1,109 @@
+package com.guokr.simbase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.wahlque.net.transport.Payload;
+
+/**
+ * Encoded replies by docid, each tagged with the version of the data it was
+ * built from; a reply is only served while the caller still sees that same
+ * version, so a write changing the data retires it at once. Bounded to
+ * capacity entries, split over lock stripes each evicting its least recently
+ * used entry.
+ */
+public class ReplyCache {
+
+	private static final int STRIPES = 16;
+
+	private final Stripe[] stripes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ReplyCache(int capacity) {
+		int stripes = Math.max(1, Math.min(STRIPES, capacity));
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe(Math.max(1, capacity / stripes));
+		}
+	}
+
+	private Stripe stripe(int docid) {
+		int h = docid ^ (docid >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * @return the reply cached for docid at version, null when there is none
+	 *         or it was built from another version
+	 */
+	public Payload<?> get(int docid, Object version) {
+		Stripe stripe = stripe(docid);
+		synchronized (stripe) {
+			Cached entry = stripe.get(docid);
+			if (entry != null && entry.version == version) {
+				hits.incrementAndGet();
+				return entry.reply;
+			}
+			if (entry != null) {// 数据已经变了
+				stripe.remove(docid);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(int docid, Object version, Payload<?> reply) {
+		Stripe stripe = stripe(docid);
+		synchronized (stripe) {
+			stripe.put(docid, new Cached(version, reply));
+		}
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	private static class Cached {
+
+		private final Object version;
+		private final Payload<?> reply;
+
+		Cached(Object version, Payload<?> reply) {
+			this.version = version;
+			this.reply = reply;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Stripe extends LinkedHashMap<Integer, Cached> {
+
+		private final int capacity;
+
+		Stripe(int capacity) {
+			super(16, 0.75f, true);// 按访问顺序，最久未用的在前
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Cached> eldest) {
+			return size() > capacity;
+		}
+	}
+
+}
@@ -4,22 +4,32 @@ import gnu.trove.list.TFloatList;
 import gnu.trove.list.array.TFloatArrayList;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wahlque.net.action.ActionRegistry;
 import org.wahlque.net.server.Server;
+import org.wahlque.net.transport.Payload;
 import org.yaml.snakeyaml.Yaml;
 
 import com.guokr.simbase.action.AddAction;
@@ -27,6 +37,8 @@ import com.guokr.simbase.action.AppendAction;
 import com.guokr.simbase.action.DelAction;
 import com.guokr.simbase.action.ExitAction;
 import com.guokr.simbase.action.GetAction;
+import com.guokr.simbase.action.MultiAddAction;
+import com.guokr.simbase.action.NearbyAction;
 import com.guokr.simbase.action.PingAction;
 import com.guokr.simbase.action.PutAction;
 import com.guokr.simbase.action.RetrieveAction;
@@ -35,7 +47,9 @@ import com.guokr.simbase.action.ReviseAction;
 import com.guokr.simbase.action.SaveAction;
 import com.guokr.simbase.action.SchemaAction;
 import com.guokr.simbase.action.ShutdownAction;
+import com.guokr.simbase.action.StatsAction;
 import com.guokr.simbase.action.UpdateAction;
+import com.guokr.simbase.reply.Result;
 
 public class SimBase {
 
@@ -45,12 +59,15 @@ public class SimBase {
 		registry.register(ReviseAction.class);
 		registry.register(SchemaAction.class);
 		registry.register(AddAction.class);
+		registry.register(MultiAddAction.class);
 		registry.register(AppendAction.class);
 		registry.register(PutAction.class);
 		registry.register(UpdateAction.class);
 		registry.register(GetAction.class);
 		registry.register(RetrieveAction.class);
 		registry.register(RecommendAction.class);
+		registry.register(NearbyAction.class);
+		registry.register(StatsAction.class);
 		registry.register(SaveAction.class);
 		registry.register(ExitAction.class);
 		registry.register(ShutdownAction.class);
@@ -61,10 +78,12 @@ public class SimBase {
 			+ System.getProperty("file.separator");
 	private static final String idxFilePath = dir + "keys.idx";
 	private static final Logger logger = LoggerFactory.getLogger(SimBase.class);
+	private static final long PROGRESS_INTERVAL = 10000;
 
 	private Map<String, Object> context;
 
-	private Map<String, SimEngine> base = new HashMap<String, SimEngine>();
+	// 加载线程、进度线程和服务线程同时读写
+	private Map<String, SimEngine> base = new ConcurrentHashMap<String, SimEngine>();
 
 	public SimBase(Map<String, Object> context) {
 		this.context = context;
@@ -91,45 +110,182 @@ public class SimBase {
 			}
 		};
 		cron.schedule(savetask, cronInterval, cronInterval);
+
+		if (context.containsKey("ivfRetrainInterval")) {
+			int retrainInterval = (Integer) context.get("ivfRetrainInterval");
+			TimerTask retraintask = new TimerTask() {
+				public void run() {
+					retrain();
+				}
+			};
+			cron.schedule(retraintask, retrainInterval, retrainInterval);
+		}
 	}
 
-	public void clear() {
-		List<String> list = new ArrayList<String>(base.keySet());
-		if (list.size() != 0) {
-			Collections.shuffle(list);
-			base.get(list.get(0)).clear();
-		} else {
-			logger.warn("Empty set do not need clear");
+	public void clear() {// 每个key按自己的删除比例决定是否压缩
+		for (SimEngine engine : base.values()) {
+			engine.compact();
+		}
+	}
+
+	public void retrain() {// 每个key按自己的改动比例决定是否重新训练簇
+		for (SimEngine engine : base.values()) {
+			engine.retrain();
+		}
+	}
+
+	/**
+	 * The engine of the key, created on first use; creating one starts its
+	 * threads and opens its log, so two callers must never both create it.
+	 */
+	private SimEngine engine(String key) {
+		SimEngine engine = base.get(key);
+		if (engine == null) {
+			synchronized (base) {
+				engine = base.get(key);
+				if (engine == null) {
+					engine = new SimEngine(key, context);
+					base.put(key, engine);
+				}
+			}
 		}
+		return engine;
 	}
 
 	public void load() {// 只有全局读取的时候读取文件里的map
+		Set<String> keys = new LinkedHashSet<String>();
 		try {
 			BufferedReader input = new BufferedReader(new FileReader(
 					idxFilePath));
-			String[] keys = input.readLine().split("\\|");
-			for (String key : keys) {
-				logger.info("Loading key: " + key);// 只有存储才有多进程的情况
-				this.load(key);
-			}
+			keys.addAll(Arrays.asList(input.readLine().split("\\|")));
 			input.close();
 		} catch (FileNotFoundException e) {
 			logger.warn("Backup .idx file not found.Please examine your backup file");
-			return;
 		} catch (NullPointerException e) {
 			logger.warn("Backup .idx file is empty.Please examine your backup file");
-			return;
 		} catch (Throwable e) {
 			throw new SimBaseException(e);
 		}
+		keys.addAll(logged());
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		// 先建好所有的key，加载完之前的读请求得到LOADING错误
+		final Map<String, Future<?>> loads = new LinkedHashMap<String, Future<?>>();
+		for (String key : keys) {
+			engine(key).loading();
+		}
+		int threads = 4;
+		if (context.containsKey("loadThreads")) {
+			threads = Math.max(1, ((Number) context.get("loadThreads")).intValue());
+		}
+		final ExecutorService loader = Executors.newFixedThreadPool(
+				Math.min(threads, keys.size()), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "simbase-loader");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		for (final String key : keys) {
+			loads.put(key, loader.submit(new Runnable() {
+				public void run() {
+					logger.info("Loading key: " + key);
+					long start = System.currentTimeMillis();
+					load(key);
+					logger.info("Loaded key: " + key + " in "
+							+ (System.currentTimeMillis() - start) + "ms");
+				}
+			}));
+		}
+		loader.shutdown();
+
+		if (Boolean.TRUE.equals(context.get("serveWhileLoading"))) {
+			Thread waiter = new Thread(new Runnable() {
+				public void run() {
+					try {
+						await(loader, loads);
+					} catch (Throwable e) {
+						logger.error("Loading failed", e);
+					}
+				}
+			}, "simbase-load-progress");
+			waiter.setDaemon(true);
+			waiter.start();
+		} else {
+			await(loader, loads);
+		}
 	}
 
-	public void load(String key) {
-		if (!base.containsKey(key)) {
-			base.put(key, new SimEngine(context));
+	/**
+	 * Waits for the loads, logging how far they got every PROGRESS_INTERVAL;
+	 * a failed key is logged and the first failure rethrown at the end.
+	 */
+	private void await(ExecutorService loader, Map<String, Future<?>> loads) {
+		try {
+			while (!loader.awaitTermination(PROGRESS_INTERVAL,
+					TimeUnit.MILLISECONDS)) {
+				int done = 0;
+				StringBuilder loading = new StringBuilder();
+				for (String key : loads.keySet()) {
+					if (loads.get(key).isDone()) {
+						done++;
+					} else if (!base.get(key).ready()) {
+						loading.append(' ').append(key).append(' ')
+								.append(base.get(key).progress()).append('%');
+					}
+				}
+				logger.info("Loaded " + done + " of " + loads.size() + " keys,"
+						+ loading);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SimBaseException(e);
+		}
+		SimBaseException failure = null;
+		for (String key : loads.keySet()) {
+			try {
+				loads.get(key).get();
+			} catch (ExecutionException e) {
+				logger.error("Can not load key: " + key, e.getCause());
+				if (failure == null) {
+					failure = e.getCause() instanceof SimBaseException ? (SimBaseException) e
+							.getCause() : new SimBaseException(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SimBaseException(e);
+			}
 		}
+		if (failure != null) {
+			throw failure;
+		}
+		logger.info("Loaded " + loads.size() + " keys");
+	}
+
+	/**
+	 * Keys with a write-ahead log, including those created after the last
+	 * save and so missing from the .idx file.
+	 */
+	private Set<String> logged() {
+		Set<String> keys = new LinkedHashSet<String>();
+		String[] names = new File(dir + "data").list();
+		if (Boolean.TRUE.equals(context.get("wal")) && names != null) {
+			for (String name : names) {
+				if (name.endsWith(WriteAheadLog.EXTENSION)) {
+					keys.add(name.substring(0, name.length()
+							- WriteAheadLog.EXTENSION.length()));
+				}
+			}
+		}
+		return keys;
+	}
+
+	public void load(String key) {
 		try {
-			base.get(key).load(key);
+			engine(key).load(key);
 		} catch (FileNotFoundException e) {
 			logger.warn("Backup .dmp file not found,Please examine your backup file");
 			return;
@@ -188,38 +344,27 @@ public class SimBase {
 	}
 
 	public void revise(String key, String[] schema) {
-		if (!base.containsKey(key)) {
-			base.put(key, new SimEngine(this.context));
-		}
-		base.get(key).revise(schema);
+		engine(key).revise(schema);
 	}
 
 	public void add(String key, int docid, float[] distr) {
-		if (!base.containsKey(key)) {
-			base.put(key, new SimEngine(this.context));
-		}
-		base.get(key).add(docid, distr);
+		engine(key).add(docid, distr);
+	}
+
+	public void addBatch(String key, int[] docids, float[][] distrs) {
+		engine(key).addBatch(docids, distrs);
 	}
 
 	public void append(String key, int docid, Object[] pairs) {
-		if (!base.containsKey(key)) {
-			base.put(key, new SimEngine(this.context));
-		}
-		base.get(key).append(docid, pairs);
+		engine(key).append(docid, pairs);
 	}
 
 	public void put(String key, int docid, float[] distr) {
-		if (!base.containsKey(key)) {
-			base.put(key, new SimEngine(context));
-		}
-		base.get(key).put(docid, distr);
+		engine(key).put(docid, distr);
 	}
 
 	public void update(String key, int docid, Object[] pairs) {
-		if (!base.containsKey(key)) {
-			base.put(key, new SimEngine(context));
-		}
-		base.get(key).update(docid, pairs);
+		engine(key).update(docid, pairs);
 	}
 
 	public String[] schema(String key) {
@@ -232,6 +377,16 @@ public class SimBase {
 		return result;
 	}
 
+	public String[] stats(String key) {
+		String[] result = null;
+		if (base.containsKey(key)) {
+			result = base.get(key).stats();
+		} else {
+			result = new String[0];
+		}
+		return result;
+	}
+
 	public TFloatList get(String key, int docid) {
 		TFloatList result = null;
 		if (base.containsKey(key)) {
@@ -252,6 +407,30 @@ public class SimBase {
 		return result;
 	}
 
+	public String[] nearby(String key, float[] distr) {
+		String[] result = null;
+		if (base.containsKey(key)) {
+			result = base.get(key).nearby(distr);
+		} else {
+			result = new String[0];
+		}
+		return result;
+	}
+
+	public Payload<?> retrieveReply(String key, int docid) {
+		if (base.containsKey(key)) {
+			return base.get(key).retrieveReply(docid);
+		}
+		return new Result(new String[0]);
+	}
+
+	public Payload<?> recommendReply(String key, int docid) {
+		if (base.containsKey(key)) {
+			return base.get(key).recommendReply(docid);
+		}
+		return new Result(new int[0]);
+	}
+
 	public int[] recommend(String key, int docid) {
 		int[] result = null;
 		if (base.containsKey(key)) {
@@ -7,4 +7,8 @@ public class SimBaseException extends RuntimeException {
 	public SimBaseException(Throwable t) {
 		super(t);
 	}
+
+	public SimBaseException(String message) {
+		super(message);
+	}
 }
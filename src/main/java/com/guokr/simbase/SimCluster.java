@@ -1,26 +1,395 @@
 package com.guokr.simbase;
 
-import java.util.Map;
-import java.util.SortedSet;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 
+import java.util.Random;
+
+import com.guokr.simbase.store.VectorStore;
+import com.guokr.simbase.util.Kernel;
+import com.guokr.simbase.util.Sorter;
+
+/**
+ * Inverted file over the documents of a VectorStore: k-means centers trained
+ * on a sample of the documents split them into clusters, every document is
+ * listed under its assign nearest centers, and a query only scores the
+ * documents listed under its nprobe nearest ones. Documents are keyed by
+ * docid and vectors read from the store passed in, like HnswIndex.
+ *
+ * Similarity is the squared cosine of the Sorter lists, so a center stands
+ * for a direction and its opposite alike; centers are kept at unit length.
+ * Until the first training there are no lists and callers scan the store.
+ *
+ * Retraining fills in the lists of the new centers next to the old ones,
+ * which keep serving queries until {@link #finish()} swaps them in; adds and
+ * deletes meanwhile go to both.
+ */
 public class SimCluster {
 
-	// private TIntObjectHashMap centers = new TIntObjectHashMap();
+	private static final int ITERATIONS = 10;
+
+	private final int clusters;
+	private final int nprobe;
+	private final int assign;
+	private final int sample;
+	private final double retrainRatio;
+	private final Random random = new Random(7654);
+
+	private final TIntHashSet members = new TIntHashSet();// 所有文档，训练前也记录
+	private Lists current;// 训练前为null
+	private Lists next;// 重新训练时正在填充的新簇
+	private long changes;// 上次训练以来的写入和删除
+
+	/**
+	 * @param retrainRatio
+	 *            the share of the documents that must have changed since the
+	 *            last training for {@link #due()}
+	 */
+	public SimCluster(int clusters, int nprobe, int assign, int sample,
+			double retrainRatio) {
+		this.clusters = Math.max(clusters, 1);
+		this.nprobe = Math.max(nprobe, 1);
+		this.assign = Math.max(assign, 1);
+		this.sample = Math.max(sample, this.clusters);
+		this.retrainRatio = retrainRatio;
+	}
+
+	public synchronized int size() {
+		return members.size();
+	}
+
+	public synchronized boolean trained() {
+		return current != null;
+	}
+
+	/**
+	 * @return the number of clusters, 0 before the first training
+	 */
+	public synchronized int clusters() {
+		return current == null ? 0 : current.centers.length;
+	}
 
-	public int add(int docid, float[] distr) {
-		return 0;
+	/**
+	 * Lists the document under the centers nearest to its vector, moving it
+	 * if it was listed already.
+	 *
+	 * @return the nearest cluster, -1 before the first training
+	 */
+	public synchronized int add(int docid, float[] distr) {
+		members.add(docid);
+		changes++;
+		if (next != null) {
+			next.add(docid, distr);
+		}
+		return current == null ? -1 : current.add(docid, distr);
 	}
 
-	public int update(int docid, float[] distr) {
-		return 0;
+	public synchronized int update(int docid, float[] distr) {
+		return add(docid, distr);
 	}
 
-	public int delete(int docid) {
-		return 0;
+	/**
+	 * @return the nearest cluster the document was listed under, -1 if it
+	 *         was not listed
+	 */
+	public synchronized int delete(int docid) {
+		if (!members.remove(docid)) {
+			return -1;
+		}
+		changes++;
+		if (next != null) {
+			next.remove(docid);
+		}
+		return current == null ? -1 : current.remove(docid);
+	}
+
+	/**
+	 * @return the documents listed under the nprobe centers nearest to the
+	 *         query, null before the first training
+	 */
+	public synchronized int[] candidates(float[] query) {
+		if (current == null) {
+			return null;
+		}
+		int[] probed = nearest(current.centers, query, nprobe);
+		TIntHashSet[] lists = current.lists;
+		if (assign == 1) {// 每个文档只在一个簇中，无需去重
+			int total = 0;
+			for (int c : probed) {
+				total += lists[c].size();
+			}
+			int[] result = new int[total];
+			int pos = 0;
+			for (int c : probed) {
+				int[] listed = lists[c].toArray();
+				System.arraycopy(listed, 0, result, pos, listed.length);
+				pos += listed.length;
+			}
+			return result;
+		}
+		TIntHashSet result = new TIntHashSet();
+		for (int c : probed) {
+			result.addAll(lists[c]);
+		}
+		return result.toArray();
+	}
+
+	/**
+	 * Scores the candidates of the query exactly; the caller keeps the store
+	 * from changing meanwhile.
+	 *
+	 * @return the k most similar of them, null before the first training
+	 */
+	public Sorter retrieve(VectorStore store, float[] query, int k) {
+		int[] targets = candidates(query);
+		if (targets == null) {
+			return null;
+		}
+		float length = 0;
+		for (float val : query) {
+			length += val * val;
+		}
+		Sorter sorter = new Sorter(k);
+		for (int docid : targets) {
+			int slot = store.slot(docid);
+			if (slot < 0) {
+				continue;
+			}
+			float scoring = store.dot(slot, query);
+			sorter.add(docid, scoring * scoring / length / store.norm(slot));
+			if (sorter.size() > k) {
+				sorter.removeLast();
+			}
+		}
+		return sorter;
+	}
+
+	/**
+	 * Whether the clusters should be trained: the first time once there are
+	 * as many documents as clusters, then once retrainRatio of the documents
+	 * changed.
+	 */
+	public synchronized boolean due() {
+		if (next != null || members.size() < clusters) {
+			return false;
+		}
+		return current == null || changes >= retrainRatio * members.size();
+	}
+
+	/**
+	 * @return up to sample docids picked at random to train on
+	 */
+	public synchronized int[] sample() {
+		int[] docids = members.toArray();
+		int count = Math.min(sample, docids.length);
+		for (int i = 0; i < count; i++) {// 部分洗牌，前count个即为样本
+			int j = i + random.nextInt(docids.length - i);
+			int swap = docids[i];
+			docids[i] = docids[j];
+			docids[j] = swap;
+		}
+		int[] picked = new int[count];
+		System.arraycopy(docids, 0, picked, 0, count);
+		return picked;
+	}
+
+	/**
+	 * Spherical k-means over the vectors; holds no lock, so it may run while
+	 * the documents change.
+	 *
+	 * @return unit length centers, at most one per vector
+	 */
+	public float[][] train(float[][] vectors) {
+		float[][] points = new float[vectors.length][];
+		int dims = 0;
+		for (int i = 0; i < vectors.length; i++) {
+			points[i] = unit(vectors[i].clone());
+			dims = Math.max(dims, points[i].length);
+		}
+		int k = Math.min(clusters, points.length);
+		float[][] trained = new float[k][];
+		Random seeds;
+		synchronized (this) {
+			seeds = new Random(random.nextLong());
+		}
+		int[] order = new int[points.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		for (int c = 0; c < k; c++) {// 不同的样本作为初始中心
+			int j = c + seeds.nextInt(order.length - c);
+			int swap = order[c];
+			order[c] = order[j];
+			order[j] = swap;
+			trained[c] = widen(points[order[c]], dims);
+		}
+
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			float[][] sums = new float[k][dims];
+			int[] counts = new int[k];
+			for (float[] point : points) {
+				int best = 0;
+				float bestDot = 0;
+				float bestSquare = -1;
+				for (int c = 0; c < k; c++) {
+					float dot = dot(trained[c], point);
+					if (dot * dot > bestSquare) {
+						best = c;
+						bestDot = dot;
+						bestSquare = dot * dot;
+					}
+				}
+				float sign = bestDot < 0 ? -1 : 1;// 反方向的向量同属一簇
+				for (int i = 0; i < point.length; i++) {
+					sums[best][i] += sign * point[i];
+				}
+				counts[best]++;
+			}
+			for (int c = 0; c < k; c++) {
+				if (counts[c] == 0) {// 空簇换一个随机样本重新开始
+					trained[c] = widen(points[seeds.nextInt(points.length)],
+							dims);
+				} else {
+					trained[c] = unit(sums[c]);
+				}
+			}
+		}
+		return trained;
 	}
 
-	public SortedSet<Map.Entry<Integer, Float>> retrieve(int docid) {
-		return null;
+	/**
+	 * Starts listing the documents under new centers; the old lists serve
+	 * queries until {@link #finish()}. One retraining at a time.
+	 */
+	public synchronized void begin(float[][] trained) {
+		if (next != null) {
+			throw new SimBaseException("Clusters are being retrained already");
+		}
+		next = new Lists(trained);
+		changes = 0;
+	}
+
+	/**
+	 * @return the docids listed when the retraining began, to be passed to
+	 *         {@link #reassign} one by one
+	 */
+	public synchronized int[] docids() {
+		return members.toArray();
+	}
+
+	/**
+	 * Lists a document under the new centers, unless it was deleted since
+	 * {@link #docids()}.
+	 */
+	public synchronized void reassign(int docid, float[] distr) {
+		if (next != null && members.contains(docid)) {
+			next.add(docid, distr);
+		}
+	}
+
+	/**
+	 * Swaps the new centers and lists in.
+	 */
+	public synchronized void finish() {
+		if (next != null) {
+			current = next;
+			next = null;
+		}
+	}
+
+	/**
+	 * Drops the lists of a retraining that did not finish; the old ones stay.
+	 */
+	public synchronized void abort() {
+		next = null;
+	}
+
+	/**
+	 * @return the n centers with the highest squared cosine to the vector,
+	 *         nearest first
+	 */
+	private static int[] nearest(float[][] centers, float[] vector, int n) {
+		Sorter sorter = new Sorter(n);
+		for (int c = 0; c < centers.length; c++) {
+			float dot = dot(centers[c], vector);
+			sorter.add(c, dot * dot);
+			if (sorter.size() > n) {
+				sorter.removeLast();
+			}
+		}
+		return sorter.docids();
+	}
+
+	/**
+	 * Dot product over the dimensions both have; the ones added by a revise
+	 * after the training are 0 in the centers.
+	 */
+	private static float dot(float[] center, float[] vector) {
+		if (vector.length <= center.length) {
+			return Kernel.dot(vector, center, 0);
+		}
+		return Kernel.dot(center, vector, 0);
+	}
+
+	private static float[] unit(float[] vector) {
+		float length = (float) Math.sqrt(Kernel.norm(vector));
+		if (length > 0) {
+			for (int i = 0; i < vector.length; i++) {
+				vector[i] /= length;
+			}
+		}
+		return vector;
+	}
+
+	private static float[] widen(float[] vector, int dims) {
+		float[] widened = new float[dims];
+		System.arraycopy(vector, 0, widened, 0, vector.length);
+		return widened;
+	}
+
+	/**
+	 * Centers, the lists under them and the clusters of each document.
+	 */
+	private class Lists {
+
+		private final float[][] centers;
+		private final TIntHashSet[] lists;
+		private final TIntObjectHashMap<int[]> assigned = new TIntObjectHashMap<int[]>();
+
+		Lists(float[][] centers) {
+			this.centers = centers;
+			this.lists = new TIntHashSet[centers.length];
+			for (int c = 0; c < lists.length; c++) {
+				lists[c] = new TIntHashSet();
+			}
+		}
+
+		/**
+		 * @return the nearest cluster
+		 */
+		int add(int docid, float[] distr) {
+			remove(docid);
+			int[] nearest = nearest(centers, distr, assign);
+			for (int c : nearest) {
+				lists[c].add(docid);
+			}
+			assigned.put(docid, nearest);
+			return nearest[0];
+		}
+
+		/**
+		 * @return the nearest cluster the document was in, -1 if none
+		 */
+		int remove(int docid) {
+			int[] former = assigned.remove(docid);
+			if (former == null) {
+				return -1;
+			}
+			for (int c : former) {
+				lists[c].remove(docid);
+			}
+			return former[0];
+		}
 	}
 
 }
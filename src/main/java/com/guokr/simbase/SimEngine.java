@@ -2,21 +2,46 @@ package com.guokr.simbase;
 
 import gnu.trove.list.TFloatList;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wahlque.net.transport.Payload;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.reply.Encoded;
+import com.guokr.simbase.reply.Result;
+import com.guokr.simbase.store.MappedStore;
+import com.guokr.simbase.store.QuantizedStore;
+import com.guokr.simbase.store.Snapshot;
+import com.guokr.simbase.util.ChunkedInput;
+import com.guokr.simbase.util.ChunkedOutput;
+import com.guokr.simbase.util.Meter;
+import com.guokr.simbase.util.Sorter.View;
 
 public class SimEngine {
 
@@ -25,24 +50,112 @@ public class SimEngine {
 	private static final Logger logger = LoggerFactory
 			.getLogger(SimEngine.class);
 
-	private ExecutorService service = Executors.newSingleThreadExecutor();
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String BLOCK = "block";
+	private static final String REJECT = "reject";
+	private static final String DROP_OLDEST = "drop-oldest";
+	private static final String[] COMMANDS = { "add", "madd", "append", "put",
+			"update", "delete", "revise", "compact", "save", "load" };
+	private static final String LOADING = "loading";
+	private static final String READY = "ready";
+	private static final String FAILED = "failed";
+
+	private ThreadPoolExecutor[] writers;// 同一docid的写操作总是落在同一个线程上
+	private int queueSize = 100000;
+	private String overflow = BLOCK;
+	private AtomicLong rejected = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicBoolean compacting = new AtomicBoolean();
+	private AtomicBoolean retraining = new AtomicBoolean();
+	private float garbageRatio = 0.2f;
+	private int compactionStep = 4096;
+	private WriteAheadLog wal;
+	private int replayBatch = 1024;
+	private Map<String, Meter> waits = new LinkedHashMap<String, Meter>();
+	private Map<String, Meter> applies = new LinkedHashMap<String, Meter>();
 	private SimTable table;
+	private final String key;
+	private volatile String state = READY;
+	private volatile String failure;
+	private final AtomicLong loaded = new AtomicLong();
+	private volatile long total;
+	private ReplyCache recommends;// 为null时不缓存
+	private ReplyCache retrieves;
 	private final Kryo kryo = new Kryo();
-	private int counter = 0;
+	private AtomicInteger counter = new AtomicInteger();
 	private long timestamp = -1;
 
 	private boolean debug;
 	private long cloneThrottle;
 	private int bycount;
 
-	public SimEngine(Map<String, Object> config) {
+	public SimEngine(String key, Map<String, Object> config) {
+		this.key = key;
+
+		int count = 1;
+		if (config != null && config.containsKey("writers")) {
+			count = (Integer) config.get("writers");
+		}
+		if (config != null && config.containsKey("queueSize")) {
+			queueSize = (Integer) config.get("queueSize");
+		}
+		if (config != null && config.containsKey("overflow")) {
+			overflow = (String) config.get("overflow");
+		}
+		if (config != null && config.containsKey("garbageRatio")) {
+			garbageRatio = ((Number) config.get("garbageRatio")).floatValue();
+		}
+		if (config != null && config.containsKey("compactionStep")) {
+			compactionStep = (Integer) config.get("compactionStep");
+		}
+		if (config != null && Boolean.TRUE.equals(config.get("wal"))) {
+			Object sync = config.containsKey("walSync") ? config.get("walSync")
+					: 1000;
+			long segmentSize = 64L << 20;
+			if (config.containsKey("walSegmentSize")) {
+				segmentSize = ((Number) config.get("walSegmentSize")).longValue();
+			}
+			if (config.containsKey("walReplayBatch")) {
+				replayBatch = (Integer) config.get("walReplayBatch");
+			}
+			wal = new WriteAheadLog(new File(dir + "/data/" + key
+					+ WriteAheadLog.EXTENSION), sync, segmentSize);
+		}
+		int cached = 10000;
+		if (config != null && config.containsKey("replyCache")) {
+			cached = (Integer) config.get("replyCache");
+		}
+		if (cached > 0) {
+			recommends = new ReplyCache(cached);
+			retrieves = new ReplyCache(cached);
+		}
+		writers = new ThreadPoolExecutor[Math.max(count, 1)];
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize),
+					new Overflow());
+		}
+		for (String command : COMMANDS) {
+			waits.put(command, new Meter());
+			applies.put(command, new Meter());
+		}
 
 		try {
 			cloneThrottle = (Integer) config.get("cloneThrottle");
 			debug = (Boolean) config.get("debug");
 			bycount = (Integer) config.get("bycount");
 
-			table = new SimTable(config);
+			if (MappedStore.STORAGE.equals(config.get("storage"))) {
+				// 向量保存在data/<key>/下的映射文件中
+				table = new SimTable(config, new MappedStore(new File(dir
+						+ "/data/" + key)));
+			} else if (QuantizedStore.STORAGE.equals(config.get("storage"))) {
+				// 堆上只留int8编码，全精度向量放在映射文件中
+				table = new SimTable(config, new QuantizedStore(
+						new MappedStore(new File(dir + "/data/" + key))));
+			} else {
+				table = new SimTable(config);
+			}
 		} catch (NullPointerException e) {
 			logger.warn("YAML not found,loading default config");
 			cloneThrottle = 30000;
@@ -52,6 +165,45 @@ public class SimEngine {
 
 	}
 
+	private ThreadPoolExecutor writer(int docid) {
+		return writers[(docid & 0x7fffffff) % writers.length];
+	}
+
+	/**
+	 * Runs the task once every writer has drained the work queued before it,
+	 * while all writers wait; used for schema changes, snapshots and
+	 * compaction steps.
+	 *
+	 * @return a latch released once the task has run
+	 */
+	private CountDownLatch barrier(final Runnable task) {
+		final CountDownLatch arrived = new CountDownLatch(writers.length);
+		final CountDownLatch done = new CountDownLatch(1);
+		for (int i = 0; i < writers.length; i++) {
+			final boolean leader = i == 0;
+			writers[i].execute(new Fence(new Runnable() {
+				public void run() {
+					arrived.countDown();
+					try {
+						if (leader) {
+							arrived.await();
+							try {
+								task.run();
+							} finally {
+								done.countDown();
+							}
+						} else {
+							done.await();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}));
+		}
+		return done;
+	}
+
 	/**
 	 * clone 函数之前必须验证
 	 * 
@@ -69,70 +221,275 @@ public class SimEngine {
 		}
 	}
 
+	/**
+	 * Marks the key as loading until load() returns: reads fail with a
+	 * LOADING error, writes queue up behind the load.
+	 */
+	public void loading() {
+		state = LOADING;
+	}
+
+	/**
+	 * Reads the last dump, then replays the write-ahead log on top of it,
+	 * also when there is no dump yet. A dump that fails its checks stops the
+	 * load with an error rather than falling back to the previous one, and
+	 * the log is then left for a later load; the .bak is only read when a
+	 * save crashed between its two renames.
+	 *
+	 * Runs behind a barrier, so writes sent meanwhile are applied after it.
+	 */
 	public void load(final String key) throws FileNotFoundException {
-		Input input = null;
+		state = LOADING;
+		final Throwable[] error = new Throwable[1];
+		try {
+			barrier(new Task("load") {
+				void apply() {
+					try {
+						restore(key);
+						state = READY;
+					} catch (FileNotFoundException e) {
+						error[0] = e;
+						state = READY;
+					} catch (Throwable e) {
+						error[0] = e;
+						failure = e.getMessage();
+						state = FAILED;
+					}
+				}
+			}).await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SimBaseException(e);
+		}
+		if (error[0] instanceof FileNotFoundException) {
+			throw (FileNotFoundException) error[0];
+		} else if (error[0] instanceof SimBaseException) {
+			throw (SimBaseException) error[0];
+		} else if (error[0] != null) {
+			throw new SimBaseException(error[0]);
+		}
+	}
+
+	private void restore(String key) throws FileNotFoundException {
 		String path = dir + "/data/" + key;
+		File dump = new File(path + ".dmp");
+		File backup = new File(path + ".bak");
+
+		if (!dump.exists() && backup.exists()) {
+			logger.warn(dump + " not found, loading " + backup);
+			dump = backup;
+		}
+		try {
+			read(dump);
+		} catch (FileNotFoundException e) {// 还没有存过盘，只有日志
+			replay();
+			throw e;
+		}
+		replay();// 快照读取失败时不重放，表保持原样，错误原样抛出
+	}
+
+	private void replay() {
+		if (wal != null) {
+			logger.info("Replaying write-ahead log....");
+			long replayed = wal.replay(table, replayBatch);
+			logger.info("Replay finish, " + replayed + " writes");
+		}
+	}
+
+	/**
+	 * @return whether the key has been loaded, or was never loaded
+	 */
+	public boolean ready() {
+		return state == READY;
+	}
+
+	/**
+	 * @return the share of the dump read so far, in percent
+	 */
+	public int progress() {
+		if (state != LOADING) {
+			return 100;
+		}
+		long size = total;
+		return size == 0 ? 0 : (int) (100 * loaded.get() / size);
+	}
 
+	/**
+	 * Reads go through here; they fail while the key is loading or after
+	 * its load failed.
+	 */
+	private SimTable table() {
+		String state = this.state;
+		if (state == LOADING) {
+			throw new SimBaseException("LOADING " + key + " is being loaded, "
+					+ progress() + "% done");
+		} else if (state == FAILED) {
+			throw new SimBaseException(key + " failed to load: " + failure);
+		}
+		return table;
+	}
+
+	private void read(File dump) throws FileNotFoundException {
+		loaded.set(0);
+		total = dump.length();
+		InputStream stream = new BufferedInputStream(new Counter(
+				new FileInputStream(dump)), BUFFER_SIZE);
+		Input input = null;
 		try {
-			logger.info("Loading....");
-			input = new Input(new FileInputStream(path + ".dmp"));
+			logger.info("Loading " + dump + "....");
+			if (ChunkedInput.chunked(stream)) {
+				input = new Input(new ChunkedInput(stream, Runtime.getRuntime()
+						.availableProcessors()), BUFFER_SIZE);
+			} else {// 分块格式之前的快照
+				input = new Input(stream, BUFFER_SIZE);
+			}
 			table.read(kryo, input);
 			logger.info("Load finish");
 		} catch (KryoException e) {
-			input = new Input(new FileInputStream(path + ".bak"));
-			table.read(kryo, input);
+			Throwable cause = e.getCause() instanceof IOException ? e
+					.getCause() : e;
+			throw new SimBaseException("Can not load " + dump + ": "
+					+ cause.getMessage());
+		} catch (IOException e) {
+			throw new SimBaseException("Can not load " + dump + ": "
+					+ e.getMessage());
 		} finally {
 			if (input != null) {
 				input.close();
+			} else {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					logger.warn("Closing " + dump + " failed", e);
+				}
 			}
 		}
 	}
 
-	public void clear() {
-		service.execute(new Runnable() {
+	/**
+	 * Starts an incremental compaction once the share of deleted slots
+	 * reaches garbageRatio. A background thread queues one step of
+	 * compactionStep slots at a time behind a barrier, so the writers pause
+	 * for a step at a time instead of for a whole clone.
+	 */
+	public void compact() {
+		if (state != READY || table.garbageRatio() < garbageRatio
+				|| !compacting.compareAndSet(false, true)) {
+			return;
+		}
+		Runnable runner = new Runnable() {
+			@Override
 			public void run() {
-				logger.info("Clean begin...");
-				if (validateTime()) {
-					SimTable data = table.clone();
-					table.reload(data);
-					data = null;
-					System.gc();
+				logger.info("Compaction begin...");
+				final boolean[] more = { true };
+				try {
+					while (more[0]) {
+						barrier(new Task("compact") {
+							void apply() {
+								more[0] = false;
+								more[0] = table.compact(compactionStep);
+							}
+						}).await();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					compacting.set(false);
 				}
-				logger.info("Clean finish!");
+				logger.info("Compaction finish, " + table.reclaimed()
+						+ " bytes reclaimed in total");
 			}
-		});
+		};
+		new Thread(runner, "simengine-compactor").start();
 	}
 
-	public void save(final String key) {
-		service.execute(new Runnable() {
+	/**
+	 * Retrains the clusters behind vnear on a background thread once enough
+	 * of the documents changed since the last training. The table takes its
+	 * read lock a chunk at a time, so no barrier is needed.
+	 */
+	public void retrain() {
+		if (state != READY || !table.retrainDue()
+				|| !retraining.compareAndSet(false, true)) {
+			return;
+		}
+		final SimTable target = table;
+		Runnable runner = new Runnable() {
+			@Override
 			public void run() {
+				logger.info("Cluster training begin...");
+				try {
+					target.retrain();
+				} catch (Throwable e) {
+					logger.error("Cluster training error", e);
+					return;
+				} finally {
+					retraining.set(false);
+				}
+				logger.info("Cluster training finish, " + target.clusters()
+						+ " clusters, recall " + target.recall());
+			}
+		};
+		new Thread(runner, "simengine-retrainer").start();
+	}
+
+	/**
+	 * Opens a snapshot of the table behind a barrier and writes it from a
+	 * background thread while the writers go on; the table only keeps copies
+	 * of what changes until the snapshot is written. The dump goes to a .tmp
+	 * file first and is renamed into place once it is on disk, after the
+	 * previous one has been renamed to .bak.
+	 */
+	public void save(final String key) {
+		barrier(new Task("save") {
+			void apply() {
+				if (state != READY) {// 没加载完的表不能覆盖上次的快照
+					logger.warn("Not saving " + key + ", it is " + state);
+					return;
+				}
+				if (!validateTime()) {
+					return;
+				}
+				final Snapshot snapshot = table.snapshot();
+				// 屏障内换段，旧段里的写入都已在快照中
+				final int mark = wal != null ? wal.rotate() : 0;
 
 				Runnable runner = new Runnable() {
 					@Override
 					public void run() {
 						logger.info("Saving....");
-						if (!validateTime()) {
-							return;
-						}
-						SimTable data = table.clone();
 						Output output = null;
 						String path = dir + "/data/" + key;
+						File temp = new File(path + ".tmp");
 						try {
-							Process p = Runtime.getRuntime().exec(
-									"mv " + path + ".dmp " + path + ".bak");
-							p.waitFor();
-							output = new Output(new FileOutputStream(path
-									+ ".dmp"));
-							data.write(kryo, output);
+							FileOutputStream stream = new FileOutputStream(temp);
+							ChunkedOutput chunks = new ChunkedOutput(stream);
+							output = new Output(chunks, BUFFER_SIZE);
+							snapshot.write(kryo, output);
+							output.flush();
+							chunks.finish();
+							stream.getFD().sync();
+							output.close();
+							output = null;
+
+							File dump = new File(path + ".dmp");
+							File backup = new File(path + ".bak");
+							if (dump.exists()) {
+								backup.delete();
+								rename(dump, backup);
+							}
+							rename(temp, dump);
+							if (wal != null) {
+								wal.truncate(mark);
+							}
 						} catch (Throwable e) {
 							throw new SimBaseException(e);
 						} finally {
+							snapshot.release();
 							if (output != null) {
 								output.close();
 							}
 						}
-						data = null;
-						System.gc();
 						logger.info("Save finish");
 					}
 				};
@@ -141,106 +498,371 @@ public class SimEngine {
 		});
 	}
 
+	private static void rename(File from, File to) {
+		if (!from.renameTo(to)) {
+			throw new SimBaseException("Could not rename " + from + " to "
+					+ to);
+		}
+	}
+
 	public void revise(final String[] schema) {
-		service.execute(new Runnable() {
-			public void run() {
-				try {
-					table.revise(schema);
-				} catch (Throwable e) {
-					logger.error("SimEngine Error:", e);
+		barrier(new Task("revise") {
+			void apply() {
+				if (wal != null) {
+					wal.revise(schema);
 				}
+				table.revise(schema);
 			}
 		});
 	}
 
+	private void count() {
+		if (debug) {
+			int added = counter.incrementAndGet();
+			if (added % bycount == 0) {
+				logger.debug("add:" + added);
+			}
+		}
+	}
+
 	public void add(final int docid, final float[] distr) {
-		service.execute(new Runnable() {
-			public void run() {
-				if (debug) {
-					counter++;
-					if (counter % bycount == 0) {
-						logger.debug("add:" + counter);
-					}
-				}
-				try {
-					table.add(docid, distr);
-				} catch (Throwable e) {
-					logger.error("SimEngine Error:", e);
+		writer(docid).execute(new Task("add") {
+			void apply() {
+				count();
+				if (wal != null) {
+					wal.add(docid, distr);
 				}
+				table.add(docid, distr);
 			}
 		});
 	}
 
-	public void append(final int docid, final Object[] pairs) {
-		service.execute(new Runnable() {
-			public void run() {
-				if (debug) {
-					counter++;
-					if (counter % bycount == 0) {
-						logger.debug("add:" + counter);
+	/**
+	 * Splits the batch by writer so each part keeps the ordering of its
+	 * docids, then adds every part with a single scan.
+	 */
+	public void addBatch(int[] docids, float[][] distrs) {
+		int[] counts = new int[writers.length];
+		for (int docid : docids) {
+			counts[(docid & 0x7fffffff) % writers.length]++;
+		}
+		for (int w = 0; w < writers.length; w++) {
+			if (counts[w] == 0) {
+				continue;
+			}
+			final int[] ids = new int[counts[w]];
+			final float[][] vectors = new float[counts[w]][];
+			int n = 0;
+			for (int i = 0; i < docids.length; i++) {
+				if ((docids[i] & 0x7fffffff) % writers.length == w) {
+					ids[n] = docids[i];
+					vectors[n++] = distrs[i];
+				}
+			}
+			writers[w].execute(new Task("madd") {
+				void apply() {
+					for (int i = 0; i < ids.length; i++) {
+						count();
+					}
+					if (wal != null) {
+						wal.add(ids, vectors);
 					}
+					table.addBatch(ids, vectors);
 				}
-				try {
-					table.append(docid, pairs);
-				} catch (Throwable e) {
-					logger.error("SimEngine Error:", e);
+			});
+		}
+	}
+
+	public void append(final int docid, final Object[] pairs) {
+		writer(docid).execute(new Task("append") {
+			void apply() {
+				count();
+				if (wal != null) {
+					wal.append(docid, pairs);
 				}
+				table.append(docid, pairs);
 			}
 		});
 	}
 
 	public void put(final int docid, final float[] distr) {
-		service.execute(new Runnable() {
-			public void run() {
-				try {
-					table.put(docid, distr);
-				} catch (Throwable e) {
-					logger.error("SimEngine Error:", e);
+		writer(docid).execute(new Task("put") {
+			void apply() {
+				if (wal != null) {
+					wal.add(docid, distr);
 				}
+				table.put(docid, distr);
 			}
 		});
 	}
 
 	public void update(final int docid, final Object[] pairs) {
-		service.execute(new Runnable() {
-			public void run() {
-				try {
-					table.update(docid, pairs);
-				} catch (Throwable e) {
-					logger.error("SimEngine Error:", e);
+		writer(docid).execute(new Task("update") {
+			void apply() {
+				if (wal != null) {
+					wal.append(docid, pairs);
 				}
+				table.update(docid, pairs);
 			}
 		});
 	}
 
 	public void delete(final int docid) {
-		service.execute(new Runnable() {
-			public void run() {
-				try {
-					logger.info("Being delete " + docid);
-					table.delete(docid);
-					logger.info("Delete finish");
-				} catch (Throwable e) {
-					logger.error("SimEngine Error:", e);
+		writer(docid).execute(new Task("delete") {
+			void apply() {
+				logger.info("Being delete " + docid);
+				if (wal != null) {
+					wal.delete(docid);
 				}
+				table.delete(docid);
+				logger.info("Delete finish");
 			}
 		});
 	}
 
+	/**
+	 * Queue depth, overflow counters and, per command, the mean time spent
+	 * queued and applying, in microseconds; with a write-ahead log the records
+	 * logged and the fsyncs they took; hits, misses and entries of the reply
+	 * cache; whether the key is loading and how far; the pairs scored, the
+	 * sides of them skipped below a water line and the pairs whose dot product
+	 * fell short of both; the size of the reverse index; then the bytes held
+	 * by deleted vectors and the bytes compactions gave back, last the kind of
+	 * vector storage.
+	 */
+	public String[] stats() {
+		List<String> stats = new ArrayList<String>();
+		int depth = 0;
+		for (ThreadPoolExecutor writer : writers) {
+			depth += writer.getQueue().size();
+		}
+		stats.add("queue.depth");
+		stats.add(String.valueOf(depth));
+		stats.add("queue.capacity");
+		stats.add(String.valueOf(queueSize * writers.length));
+		stats.add("queue.rejected");
+		stats.add(String.valueOf(rejected.get()));
+		stats.add("queue.dropped");
+		stats.add(String.valueOf(dropped.get()));
+		for (String command : waits.keySet()) {
+			Meter wait = waits.get(command);
+			Meter apply = applies.get(command);
+			if (apply.count() == 0) {
+				continue;
+			}
+			stats.add(command + ".count");
+			stats.add(String.valueOf(apply.count()));
+			stats.add(command + ".wait.us");
+			stats.add(String.valueOf(wait.mean() / 1000));
+			stats.add(command + ".apply.us");
+			stats.add(String.valueOf(apply.mean() / 1000));
+			stats.add(command + ".apply.max.us");
+			stats.add(String.valueOf(apply.max() / 1000));
+		}
+		if (wal != null) {
+			stats.add("wal.records");
+			stats.add(String.valueOf(wal.records()));
+			stats.add("wal.syncs");
+			stats.add(String.valueOf(wal.syncs()));
+		}
+		if (recommends != null) {
+			stats.add("cache.hits");
+			stats.add(String.valueOf(recommends.hits() + retrieves.hits()));
+			stats.add("cache.misses");
+			stats.add(String.valueOf(recommends.misses() + retrieves.misses()));
+			stats.add("cache.entries");
+			stats.add(String.valueOf(recommends.size() + retrieves.size()));
+		}
+		stats.add("load.state");
+		stats.add(state);
+		stats.add("load.progress");
+		stats.add(String.valueOf(progress()));
+		long[] pruning = table.pruning();
+		stats.add("score.pairs");
+		stats.add(String.valueOf(pruning[0]));
+		stats.add("score.skipped");
+		stats.add(String.valueOf(pruning[1]));
+		stats.add("score.floored");
+		stats.add(String.valueOf(pruning[2]));
+		if (table.clusters() >= 0) {
+			stats.add("ivf.clusters");
+			stats.add(String.valueOf(table.clusters()));
+			stats.add("ivf.recall");
+			stats.add(String.valueOf(table.recall()));
+		}
+		long[] reverse = table.reverseSize();
+		stats.add("reverse.entries");
+		stats.add(String.valueOf(reverse[0]));
+		stats.add("reverse.bytes");// 每个桶一个int和一个状态字节
+		stats.add(String.valueOf(5 * reverse[1]));
+		stats.add("garbage.bytes");
+		stats.add(String.valueOf(table.garbage()));
+		stats.add("reclaimed.bytes");
+		stats.add(String.valueOf(table.reclaimed()));
+		stats.add("storage");
+		stats.add(table.storage());
+		return stats.toArray(new String[stats.size()]);
+	}
+
+	/**
+	 * A queued command; records how long it waited and how long it ran.
+	 */
+	private abstract class Task implements Runnable {
+
+		private final String command;
+		private final long enqueued = System.nanoTime();
+
+		Task(String command) {
+			this.command = command;
+		}
+
+		abstract void apply();
+
+		public final void run() {
+			long start = System.nanoTime();
+			waits.get(command).record(start - enqueued);
+			try {
+				apply();
+			} catch (Throwable e) {
+				logger.error("SimEngine Error:", e);
+			} finally {
+				applies.get(command).record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Part of a barrier; never dropped or rejected when the queue is full.
+	 */
+	private static class Fence implements Runnable {
+
+		private final Runnable body;
+
+		Fence(Runnable body) {
+			this.body = body;
+		}
+
+		public void run() {
+			body.run();
+		}
+	}
+
+	/**
+	 * Applies the configured overflow policy once a writer queue is full.
+	 */
+	private class Overflow implements RejectedExecutionHandler {
+
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new SimBaseException("SimEngine is shut down");
+			}
+			BlockingQueue<Runnable> queue = executor.getQueue();
+			if (DROP_OLDEST.equals(overflow) && !(task instanceof Fence)) {
+				for (Runnable queued : queue) {
+					if (!(queued instanceof Fence) && queue.remove(queued)) {
+						dropped.incrementAndGet();
+						break;
+					}
+				}
+				if (queue.offer(task)) {
+					return;
+				}
+			} else if (REJECT.equals(overflow) && !(task instanceof Fence)) {
+				rejected.incrementAndGet();
+				throw new SimBaseException("Write queue is full, "
+						+ queue.size() + " commands pending");
+			}
+			try {
+				queue.put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SimBaseException(e);
+			}
+		}
+	}
+
 	public String[] schema() {
-		return table.schema();
+		return table().schema();
 	}
 
 	public TFloatList get(int docid) {
-		return table.get(docid);
+		return table().get(docid);
 	}
 
 	public String[] retrieve(int docid) {
-		return table.retrieve(docid);
+		return table().retrieve(docid);
+	}
+
+	public String[] nearby(float[] distr) {
+		return table().nearby(distr);
 	}
 
 	public int[] recommend(int docid) {
-		return table.recommend(docid);
+		return table().recommend(docid);
+	}
+
+	/**
+	 * The vretr reply, encoded once per version of the docid's list.
+	 */
+	public Payload<?> retrieveReply(int docid) {
+		View view = table().view(docid);
+		if (view == null) {
+			return new Result(new String[0]);
+		} else if (retrieves == null) {
+			return new Result(view.pickle());
+		}
+		Payload<?> reply = retrieves.get(docid, view);
+		if (reply == null) {
+			reply = new Encoded(new Result(view.pickle()));
+			retrieves.put(docid, view, reply);
+		}
+		return reply;
+	}
+
+	/**
+	 * The vrec reply, encoded once per version of the docid's list.
+	 */
+	public Payload<?> recommendReply(int docid) {
+		View view = table().view(docid);
+		if (view == null) {
+			return new Result(new int[0]);
+		} else if (recommends == null) {
+			return new Result(view.docids());
+		}
+		Payload<?> reply = recommends.get(docid, view);
+		if (reply == null) {
+			reply = new Encoded(new Result(view.docids()));
+			recommends.put(docid, view, reply);
+		}
+		return reply;
+	}
+
+	/**
+	 * Counts the bytes of the dump read so far.
+	 */
+	private class Counter extends FilterInputStream {
+
+		Counter(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				loaded.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				loaded.addAndGet(n);
+			}
+			return n;
+		}
 	}
 
 }
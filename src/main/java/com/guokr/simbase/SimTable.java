@@ -1,7 +1,7 @@
 package com.guokr.simbase;
 
-import gnu.trove.iterator.TFloatIterator;
 import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.list.TFloatList;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TFloatArrayList;
@@ -11,74 +11,320 @@ import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.KryoSerializable;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.index.HnswIndex;
+import com.guokr.simbase.store.DenseStore;
+import com.guokr.simbase.store.MappedStore;
+import com.guokr.simbase.store.QuantizedStore;
+import com.guokr.simbase.store.Snapshot;
+import com.guokr.simbase.store.SparseStore;
+import com.guokr.simbase.store.VectorStore;
 import com.guokr.simbase.util.Sorter;
 
 public class SimTable implements KryoSerializable {
 
+	private static final int VERSION = 4;// 序列化格式版本，1为旧的probs列表格式
+	private static final int BLOCK_LISTS = 4096;// 每个分数块中的列表数
+	private static final int CHUNK = 1024;// 扫描时每次持有读锁的槽位数
+	private static final String AUTO = "auto";
+	private static final long NONE = Long.MIN_VALUE;// score()没有挤掉任何文档
+	// 反向索引的集合大多只有几个元素，从小容量起步，装得更满些
+	private static final int REVERSE_CAPACITY = 4;
+	private static final float REVERSE_LOAD = 0.75f;
+	private static final int RECALL_QUERIES = 100;// 每次训练后估算召回率的查询数
+	private static final double MARGIN = 1e-4;// 点积下限在余弦开方上留给舍入的余量
+	private static final int LINE_READS = 64;// 扫描中每隔这些槽位重读新文档的水位线
+
 	private Map<String, Integer> dimensions = new HashMap<String, Integer>();
 	private String[] current = new String[0];
 
-	private TFloatList probs = new TFloatArrayList();
-	private TIntIntMap indexer = new TIntIntHashMap();
-	private TIntObjectHashMap<TIntList> reverseIndexer = new TIntObjectHashMap<TIntList>();
-	private TIntFloatMap waterLine = new TIntFloatHashMap();
-	private TIntObjectHashMap<Sorter> scores = new TIntObjectHashMap<Sorter>();
+	private VectorStore store;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();// 保护store和index
+	private Shard[] shards;
 
 	private Map<String, Object> context;
 	private double loadfactor;
 	private int maxlimits;
+	private int parallelism;
+	private int minSegmentSize;
+	private ExecutorService scorer;
+	private HnswIndex index;
+	private SimCluster cluster;// 没有HNSW索引时vnear可以只查最近的几个簇
+	private boolean seeding;// 用索引的近邻代替全量扫描来更新Sorter
+	private volatile double recall = -1;// 簇上次训练后的召回率，-1为尚未估算
+	private boolean autoStorage;// 按非零分量的比例在稠密和稀疏存储之间切换
+	private double sparseDensity;
+	private int rerank;// int8存储时，按估算值取前rerank * maxlimits个文档精确重排
+	private float rerankMargin;
+	private int moved = -1;// 压缩进行中时[0, moved)已经紧凑，-1表示没有在压缩
+	private int scanned;// [moved, scanned)都是已删除的槽位
+	private final AtomicLong reclaimed = new AtomicLong();
+	private final AtomicLong pairs = new AtomicLong();// 打分的文档对
+	private final AtomicLong skipped = new AtomicLong();// 低于水位线而省去的score()
+	private final AtomicLong floored = new AtomicLong();// 点积够不到两边水位线的文档对
 
 	public SimTable() {
 		loadfactor = 0.75;
 		maxlimits = 20;
+		parallelism = 1;
+		minSegmentSize = 1024;
+		store = new DenseStore();
+		shards = shards(64);
 	}
 
 	public SimTable(Map<String, Object> context) {
+		this(context, store(context.get("storage")));
+	}
+
+	private static VectorStore store(Object storage) {
+		if (SparseStore.STORAGE.equals(storage)) {
+			return new SparseStore();
+		}
+		if (QuantizedStore.STORAGE.equals(storage)) {// 全精度向量留在堆上
+			return new QuantizedStore(new DenseStore());
+		}
+		return new DenseStore();
+	}
+
+	public SimTable(Map<String, Object> context, VectorStore store) {
 		this.context = context;
+		this.store = store;
 		loadfactor = (Double) context.get("loadfactor");
 		maxlimits = (Integer) context.get("maxlimits");
+		parallelism = option(context, "parallelism", 1);
+		minSegmentSize = option(context, "minSegmentSize", 1024);
+		shards = shards(option(context, "lockStripes", 64));
+		autoStorage = AUTO.equals(context.get("storage"))
+				&& !(store instanceof MappedStore);
+		sparseDensity = option(context, "sparseDensity", 0.25);
+		rerank = option(context, "rerank", 2);
+		rerankMargin = option(context, "rerankMargin", 0.02).floatValue();
+		if (option(context, "hnsw", false)) {
+			index = new HnswIndex(option(context, "hnswM", 16), option(context,
+					"hnswEfConstruction", 200), option(context,
+					"hnswEfSearch", 50));
+			seeding = option(context, "hnswSeeding", false);
+		} else if (option(context, "ivf", false)) {
+			cluster = new SimCluster(option(context, "ivfClusters", 256),
+					option(context, "ivfNprobe", 8), option(context,
+							"ivfAssign", 1), option(context, "ivfSample", 16384),
+					option(context, "ivfRetrainRatio", 0.1));
+			seeding = option(context, "ivfSeeding", false);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T option(Map<String, Object> context, String key,
+			T fallback) {
+		return context.containsKey(key) ? (T) context.get(key) : fallback;
+	}
+
+	private static Shard[] shards(int count) {
+		Shard[] shards = new Shard[Math.max(count, 1)];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard();
+		}
+		return shards;
+	}
+
+	private int stripe(int docid) {
+		int h = docid ^ (docid >>> 16);
+		return (h & 0x7fffffff) % shards.length;
+	}
+
+	private Shard shard(int docid) {
+		return shards[stripe(docid)];
+	}
+
+	/**
+	 * Sorter lists, water lines and reverse index entries of the docids
+	 * falling into one lock stripe; the shard itself is the monitor guarding
+	 * them. Readers go through the readers map instead, which only changes
+	 * when a docid gets or loses its Sorter, and read its published view.
+	 */
+	private static class Shard {
+		// tgt -> 列表中含有tgt的src，与Sorter的成员保持一致
+		private TIntObjectHashMap<TIntHashSet> reverseIndexer = new TIntObjectHashMap<TIntHashSet>();
+		private TIntFloatMap waterLine = new TIntFloatHashMap();
+		private TIntObjectHashMap<Sorter> scores = new TIntObjectHashMap<Sorter>();
+		private TIntObjectHashMap<Sorter> saved;// 快照打开时，Sorter第一次修改前的副本，快照之后才有的记为null
+		private volatile ConcurrentMap<Integer, Sorter> readers = new ConcurrentHashMap<Integer, Sorter>();
+
+		private void put(int docid, Sorter sorter) {
+			scores.put(docid, sorter);
+			readers.put(docid, sorter);
+		}
+
+		private void remove(int docid) {
+			scores.remove(docid);
+			readers.remove(docid);
+		}
+
+		private Sorter.View view(int docid) {
+			Sorter sorter = readers.get(docid);
+			return sorter == null ? null : sorter.view();
+		}
+
+		private float waterLine(int docid) {
+			Sorter sorter = readers.get(docid);
+			return sorter == null ? Float.NEGATIVE_INFINITY : sorter
+					.waterLine();
+		}
+
+		private void link(int tgt, int src) {
+			TIntHashSet sources = reverseIndexer.get(tgt);
+			if (sources == null) {
+				sources = new TIntHashSet(REVERSE_CAPACITY, REVERSE_LOAD);
+				reverseIndexer.put(tgt, sources);
+			}
+			sources.add(src);
+		}
+
+		private void unlink(int tgt, int src) {
+			TIntHashSet sources = reverseIndexer.get(tgt);
+			if (sources != null && sources.remove(src) && sources.isEmpty()) {
+				reverseIndexer.remove(tgt);
+			}
+		}
+
+		private void preserve(int docid) {
+			if (saved != null && !saved.containsKey(docid)) {
+				Sorter sorter = scores.get(docid);
+				saved.put(docid, sorter == null ? null : sorter.copy());
+			}
+		}
+	}
+
+	private ExecutorService scorer() {
+		if (scorer == null) {
+			scorer = Executors.newFixedThreadPool(parallelism,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "simtable-scorer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return scorer;
 	}
 
 	private void score(int src, int tgt, float value) {
-		Sorter sorter = scores.get(src);
-		if (sorter == null) {
-			sorter = new Sorter(maxlimits);
-			synchronized (scores) {
-				scores.put(src, sorter);
+		int a = stripe(src);
+		int b = stripe(tgt);
+		long evicted;
+		// 按分片序号加锁，避免两个写线程交叉等待
+		synchronized (shards[Math.min(a, b)]) {
+			synchronized (shards[Math.max(a, b)]) {
+				evicted = score(shards[a], shards[b], src, tgt, value);
 			}
 		}
+		if (evicted != NONE) {
+			unlink(src, (int) evicted);
+		}
+	}
 
-		TIntList reverseRange = reverseIndexer.get(tgt);
-		if (reverseRange == null) {
-			reverseRange = new TIntArrayList();
-			reverseIndexer.put(tgt, reverseRange);
+	/**
+	 * @return the docid that fell off the list of src, NONE if none did; its
+	 *         reverse index entry lives in a shard not locked here
+	 */
+	private long score(Shard from, Shard to, int src, int tgt, float value) {
+		TIntObjectHashMap<Sorter> scores = from.scores;
+		TIntFloatMap waterLine = from.waterLine;
+		Sorter sorter = scores.get(src);
+		if (sorter == null) {
+			from.preserve(src);
+			sorter = new Sorter(maxlimits);
+			from.put(src, sorter);
 		}
 
 		if (src != tgt) {
+			boolean admitted = false;
 			if (waterLine.containsKey(src)) {
 				if (waterLine.get(src) <= value) {// 先前的添加不改变水位线
+					from.preserve(src);
 					sorter.add(tgt, value);
-					reverseRange.add(src);// 添加反向索引
+					admitted = true;
 				}
 			} else {
 				waterLine.put(src, 0f);
+				sorter.waterLine(0f);
+				from.preserve(src);
 				sorter.add(tgt, value);
-				reverseRange.add(src);// 添加反向索引
+				admitted = true;
+			}
+			if (admitted) {// NaN的分数会把tgt移出列表
+				if (sorter.contains(tgt)) {
+					to.link(tgt, src);
+				} else {
+					to.unlink(tgt, src);
+				}
 			}
 		}
 
+		long evicted = NONE;
 		if (sorter.size() > maxlimits) {
+			evicted = sorter.last();
 			float lastScore = sorter.removeLast();
-			if (lastScore > waterLine.get(src))
+			if (lastScore > waterLine.get(src)) {
 				waterLine.put(src, lastScore);// 放置水位线
+				sorter.waterLine(lastScore);
+			}
+		}
+		sorter.publish();
+		return evicted;
+	}
+
+	/**
+	 * Drops src from the reverse index of tgt, unless tgt got back into the
+	 * list of src meanwhile.
+	 */
+	private void unlink(int src, int tgt) {
+		int a = stripe(src);
+		int b = stripe(tgt);
+		synchronized (shards[Math.min(a, b)]) {
+			synchronized (shards[Math.max(a, b)]) {
+				Sorter sorter = shards[a].scores.get(src);
+				if (sorter == null || !sorter.contains(tgt)) {
+					shards[b].unlink(tgt, src);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the reverse index entries of a list put in whole.
+	 */
+	private void link(int src, int[] tgts) {
+		for (int tgt : tgts) {
+			Shard to = shard(tgt);
+			synchronized (to) {
+				to.link(tgt, src);
+			}
 		}
 	}
 
@@ -105,64 +351,617 @@ public class SimTable implements KryoSerializable {
 				dimensions.put(dim, dimensions.size());
 			}
 		}
+		if (autoStorage) {// 新的维度会改变密度，立即重新选择存储
+			lock.writeLock().lock();
+			try {
+				VectorStore converted = convert(store);
+				if (converted != null) {
+					store = converted;
+					moved = -1;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * With auto storage, copies the live slots into a sparse store once fewer
+	 * than sparseDensity of the components are nonzero, and back into a dense
+	 * one above twice that, so a table does not flip back and forth.
+	 *
+	 * @return the new store, null when the current kind still fits
+	 */
+	private VectorStore convert(VectorStore store) {
+		if (!autoStorage) {
+			return null;
+		}
+		float density = store.density();
+		int capacity = (int) (store.live() / loadfactor) + 1;
+		if (store instanceof DenseStore && density < sparseDensity) {
+			return copy(store, new SparseStore(store.dimensions(), capacity));
+		}
+		if (store instanceof SparseStore && density > 2 * sparseDensity) {
+			return copy(store, new DenseStore(store.dimensions(), capacity));
+		}
+		return null;
+	}
+
+	private VectorStore compact(VectorStore store) {
+		VectorStore converted = convert(store);
+		return converted != null ? converted : store.compact(loadfactor);
+	}
+
+	private static VectorStore copy(VectorStore from, VectorStore to) {
+		for (int slot = 0; slot < from.size(); slot++) {
+			if (!from.deleted(slot)) {
+				int docid = from.docid(slot);
+				to.put(docid, from.get(docid));
+			}
+		}
+		return to;
 	}
 
 	public String[] schema() {
 		return current;
 	}
 
+	public String storage() {
+		return store.storage();
+	}
+
 	public void add(int docid, float[] distr) {
 		if (current != null && current.length != dimensions.size()) {
 			distr = mapping(distr);
 		}
 
-		float length = 0;
-		int start;
-		if (indexer.containsKey(docid)) {
-			start = indexer.get(docid);
-			int cursor = start;
-			for (float val : distr) {
-				probs.set(cursor, val);
-				length += val * val;
-				cursor++;
+		float length;
+		int end;
+		lock.writeLock().lock();
+		try {
+			if (index != null) {
+				index.remove(store, docid);
+			}
+			int slot = store.put(docid, distr);
+			length = store.norm(slot);
+			end = store.size();
+			if (cluster != null) {
+				cluster.add(docid, distr);
 			}
-			probs.set(cursor++, (float) (docid + 1));
-			probs.set(cursor, length);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if (index != null) {
+			lock.readLock().lock();
+			try {
+				Sorter nearest = index.insert(store, docid, distr);
+				if (seeding) {
+					int[] targets = nearest.docids();
+					float[] cosines = nearest.scores();
+					long pairs = 0, skipped = 0;
+					for (int i = 0; i < targets.length; i++) {
+						if (store.contains(targets[i])) {
+							skipped += pair(docid, targets[i], cosines[i]);
+							pairs++;
+						}
+					}
+					tally(pairs, skipped);
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (seeding) {
+				return;
+			}
+		}
+		if (cluster != null && seeding && probe(docid, distr, length)) {
+			return;
+		}
+
+		if (store instanceof QuantizedStore) {
+			rerank(docid, distr, length, end);
+			return;
+		}
+
+		int count = segments(end);
+		if (count < 2) {
+			scan(docid, distr, length, 0, end, null);
 		} else {
-			start = probs.size();
-			indexer.put(docid, start);
-			for (float val : distr) {
-				probs.add(val);
-				length += val * val;
+			parallelScan(docid, distr, length, end, count);
+		}
+	}
+
+	/**
+	 * 只与最近的nprobe个簇中的文档打分
+	 *
+	 * @return false if the clusters are not trained yet
+	 */
+	private boolean probe(int docid, float[] distr, float length) {
+		lock.readLock().lock();
+		try {
+			int[] targets = cluster.candidates(distr);
+			if (targets == null) {
+				return false;
+			}
+			long pairs = 0, skipped = 0, floored = 0;
+			float tail = store.tail(distr);
+			float line = shard(docid).waterLine(docid);
+			for (int tgt : targets) {
+				int slot = store.slot(tgt);
+				if (slot < 0) {
+					continue;
+				}
+				float norm = store.norm(slot);
+				float floor = floor(docid, line, tgt, length, norm);
+				float scoring = store.dot(slot, distr, tail, floor);
+				pairs++;
+				if (Math.abs(scoring) < floor) {
+					skipped += 2;
+					floored++;
+					continue;
+				}
+				skipped += pair(docid, tgt, scoring * scoring / length / norm);
+			}
+			tally(pairs, skipped, floored);
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int segments(int slots) {
+		if (parallelism < 2) {
+			return 1;
+		}
+		return Math.min(parallelism, slots / minSegmentSize);
+	}
+
+	/**
+	 * 将槽位切分为count段并行计算余弦，再按段的顺序串行合并进Sorter，
+	 * 因此最终状态与串行扫描完全一致
+	 */
+	private void parallelScan(int docid, float[] distr, float length,
+			int end, int count) {
+		List<Future<Segment>> futures = new ArrayList<Future<Segment>>(count);
+		int from = 0;
+		for (int i = 1; i <= count; i++) {
+			int to = (i == count) ? end : (int) ((long) i * end / count);
+			futures.add(scorer().submit(
+					new Segment(docid, distr, length, from, to)));
+			from = to;
+		}
+
+		try {
+			for (Future<Segment> future : futures) {
+				Segment segment = future.get();
+				int size = segment.targets.size();
+				long pairs = 0, skipped = 0;
+				lock.readLock().lock();
+				try {
+					for (int i = 0; i < size; i++) {
+						int tgt = segment.targets.get(i);
+						if (!store.contains(tgt)) {// 扫描之后被其他写线程删除
+							continue;
+						}
+						float cosine = segment.cosines.get(i);
+						skipped += pair(docid, tgt, cosine);
+						pairs++;
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+				tally(pairs, skipped);
 			}
-			probs.add((float) (docid + 1));
-			probs.add(length);
-		}
-		int end = probs.size();
-
-		float scoring = 0;
-		int base = 0;
-		for (int offset = 0; offset < end; offset++) {
-			float val = probs.get(offset);
-			if (val >= 0) {
-				if (val < 1) {
-					int idx = offset - base;
-					if (idx < end - start - 1) {
-						float another = distr[idx];// ArrayIndexOutOfBoundsException
-						scoring += another * val;
+		} catch (InterruptedException e) {
+			throw new SimBaseException(e);
+		} catch (ExecutionException e) {
+			throw new SimBaseException(e.getCause());
+		}
+	}
+
+	/**
+	 * 扫描[from, to)范围内的槽位；segment为null时直接打分，
+	 * 点积够不到两边水位线的文档对提前放弃，不再打分。
+	 * 每CHUNK个槽位释放一次读锁，让其他写线程的put得以进行
+	 */
+	private void scan(int docid, float[] distr, float length, int from,
+			int to, Segment segment) {
+		long pairs = 0, skipped = 0, floored = 0;
+		for (int chunk = from; chunk < to; chunk += CHUNK) {
+			int limit = Math.min(to, chunk + CHUNK);
+			lock.readLock().lock();
+			try {
+				VectorStore store = this.store;
+				float tail = store.tail(distr);// 两块之间可能改变维数
+				float line = 0f;
+				for (int slot = chunk; slot < limit; slot++) {
+					if (segment == null
+							&& (slot == chunk || slot % LINE_READS == 0)) {
+						line = shard(docid).waterLine(docid);// 新文档的水位线随扫描上升
 					}
-				} else {
+					if (store.deleted(slot)) {
+						continue;
+					}
+					int tgt = store.docid(slot);
+					float norm = store.norm(slot);
+					float floor = segment == null ? floor(docid, line, tgt,
+							length, norm) : 0f;
+					float scoring = store.dot(slot, distr, tail, floor);
+					if (Math.abs(scoring) < floor) {
+						skipped += 2;
+						floored++;
+						pairs++;
+						continue;
+					}
+					float cosine = scoring * scoring / length / norm;
+					if (segment == null) {
+						skipped += pair(docid, tgt, cosine);
+						pairs++;
+					} else {
+						segment.targets.add(tgt);
+						segment.cosines.add(cosine);
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		tally(pairs, skipped, floored);
+	}
+
+	/**
+	 * 两遍扫描：先用int8编码估算全部余弦，再用全精度向量只重算两类文档：
+	 * 估算值排在前rerank * maxlimits内的，以及估算值加上rerankMargin
+	 * 不低于其水位线的；其余文档既进不了新文档的Sorter，也进不了自己的
+	 */
+	private void rerank(int docid, float[] distr, float length, int end) {
+		byte[] query = new byte[distr.length];
+		float scale = QuantizedStore.quantize(distr, query, 0);
+		float[] estimates = new float[end];
+		int limits = rerank * maxlimits;
+		Sorter nearest = new Sorter(limits);
+		for (int chunk = 0; chunk < end; chunk += CHUNK) {
+			int limit = Math.min(end, chunk + CHUNK);
+			lock.readLock().lock();
+			try {
+				QuantizedStore store = (QuantizedStore) this.store;
+				for (int slot = chunk; slot < limit; slot++) {
+					if (store.deleted(slot)) {
+						estimates[slot] = -1;
+						continue;
+					}
+					float scoring = store.approximate(slot, query, scale);
+					estimates[slot] = scoring * scoring / length
+							/ store.norm(slot);
+					nearest.add(slot, estimates[slot]);
+					if (nearest.size() > limits) {
+						nearest.removeLast();
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		float cutoff = -1;
+		if (nearest.size() == limits) {
+			cutoff = nearest.scores()[limits - 1];
+		}
+
+		long pairs = 0, skipped = 0;
+		for (int chunk = 0; chunk < end; chunk += CHUNK) {
+			int limit = Math.min(end, chunk + CHUNK);
+			lock.readLock().lock();
+			try {
+				VectorStore store = this.store;
+				for (int slot = chunk; slot < limit; slot++) {
+					float estimate = estimates[slot];
+					if (estimate == -1 || store.deleted(slot)) {
+						continue;
+					}
+					int tgt = store.docid(slot);
+					if (estimate < cutoff
+							&& estimate + rerankMargin < waterLine(tgt)) {
+						continue;
+					}
+					float scoring = store.dot(slot, distr);
 					float cosine = scoring * scoring / length
-							/ probs.get(offset + 1);
-					score(docid, (int) val - 1, cosine);
-					score((int) val - 1, docid, cosine);
-					scoring = 0;
-					offset = offset + 1;
-					base = offset + 1;
+							/ store.norm(slot);
+					skipped += pair(docid, tgt, cosine);
+					pairs++;
 				}
-			} else {
-				base = offset + 1;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		tally(pairs, skipped);
+	}
+
+	private float waterLine(int docid) {
+		return Math.max(shard(docid).waterLine(docid), 0f);
+	}
+
+	/**
+	 * The magnitude the dot product of the pair must reach for its cosine to
+	 * clear the water lines of both lists, less MARGIN for rounding; below it
+	 * pair() would skip both sides. 0 while either list takes anything. line
+	 * is the water line of src, read every LINE_READS slots: the water lines
+	 * only rise, so reading them early only lowers the floor.
+	 */
+	private float floor(int src, float line, int tgt, float length, float norm) {
+		if (src == tgt || !(line > 0)) {
+			return 0f;
+		}
+		line = Math.min(line, shard(tgt).waterLine(tgt));
+		if (!(line > 0)) {
+			return 0f;
+		}
+		return (float) ((Math.sqrt(line) - MARGIN) * Math.sqrt((double) length
+				* norm));
+	}
+
+	/**
+	 * Scores the pair both ways, skipping a side whose water line the score
+	 * is below: score() would leave that list as it is. The water lines are
+	 * read without locking; one read before it rose only means fewer skips.
+	 *
+	 * @return the sides skipped, for {@link #tally}
+	 */
+	private int pair(int src, int tgt, float cosine) {
+		int skipped = 0;
+		if (src == tgt || !(cosine < shard(src).waterLine(src))) {
+			score(src, tgt, cosine);
+		} else {
+			skipped++;
+		}
+		if (src == tgt || !(cosine < shard(tgt).waterLine(tgt))) {
+			score(tgt, src, cosine);
+		} else {
+			skipped++;
+		}
+		return skipped;
+	}
+
+	private void tally(long pairs, long skipped) {// 每次扫描汇总一次，不在每对上争用计数器
+		tally(pairs, skipped, 0);
+	}
+
+	private void tally(long pairs, long skipped, long floored) {
+		this.pairs.addAndGet(pairs);
+		this.skipped.addAndGet(skipped);
+		this.floored.addAndGet(floored);
+	}
+
+	/**
+	 * @return the pairs scored by adds, the score() calls of theirs skipped,
+	 *         two per pair at most, and the pairs whose dot product fell short
+	 *         of the floor of both water lines, most given up halfway
+	 */
+	public long[] pruning() {
+		return new long[] { pairs.get(), skipped.get(), floored.get() };
+	}
+
+	private class Segment implements Callable<Segment> {
+
+		private final int docid;
+		private final float[] distr;
+		private final float length;
+		private final int from;
+		private final int to;
+
+		private final TIntList targets = new TIntArrayList();
+		private final TFloatList cosines = new TFloatArrayList();
+
+		Segment(int docid, float[] distr, float length, int from, int to) {
+			this.docid = docid;
+			this.distr = distr;
+			this.length = length;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Segment call() {
+			scan(docid, distr, length, from, to, this);
+			return this;
+		}
+	}
+
+	/**
+	 * 批量加入文档：先写入全部向量，再对语料做一次分块扫描，每个槽位依次与
+	 * 批内文档计算余弦（新×旧与新×新），结果与逐个add一致
+	 */
+	public void addBatch(int[] docids, float[][] distrs) {
+		TIntIntMap seen = new TIntIntHashMap();
+		int from = 0;
+		for (int i = 0; i < docids.length; i++) {
+			if (seen.containsKey(docids[i])) {// 批内重复的docid，从此处分成两批
+				addBatch(new Batch(docids, distrs, from, i));
+				seen.clear();
+				from = i;
 			}
+			seen.put(docids[i], i);
+		}
+		if (from < docids.length) {
+			addBatch(new Batch(docids, distrs, from, docids.length));
+		}
+	}
+
+	private void addBatch(Batch batch) {
+		int size = batch.docids.length;
+		if (store instanceof QuantizedStore) {// 每个文档各自估算和重排
+			for (int i = 0; i < size; i++) {
+				add(batch.docids[i], batch.distrs[i]);
+			}
+			return;
+		}
+		int end;
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < size; i++) {
+				if (current != null && current.length != dimensions.size()) {
+					batch.distrs[i] = mapping(batch.distrs[i]);
+				}
+				if (index != null) {
+					index.remove(store, batch.docids[i]);
+				}
+				int slot = store.put(batch.docids[i], batch.distrs[i]);
+				batch.lengths[i] = store.norm(slot);
+				if (cluster != null) {
+					cluster.add(batch.docids[i], batch.distrs[i]);
+				}
+			}
+			end = store.size();
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if (index != null) {
+			if (seeding) {// 近邻来自索引，没有可以共享的扫描
+				for (int i = 0; i < size; i++) {
+					add(batch.docids[i], batch.distrs[i]);
+				}
+				return;
+			}
+			lock.readLock().lock();
+			try {
+				for (int i = 0; i < size; i++) {
+					index.insert(store, batch.docids[i], batch.distrs[i]);
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		if (cluster != null && seeding && cluster.trained()) {// 各自只与最近的几个簇打分
+			for (int i = 0; i < size; i++) {
+				probe(batch.docids[i], batch.distrs[i], batch.lengths[i]);
+			}
+			return;
+		}
+
+		int count = segments(end);
+		if (count < 2) {
+			scan(batch, 0, end, null);
+			return;
+		}
+
+		List<Future<BatchSegment>> futures = new ArrayList<Future<BatchSegment>>(
+				count);
+		int from = 0;
+		for (int i = 1; i <= count; i++) {
+			int to = (i == count) ? end : (int) ((long) i * end / count);
+			futures.add(scorer().submit(new BatchSegment(batch, from, to)));
+			from = to;
+		}
+		try {
+			for (Future<BatchSegment> future : futures) {
+				BatchSegment segment = future.get();
+				int length = segment.targets.size();
+				long pairs = 0, skipped = 0;
+				lock.readLock().lock();
+				try {
+					for (int i = 0; i < length; i++) {
+						int src = segment.sources.get(i);
+						int tgt = segment.targets.get(i);
+						if (!store.contains(tgt)) {// 扫描之后被其他写线程删除
+							continue;
+						}
+						float cosine = segment.cosines.get(i);
+						skipped += pair(src, tgt, cosine);
+						pairs++;
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+				tally(pairs, skipped);
+			}
+		} catch (InterruptedException e) {
+			throw new SimBaseException(e);
+		} catch (ExecutionException e) {
+			throw new SimBaseException(e.getCause());
+		}
+	}
+
+	/**
+	 * 扫描[from, to)范围内的槽位，每个槽位与批内所有文档计算余弦；
+	 * 属于批内第j个文档的槽位只与第j个及之后的文档配对，与逐个add的顺序相同
+	 */
+	private void scan(Batch batch, int from, int to, BatchSegment segment) {
+		int size = batch.docids.length;
+		long pairs = 0, skipped = 0;
+		for (int chunk = from; chunk < to; chunk += CHUNK) {
+			int limit = Math.min(to, chunk + CHUNK);
+			lock.readLock().lock();
+			try {
+				VectorStore store = this.store;
+				for (int slot = chunk; slot < limit; slot++) {
+					if (store.deleted(slot)) {
+						continue;
+					}
+					int tgt = store.docid(slot);
+					float norm = store.norm(slot);
+					int first = batch.positions.containsKey(tgt) ? batch.positions
+							.get(tgt) : 0;
+					for (int i = first; i < size; i++) {
+						float scoring = store.dot(slot, batch.distrs[i]);
+						float cosine = scoring * scoring / batch.lengths[i]
+								/ norm;
+						int src = batch.docids[i];
+						if (segment == null) {
+							skipped += pair(src, tgt, cosine);
+							pairs++;
+						} else {
+							segment.sources.add(src);
+							segment.targets.add(tgt);
+							segment.cosines.add(cosine);
+						}
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		tally(pairs, skipped);
+	}
+
+	private static class Batch {
+
+		private final int[] docids;
+		private final float[][] distrs;
+		private final float[] lengths;
+		private final TIntIntMap positions;
+
+		Batch(int[] docids, float[][] distrs, int from, int to) {
+			this.docids = Arrays.copyOfRange(docids, from, to);
+			this.distrs = Arrays.copyOfRange(distrs, from, to);
+			this.lengths = new float[to - from];
+			this.positions = new TIntIntHashMap(to - from);
+			for (int i = 0; i < this.docids.length; i++) {
+				positions.put(this.docids[i], i);
+			}
+		}
+	}
+
+	private class BatchSegment implements Callable<BatchSegment> {
+
+		private final Batch batch;
+		private final int from;
+		private final int to;
+
+		private final TIntList sources = new TIntArrayList();
+		private final TIntList targets = new TIntArrayList();
+		private final TFloatList cosines = new TFloatArrayList();
+
+		BatchSegment(Batch batch, int from, int to) {
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public BatchSegment call() {
+			scan(batch, from, to, this);
+			return this;
 		}
 	}
 
@@ -187,133 +986,607 @@ public class SimTable implements KryoSerializable {
 	}
 
 	public void delete(int docid) {
-		if (indexer.containsKey(docid)) {
-			int cursor = indexer.get(docid);
-			while (true) {
-				float val = probs.get(cursor);
-				if (val < 0f) {
-					break;
-				}
-				if (val >= 1f) {// 到达docid的指针部分
-					probs.set(cursor, -val);
-					cursor++;
-					val = probs.get(cursor);
-					probs.set(cursor, -val);
-					break;
-				}
-
-				probs.set(cursor, -val);
-				cursor++;
+		lock.writeLock().lock();
+		try {
+			if (index != null) {
+				index.remove(store, docid);
 			}
+			if (cluster != null) {
+				cluster.delete(docid);
+			}
+			store.remove(docid);
+		} finally {
+			lock.writeLock().unlock();
 		}
 
-		indexer.remove(docid);// HashMap里没有这个键了也可以用= =
-		scores.remove(docid);
-		waterLine.remove(docid);// 移除水位线
+		TIntHashSet reverseRange;
+		Sorter own;
+		Shard shard = shard(docid);
+		synchronized (shard) {
+			shard.preserve(docid);
+			own = shard.scores.get(docid);
+			shard.remove(docid);
+			shard.waterLine.remove(docid);// 移除水位线
+			reverseRange = shard.reverseIndexer.remove(docid);// 移除反向索引
+		}
+
+		// 自己列表里的文档不再指向docid
+		if (own != null) {
+			for (int tgt : own.docids()) {
+				unlink(docid, tgt);
+			}
+		}
 
 		// 根据反向索引移除scores
-		if (reverseIndexer.contains(docid)) {
-			TIntIterator reverseIter = reverseIndexer.get(docid).iterator();
+		if (reverseRange != null) {
+			TIntIterator reverseIter = reverseRange.iterator();
 			while (reverseIter.hasNext()) {
 				int reverId = reverseIter.next();
-				scores.get(reverId).remove(docid);
+				Shard other = shard(reverId);
+				synchronized (other) {
+					Sorter sorter = other.scores.get(reverId);
+					if (sorter != null && sorter.contains(docid)) {
+						other.preserve(reverId);
+						sorter.remove(docid);
+						sorter.publish();
+					}
+				}
 			}
-			reverseIndexer.remove(docid);// 移除反向索引
+		}
+	}
+
+	public boolean contains(int docid) {
+		lock.readLock().lock();
+		try {
+			return store.contains(docid);
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
 	public TFloatList get(int docid) {
-		TFloatList res = null;
-		if (indexer.containsKey(docid)) {
-			res = new TFloatArrayList();
-			int idx = indexer.get(docid);
-			float ftmp = 0;
-			while ((ftmp = probs.get(idx++)) > 0 && (ftmp < 1)) {
-				res.add(ftmp);
-			}
+		float[] distr;
+		lock.readLock().lock();
+		try {
+			distr = store.get(docid);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (distr == null) {
+			return null;
 		}
-		return res;
+		return new TFloatArrayList(distr);
 	}
 
+	// 以下三个读取不加锁，读的是写线程最近发布的列表
+
 	public float similarity(int docid1, int docid2) {
-		return scores.get(docid1).get(docid2);
+		Sorter.View view = shard(docid1).view(docid1);
+		return view == null ? -1.0f : view.get(docid2);
 	}
 
 	public String[] retrieve(int docid) {
-		if (scores.contains(docid)) {
-			return scores.get(docid).pickle();
-		} else {
-			return new String[0];
-		}
+		Sorter.View view = shard(docid).view(docid);
+		return view == null ? new String[0] : view.pickle();
 	}
 
 	public int[] recommend(int docid) {
-		if (scores.contains(docid)) {
-			return scores.get(docid).docids();
-		} else {
-			return new int[0];
-		}
+		Sorter.View view = shard(docid).view(docid);
+		return view == null ? new int[0] : view.docids();
+	}
+
+	/**
+	 * @return the list of docid as last published, a new View each time it
+	 *         changes; null when docid has none
+	 */
+	public Sorter.View view(int docid) {
+		return shard(docid).view(docid);
 	}
 
+	/**
+	 * 查询与任意向量最相似的maxlimits个文档，向量本身不会被存储
+	 */
 	public String[] nearby(float[] distr) {
-		return null;// TODO
+		if (current != null && current.length != dimensions.size()) {
+			distr = mapping(distr);
+		}
+
+		lock.readLock().lock();
+		try {
+			if (distr.length > store.dimensions()) {// 多出的维度上所有文档都为0
+				float[] query = new float[store.dimensions()];
+				System.arraycopy(distr, 0, query, 0, query.length);
+				distr = query;
+			}
+
+			if (index != null) {
+				return index.search(store, distr, maxlimits).pickle();
+			}
+			if (cluster != null && cluster.trained()) {
+				return cluster.retrieve(store, distr, maxlimits).pickle();
+			}
+
+			float length = 0;
+			for (float val : distr) {
+				length += val * val;
+			}
+			if (store instanceof QuantizedStore) {
+				return nearby((QuantizedStore) store, distr, length);
+			}
+			Sorter sorter = new Sorter(maxlimits);
+			int end = store.size();
+			for (int slot = 0; slot < end; slot++) {
+				if (store.deleted(slot)) {
+					continue;
+				}
+				float scoring = store.dot(slot, distr);
+				sorter.add(store.docid(slot), scoring * scoring / length
+						/ store.norm(slot));
+				if (sorter.size() > maxlimits) {
+					sorter.removeLast();
+				}
+			}
+			return sorter.pickle();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 按int8估算值取前rerank * maxlimits个槽位，再按槽位顺序精确打分
+	 */
+	private String[] nearby(QuantizedStore store, float[] distr, float length) {
+		byte[] query = new byte[distr.length];
+		float scale = QuantizedStore.quantize(distr, query, 0);
+		int limits = rerank * maxlimits;
+		Sorter nearest = new Sorter(limits);
+		int end = store.size();
+		for (int slot = 0; slot < end; slot++) {
+			if (store.deleted(slot)) {
+				continue;
+			}
+			float scoring = store.approximate(slot, query, scale);
+			nearest.add(slot, scoring * scoring / length / store.norm(slot));
+			if (nearest.size() > limits) {
+				nearest.removeLast();
+			}
+		}
+
+		int[] slots = nearest.docids();
+		Arrays.sort(slots);
+		Sorter sorter = new Sorter(maxlimits);
+		for (int slot : slots) {
+			float scoring = store.dot(slot, distr);
+			sorter.add(store.docid(slot), scoring * scoring / length
+					/ store.norm(slot));
+			if (sorter.size() > maxlimits) {
+				sorter.removeLast();
+			}
+		}
+		return sorter.pickle();
+	}
+
+	/**
+	 * Entries of the reverse index, one per docid in a list, and the
+	 * buckets of the sets holding them.
+	 */
+	public long[] reverseSize() {
+		long entries = 0;
+		long buckets = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				TIntObjectIterator<TIntHashSet> iter = shard.reverseIndexer
+						.iterator();
+				while (iter.hasNext()) {
+					iter.advance();
+					entries += iter.value().size();
+					buckets += iter.value().capacity();
+				}
+			}
+		}
+		return new long[] { entries, buckets };
+	}
+
+	/**
+	 * Whether the clusters behind vnear should be retrained, see
+	 * {@link SimCluster#due()}.
+	 */
+	public boolean retrainDue() {
+		return cluster != null && cluster.due();
+	}
+
+	/**
+	 * Trains new cluster centers on a sample of the documents and lists every
+	 * document under them, CHUNK documents per hold of the read lock, so
+	 * writers wait for a chunk at a time and the old clusters serve queries
+	 * until the new ones are complete. Then estimates their recall.
+	 */
+	public void retrain() {
+		if (cluster == null) {
+			return;
+		}
+		int[] docids = cluster.sample();
+		List<float[]> vectors = new ArrayList<float[]>(docids.length);
+		lock.readLock().lock();
+		try {
+			for (int docid : docids) {
+				if (store.contains(docid)) {
+					vectors.add(store.get(docid));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (vectors.isEmpty()) {
+			return;
+		}
+
+		float[][] sample = vectors.toArray(new float[vectors.size()][]);
+		cluster.begin(cluster.train(sample));
+		try {
+			docids = cluster.docids();
+			for (int chunk = 0; chunk < docids.length; chunk += CHUNK) {
+				int limit = Math.min(docids.length, chunk + CHUNK);
+				lock.readLock().lock();
+				try {
+					for (int i = chunk; i < limit; i++) {
+						if (store.contains(docids[i])) {
+							cluster.reassign(docids[i], store.get(docids[i]));
+						}
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+			cluster.finish();
+		} finally {
+			cluster.abort();
+		}
+		recall = recall(RECALL_QUERIES);
+	}
+
+	/**
+	 * Share of the exact top maxlimits of vnear the clusters find, averaged
+	 * over queries taken from random documents; each query document itself
+	 * is left out of both lists.
+	 *
+	 * @return -1 if the clusters are not trained or there are no documents
+	 */
+	public double recall(int queries) {
+		if (cluster == null || !cluster.trained()) {
+			return -1;
+		}
+		Random random = new Random(queries);
+		int hits = 0;
+		int total = 0;
+		for (int q = 0; q < queries; q++) {// 每个查询持有一次读锁
+			lock.readLock().lock();
+			try {
+				int end = store.size();
+				if (store.live() == 0) {
+					break;
+				}
+				int slot = random.nextInt(end);
+				while (store.deleted(slot)) {
+					slot = random.nextInt(end);
+				}
+				int docid = store.docid(slot);
+				float[] query = store.get(docid);
+				float length = store.norm(slot);
+
+				Sorter exact = new Sorter(maxlimits + 1);
+				for (int other = 0; other < end; other++) {
+					if (store.deleted(other)) {
+						continue;
+					}
+					float scoring = store.dot(other, query);
+					exact.add(store.docid(other), scoring * scoring / length
+							/ store.norm(other));
+					if (exact.size() > maxlimits + 1) {
+						exact.removeLast();
+					}
+				}
+				Sorter found = cluster.retrieve(store, query, maxlimits + 1);
+				for (int tgt : exact.docids()) {
+					if (tgt != docid) {
+						total++;
+						if (found.contains(tgt)) {
+							hits++;
+						}
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		return total == 0 ? -1 : (double) hits / total;
+	}
+
+	/**
+	 * @return the recall estimated after the last training of the clusters,
+	 *         -1 if there was none
+	 */
+	public double recall() {
+		return recall;
+	}
+
+	/**
+	 * @return the number of clusters behind vnear, 0 before the first
+	 *         training and -1 without ivf
+	 */
+	public int clusters() {
+		return cluster == null ? -1 : cluster.clusters();
+	}
+
+	/**
+	 * Bytes held by deleted vectors.
+	 */
+	public long garbage() {
+		lock.readLock().lock();
+		try {
+			return store.garbage();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Share of the slots that are deleted and not yet given back.
+	 */
+	public float garbageRatio() {
+		lock.readLock().lock();
+		try {
+			if (store.size() == 0 || store.garbage() == 0) {
+				return 0f;
+			}
+			return (float) (store.size() - store.live()) / store.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Bytes given back by compactions so far.
+	 */
+	public long reclaimed() {
+		return reclaimed.get();
+	}
+
+	/**
+	 * Advances the in-place compaction by up to count slots: live slots move
+	 * down over the deleted ones, keeping their scan order, and the store
+	 * shrinks once the last slot has been visited. The write lock is held for
+	 * one step only. Like clone it must not run while an add is scanning,
+	 * SimEngine runs every step behind a barrier.
+	 *
+	 * @return true while more steps are needed
+	 */
+	public boolean compact(int count) {
+		lock.writeLock().lock();
+		try {
+			if (moved < 0) {
+				long garbage = store.garbage();
+				VectorStore converted = convert(store);
+				if (converted != null) {// 换存储时的复制已经去掉了删除的槽位
+					store = converted;
+					reclaimed.addAndGet(garbage);
+					return false;
+				}
+				if (garbage == 0) {
+					return false;
+				}
+				int first = 0;
+				while (first < store.size() && !store.deleted(first)) {
+					first++;
+				}
+				moved = first;
+				scanned = first;
+			}
+
+			int limit = Math.min(store.size(), scanned + count);
+			for (int slot = scanned; slot < limit; slot++) {
+				if (!store.deleted(slot)) {
+					store.move(slot, moved++);
+				}
+			}
+			scanned = limit;
+			if (scanned < store.size()) {
+				return true;
+			}
+			reclaimed.addAndGet(store.truncate(moved, loadfactor));
+			moved = -1;
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	public SimTable clone() {
-		SimTable peer = new SimTable(context);
+		SimTable peer;
+		lock.readLock().lock();
+		try {
+			peer = new SimTable(context, compact(store));
+		} finally {
+			lock.readLock().unlock();
+		}
+		peer.index = index;
+		peer.cluster = cluster;
+		peer.recall = recall;
 
 		peer.dimensions = dimensions;
 		peer.current = current;
+		peer.scorer = scorer;
 
-		int cursor = 0, start = 0;
-		TFloatIterator piter = probs.iterator();
-		peer.probs = new TFloatArrayList((int) (probs.size() / loadfactor));
-		while (piter.hasNext()) {
-			float value = piter.next();
-			if (value < 0) {
-				start++;
-				// continue;
-			} else {
-				if (value > 1) {
-					peer.indexer.put((int) value - 1, start);
-					peer.probs.add(value);
-					cursor++;
-					peer.probs.add(piter.next());
-					start = cursor + 1;
-				} else {
-					peer.probs.add(value);
+		for (int i = 0; i < shards.length; i++) {
+			synchronized (shards[i]) {
+				TIntObjectHashMap<Sorter> scores = shards[i].scores;
+				TIntIterator siter = scores.keySet().iterator();
+				while (siter.hasNext()) {
+					Integer docid = siter.next();
+					Sorter thissorter = scores.get(docid);
+					Sorter peersorter = new Sorter(maxlimits);
+					for (int key : thissorter.docids()) {
+						peersorter.add(key, thissorter.get(key));
+					}
+					peersorter.publish();
+					peer.shard(docid).put(docid, peersorter);
+					peer.link(docid, peersorter.docids());
 				}
 			}
-			cursor++;
 		}
 
-		synchronized (scores) {
-			TIntIterator siter = scores.keySet().iterator();
-			while (siter.hasNext()) {
-				Integer docid = siter.next();
-				Sorter thissorter = scores.get(docid);
-				Sorter peersorter = new Sorter(maxlimits);
-				for (int key : thissorter.docids()) {
-					peersorter.add(key, thissorter.get(key));
+		return peer;
+	}
+
+	/**
+	 * Opens a point-in-time image of the table for saving without copying
+	 * it: until the image is released, the store copies aside the pages and
+	 * the shards the Sorters they are about to change. Must be opened while
+	 * no writer is inside the table, SimEngine opens it behind a barrier.
+	 */
+	public Snapshot snapshot() {
+		Snapshot vectors;
+		lock.writeLock().lock();
+		try {
+			vectors = store.snapshot(lock.readLock());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		int count = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.saved = new TIntObjectHashMap<Sorter>();
+				count += shard.scores.size();
+			}
+		}
+		return new Image(current, new HashMap<String, Integer>(dimensions),
+				vectors, count);
+	}
+
+	private class Image implements Snapshot {
+
+		private final String[] current;
+		private final Map<String, Integer> dimensions;
+		private final Snapshot vectors;
+		private final int count;
+
+		Image(String[] current, Map<String, Integer> dimensions,
+				Snapshot vectors, int count) {
+			this.current = current;
+			this.dimensions = dimensions;
+			this.vectors = vectors;
+			this.count = count;
+		}
+
+		public String storage() {
+			return vectors.storage();
+		}
+
+		/**
+		 * Same format as SimTable.write. Every docid of a shard is written
+		 * with its saved Sorter if it has one, otherwise the live Sorter is
+		 * still the one of the snapshot; then come the saved Sorters of the
+		 * docids deleted since.
+		 */
+		public void write(Kryo kryo, Output output) {
+			writeSchema(kryo, output, current, dimensions);
+			kryo.writeObject(output, vectors.storage());
+			vectors.write(kryo, output);
+
+			kryo.writeObject(output, count);
+			Blocks blocks = new Blocks(output);
+			int written = 0;
+			for (Shard shard : shards) {
+				int[] docids;
+				synchronized (shard) {
+					docids = shard.scores.keys();
+				}
+				TIntSet seen = new TIntHashSet(docids.length);
+				for (int docid : docids) {
+					int[] keys;
+					float[] values;
+					synchronized (shard) {
+						Sorter sorter = shard.saved.containsKey(docid) ? shard.saved
+								.get(docid) : shard.scores.get(docid);
+						if (sorter == null) {// 快照之后才加入
+							continue;
+						}
+						keys = sorter.docids();
+						values = sorter.scores();
+					}
+					seen.add(docid);
+					blocks.add(docid, keys, values);
+					written++;
+				}
+
+				List<Sorter> deleted = new ArrayList<Sorter>();
+				TIntList deletedIds = new TIntArrayList();
+				synchronized (shard) {
+					TIntObjectIterator<Sorter> iter = shard.saved.iterator();
+					while (iter.hasNext()) {
+						iter.advance();
+						if (iter.value() != null && !seen.contains(iter.key())) {
+							deletedIds.add(iter.key());
+							deleted.add(iter.value());
+						}
+					}
 				}
-				peer.scores.put(docid, peersorter);
+				for (int i = 0; i < deleted.size(); i++) {
+					Sorter sorter = deleted.get(i);
+					blocks.add(deletedIds.get(i), sorter.docids(),
+							sorter.scores());
+					written++;
+				}
+			}
+			blocks.finish();
+			if (written != count) {
+				throw new SimBaseException("Snapshot wrote " + written
+						+ " score lists, expected " + count);
 			}
 		}
 
-		return peer;
+		public void release() {
+			lock.writeLock().lock();
+			try {
+				vectors.release();
+			} finally {
+				lock.writeLock().unlock();
+			}
+			for (Shard shard : shards) {
+				synchronized (shard) {
+					shard.saved = null;
+				}
+			}
+		}
 	}
 
 	public void reload(SimTable table) {
-		probs = table.probs;
-		indexer = table.indexer;
-		scores = table.scores;
+		lock.writeLock().lock();
+		try {
+			store = table.store;
+			moved = -1;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		for (int i = 0; i < shards.length; i++) {// 克隆使用相同的分片数
+			synchronized (shards[i]) {
+				shards[i].scores = table.shards[i].scores;
+				shards[i].readers = table.shards[i].readers;
+				shards[i].reverseIndexer = table.shards[i].reverseIndexer;
+			}
+		}
 	}
 
 	@Override
 	// 重载序列化代码
 	public void read(Kryo kryo, Input input) {
 		current = kryo.readObject(input, String[].class);
+		int version = 1;
 		int dimsize = kryo.readObject(input, int.class);
+		if (dimsize < 0) {// 新格式在维度数之前写入了负的版本号
+			version = -dimsize;
+			dimsize = kryo.readObject(input, int.class);
+		}
 		while (dimsize > 0) {
 			String key = kryo.readObject(input, String.class);
 			int value = kryo.readObject(input, int.class);
@@ -321,20 +1594,57 @@ public class SimTable implements KryoSerializable {
 			dimsize--;
 		}
 
-		probs = kryo.readObject(input, TFloatArrayList.class);
-		int indexsize = kryo.readObject(input, int.class);
-		while (indexsize > 0) {
-			int key = kryo.readObject(input, int.class);
-			int value = kryo.readObject(input, int.class);
-			indexer.put(key, value);
-			indexsize--;
+		if (version == 1) {
+			restore(readLegacy(kryo, input));
+		} else if (version == 2) {
+			restore(kryo.readObject(input, DenseStore.class));
+		} else {
+			String storage = kryo.readObject(input, String.class);
+			if (storage.equals(store.storage())) {
+				store.read(kryo, input);
+			} else if (storage.equals(DenseStore.STORAGE)) {
+				DenseStore dumped = new DenseStore();
+				dumped.read(kryo, input);
+				restore(dumped);
+			} else if (storage.equals(SparseStore.STORAGE)) {
+				SparseStore dumped = new SparseStore();
+				dumped.read(kryo, input);
+				restore(dumped);
+			} else {
+				throw new SimBaseException("Snapshot was written with "
+						+ storage + " storage, can not load it into "
+						+ store.storage() + " storage");
+			}
+		}
+		if (index != null) {// 索引不落盘，加载时重建
+			for (int slot = 0; slot < store.size(); slot++) {
+				if (!store.deleted(slot)) {
+					int docid = store.docid(slot);
+					index.insert(store, docid, store.get(docid));
+				}
+			}
 		}
+		if (cluster != null) {// 簇也不落盘，加载时重新训练
+			for (int slot = 0; slot < store.size(); slot++) {
+				if (!store.deleted(slot)) {
+					int docid = store.docid(slot);
+					cluster.add(docid, store.get(docid));
+				}
+			}
+			if (cluster.due()) {
+				retrain();
+			}
+		}
+
 		int scoresize = kryo.readObject(input, int.class);
+		if (version >= 4) {
+			readBlocks(input, scoresize);
+			return;
+		}
 		while (scoresize > 0) {
 			Integer docid = kryo.readObject(input, Integer.class);
 			Sorter sorter = null;
 			sorter = new Sorter(maxlimits);
-			scores.put(docid, sorter);
 			int listsize = kryo.readObject(input, int.class);
 			while (listsize > 0) {
 				Integer key = kryo.readObject(input, Integer.class);
@@ -342,43 +1652,214 @@ public class SimTable implements KryoSerializable {
 				sorter.add(key, score);
 				listsize--;
 			}
+			sorter.publish();
+			shard(docid).put(docid, sorter);
+			link(docid, sorter.docids());
 			scoresize--;
 		}
 	}
 
-	@Override
-	public void write(Kryo kryo, Output output) {
+	/**
+	 * 从堆内快照恢复向量；存储类型相同或为auto时直接替换，否则逐个写入当前存储
+	 */
+	private void restore(VectorStore dumped) {
+		if (store.storage().equals(dumped.storage()) || autoStorage) {
+			store = dumped;
+			return;
+		}
+		copy(dumped, store);
+	}
+
+	/**
+	 * 读取旧格式：所有向量存放在一个列表中，每个文档以docid+1和长度的平方结尾
+	 */
+	private DenseStore readLegacy(Kryo kryo, Input input) {
+		TFloatList probs = kryo.readObject(input, TFloatArrayList.class);
+		int indexsize = kryo.readObject(input, int.class);
+		TIntIntMap indexer = new TIntIntHashMap(indexsize);
+		while (indexsize > 0) {
+			int key = kryo.readObject(input, int.class);
+			int value = kryo.readObject(input, int.class);
+			indexer.put(key, value);
+			indexsize--;
+		}
+
+		// 按照在列表中的位置依次放入，保持原有的扫描顺序
+		int[] docids = indexer.keys();
+		long[] order = new long[docids.length];
+		for (int i = 0; i < docids.length; i++) {
+			order[i] = ((long) indexer.get(docids[i]) << 32) | i;
+		}
+		Arrays.sort(order);
+
+		DenseStore legacy = new DenseStore(dimensions.size(),
+				(int) (docids.length / loadfactor) + 1);
+		for (long position : order) {
+			int docid = docids[(int) position];
+			int start = (int) (position >>> 32);
+			int end = start;
+			while (probs.get(end) < 1) {
+				end++;
+			}
+			float[] distr = new float[end - start];
+			for (int i = start; i < end; i++) {
+				distr[i - start] = probs.get(i);
+			}
+			legacy.put(docid, distr);
+		}
+		return legacy;
+	}
+
+	private static void writeSchema(Kryo kryo, Output output,
+			String[] current, Map<String, Integer> dimensions) {
 		kryo.writeObject(output, current);
+		kryo.writeObject(output, -VERSION);
 		kryo.writeObject(output, dimensions.size());
 		for (String key : dimensions.keySet()) {
 			int pos = dimensions.get(key);
 			kryo.writeObject(output, key);
 			kryo.writeObject(output, pos);
 		}
+	}
 
-		kryo.writeObject(output, probs);
+	/**
+	 * 分数列表按块写出，每块最多BLOCK_LISTS个列表，前面写上块的字节数，
+	 * 以长度为0的块结束；块内每个列表是docid、长度、全部docid、全部分数，
+	 * 直接写原始类型而不装箱，加载时各块可以并行解码
+	 */
+	private static class Blocks {
 
-		TIntIntMap indexmap = indexer;
-		kryo.writeObject(output, indexmap.size());
-		for (int key : indexmap.keys()) {
-			int indexscore = indexmap.get(key);
-			kryo.writeObject(output, key);
-			kryo.writeObject(output, indexscore);
+		private final Output output;
+		private final Output block = new Output(4096, -1);
+		private int lists;
+
+		Blocks(Output output) {
+			this.output = output;
+		}
+
+		void add(int docid, int[] keys, float[] values) {
+			block.writeInt(docid, true);
+			block.writeInt(keys.length, true);
+			for (int key : keys) {
+				block.writeInt(key, true);
+			}
+			for (float value : values) {
+				block.writeFloat(value);
+			}
+			if (++lists == BLOCK_LISTS) {
+				emit();
+			}
 		}
 
-		TIntIterator iter = scores.keySet().iterator();
-		kryo.writeObject(output, scores.size());
-		while (iter.hasNext()) {
-			Integer docid = iter.next();
-			kryo.writeObject(output, docid);
-			Sorter sorter = scores.get(docid);
-			kryo.writeObject(output, sorter.size());
-			for (int key : sorter.docids()) {
-				Float score = sorter.get(key);
-				kryo.writeObject(output, key);
-				kryo.writeObject(output, score);
+		private void emit() {
+			if (lists == 0) {
+				return;
+			}
+			output.writeInt(block.position(), true);
+			output.writeBytes(block.getBuffer(), 0, block.position());
+			block.clear();
+			lists = 0;
+		}
+
+		void finish() {
+			emit();
+			output.writeInt(0, true);
+		}
+	}
+
+	/**
+	 * 读入全部分数块，在线程池上并行解码进各自的分片
+	 */
+	private void readBlocks(Input input, int count) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService loader = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "simtable-loader");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			int length;
+			while ((length = input.readInt(true)) > 0) {
+				final byte[] block = input.readBytes(length);
+				futures.add(loader.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return readBlock(new Input(block));
+					}
+				}));
+			}
+			int lists = 0;
+			for (Future<Integer> future : futures) {
+				lists += future.get();
+			}
+			if (lists != count) {
+				throw new SimBaseException("Snapshot holds " + lists
+						+ " score lists, expected " + count);
+			}
+		} catch (InterruptedException e) {
+			throw new SimBaseException(e);
+		} catch (ExecutionException e) {
+			throw new SimBaseException(e.getCause());
+		} finally {
+			loader.shutdown();
+		}
+	}
+
+	private int readBlock(Input block) {
+		int lists = 0;
+		while (block.position() < block.limit()) {
+			int docid = block.readInt(true);
+			int length = block.readInt(true);
+			int[] keys = new int[length];
+			for (int i = 0; i < length; i++) {
+				keys[i] = block.readInt(true);
+			}
+			Sorter sorter = new Sorter(maxlimits);
+			float[] values = new float[length];
+			for (int i = 0; i < length; i++) {
+				values[i] = block.readFloat();
+			}
+			for (int i = length - 1; i >= 0; i--) {// 倒序加入，分数相同的保持原来的先后
+				sorter.add(keys[i], values[i]);
+			}
+			sorter.publish();
+			Shard shard = shard(docid);
+			synchronized (shard) {
+				shard.put(docid, sorter);
+			}
+			link(docid, sorter.docids());
+			lists++;
+		}
+		return lists;
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output) {
+		writeSchema(kryo, output, current, dimensions);
+
+		kryo.writeObject(output, store.storage());
+		store.write(kryo, output);
+
+		int scoresize = 0;
+		for (Shard shard : shards) {
+			scoresize += shard.scores.size();
+		}
+		kryo.writeObject(output, scoresize);
+		Blocks blocks = new Blocks(output);
+		for (Shard shard : shards) {
+			TIntIterator iter = shard.scores.keySet().iterator();
+			while (iter.hasNext()) {
+				int docid = iter.next();
+				Sorter sorter = shard.scores.get(docid);
+				blocks.add(docid, sorter.docids(), sorter.scores());
 			}
 		}
+		blocks.finish();
 
 	}
 }
@@ -0,0 +1,515 @@
+package com.guokr.simbase;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Log of the writes to one key, appended by the writer threads before a write
+ * is applied and replayed on top of the last dump at startup. The records go
+ * to numbered segment files in a directory; a save rotates to a new segment
+ * behind its barrier and drops the older ones once the dump is on disk.
+ *
+ * A record is its length, the command and a CRC32 of the command, so a
+ * record torn by a crash is told apart from garbage: at the end of the newest
+ * segment it is cut off, anywhere else it fails the replay. Every write is
+ * logged as given, replaying one twice leaves the table as it was.
+ */
+public class WriteAheadLog {
+
+	public static final String EXTENSION = ".wal";
+	public static final String ALWAYS = "always";
+	public static final String NEVER = "never";
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(WriteAheadLog.class);
+
+	private static final String SEGMENT = ".log";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long FLUSH_INTERVAL = 1000;
+
+	private static final byte ADD = 1;
+	private static final byte APPEND = 2;
+	private static final byte DELETE = 3;
+	private static final byte REVISE = 4;
+
+	private final File dir;
+	private final boolean always;
+	private final boolean force;
+	private final long segmentSize;
+	private final Object syncLock = new Object();
+	private final Output record = new Output(256, -1);
+	private final CRC32 crc = new CRC32();
+	private Timer timer;
+
+	private int segment;
+	private FileOutputStream file;
+	private Output output;
+	private long segmentBytes;
+	private long appended;// 以下由this保护
+	private long records;
+	private long synced;// 由syncLock保护
+	private long syncs;
+
+	/**
+	 * @param sync
+	 *            always to fsync before a write is applied, writers logging
+	 *            at the same time share one fsync; never to leave it to the
+	 *            OS; or the period of a background fsync in ms
+	 */
+	public WriteAheadLog(File dir, Object sync, long segmentSize) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		long interval;
+		if (ALWAYS.equals(sync)) {
+			always = true;
+			force = true;
+			interval = 0;
+		} else if (NEVER.equals(sync)) {
+			always = false;
+			force = false;
+			interval = FLUSH_INTERVAL;
+		} else if (sync instanceof Number && ((Number) sync).longValue() > 0) {
+			always = false;
+			force = true;
+			interval = ((Number) sync).longValue();
+		} else {
+			throw new SimBaseException("Unknown walSync policy: " + sync
+					+ ", expected always, never or a period in ms");
+		}
+
+		dir.mkdirs();
+		int[] segments = segments();
+		segment = segments.length == 0 ? 1 : segments[segments.length - 1] + 1;
+		open();
+
+		if (interval > 0) {
+			timer = new Timer("simengine-wal-" + dir.getName(), true);
+			timer.schedule(new TimerTask() {
+				public void run() {
+					try {
+						sync(sequence());
+					} catch (Throwable e) {
+						logger.error("Write-ahead log sync error", e);
+					}
+				}
+			}, interval, interval);
+		}
+	}
+
+	private String name(int number) {
+		return String.format("%010d", number) + SEGMENT;
+	}
+
+	/**
+	 * Numbers of the segment files, in ascending order.
+	 */
+	private int[] segments() {
+		TIntList numbers = new TIntArrayList();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(SEGMENT)) {
+					try {
+						numbers.add(Integer.parseInt(name.substring(0,
+								name.length() - SEGMENT.length())));
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring " + name + " in " + dir);
+					}
+				}
+			}
+		}
+		int[] sorted = numbers.toArray();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private void open() {
+		try {
+			file = new FileOutputStream(new File(dir, name(segment)));
+			output = new Output(file, BUFFER_SIZE);
+			segmentBytes = 0;
+		} catch (IOException e) {
+			throw new SimBaseException(e);
+		}
+	}
+
+	private synchronized long sequence() {
+		return appended;
+	}
+
+	public void add(int docid, float[] distr) {
+		long lsn;
+		synchronized (this) {
+			writeAdd(docid, distr);
+			lsn = appended;
+		}
+		commit(lsn);
+	}
+
+	/**
+	 * Logs a batch of adds with a single commit.
+	 */
+	public void add(int[] docids, float[][] distrs) {
+		long lsn;
+		synchronized (this) {
+			for (int i = 0; i < docids.length; i++) {
+				writeAdd(docids[i], distrs[i]);
+			}
+			lsn = appended;
+		}
+		commit(lsn);
+	}
+
+	private void writeAdd(int docid, float[] distr) {
+		record.clear();
+		record.writeByte(ADD);
+		record.writeInt(docid);
+		record.writeInt(distr.length);
+		for (float val : distr) {
+			record.writeFloat(val);
+		}
+		append();
+	}
+
+	public void append(int docid, Object[] pairs) {
+		long lsn;
+		synchronized (this) {
+			record.clear();
+			record.writeByte(APPEND);
+			record.writeInt(docid);
+			record.writeInt(pairs.length / 2);
+			for (int i = 0; i < pairs.length - 1; i += 2) {
+				record.writeString((String) pairs[i]);
+				record.writeFloat((Float) pairs[i + 1]);
+			}
+			lsn = append();
+		}
+		commit(lsn);
+	}
+
+	public void delete(int docid) {
+		long lsn;
+		synchronized (this) {
+			record.clear();
+			record.writeByte(DELETE);
+			record.writeInt(docid);
+			lsn = append();
+		}
+		commit(lsn);
+	}
+
+	public void revise(String[] schema) {
+		long lsn;
+		synchronized (this) {
+			record.clear();
+			record.writeByte(REVISE);
+			record.writeInt(schema.length);
+			for (String dim : schema) {
+				record.writeString(dim);
+			}
+			lsn = append();
+		}
+		commit(lsn);
+	}
+
+	private long append() {
+		int length = record.position();
+		crc.reset();
+		crc.update(record.getBuffer(), 0, length);
+		output.writeInt(length);
+		output.writeBytes(record.getBuffer(), 0, length);
+		output.writeInt((int) crc.getValue());
+		segmentBytes += length + 8;
+		records++;
+		return ++appended;
+	}
+
+	private void commit(long lsn) {
+		if (always) {
+			sync(lsn);
+		}
+	}
+
+	/**
+	 * Writes out everything appended up to lsn, unless a concurrent call
+	 * already did; the one fsync then covers the records of every writer
+	 * that appended meanwhile.
+	 */
+	private void sync(long lsn) {
+		synchronized (syncLock) {
+			if (synced >= lsn) {
+				return;
+			}
+			long upto;
+			FileOutputStream target;
+			boolean full;
+			synchronized (this) {
+				output.flush();
+				upto = appended;
+				target = file;
+				full = segmentBytes >= segmentSize;
+			}
+			try {
+				if (force) {
+					target.getChannel().force(false);
+					syncs++;
+				}
+			} catch (IOException e) {
+				throw new SimBaseException(e);
+			}
+			synced = upto;
+			if (full) {
+				rotate();
+			}
+		}
+	}
+
+	/**
+	 * Closes the current segment and starts a new one.
+	 *
+	 * @return the number of the new segment; every record appended before
+	 *         the call is in a lower one
+	 */
+	public int rotate() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				try {
+					output.flush();
+					file.getChannel().force(false);
+					output.close();
+				} catch (IOException e) {
+					throw new SimBaseException(e);
+				}
+				synced = appended;
+				segment++;
+				open();
+				return segment;
+			}
+		}
+	}
+
+	/**
+	 * Deletes the segments below mark, once a dump holds their writes.
+	 */
+	public void truncate(int mark) {
+		for (int number : segments()) {
+			if (number < mark && !new File(dir, name(number)).delete()) {
+				logger.warn("Could not delete " + name(number) + " in " + dir);
+			}
+		}
+	}
+
+	/**
+	 * Applies the segments older than the current one to the table. Adds of
+	 * new docids in a row are rescored together, batch at a time, with
+	 * {@link SimTable#addBatch}; updates are applied one by one.
+	 *
+	 * Only the newest of them can end with a record torn by a crash; it is
+	 * cut off there so the segment is clean for the next startup. A bad
+	 * record in an older segment fails the replay, the writes after it and
+	 * in the later segments would otherwise be applied without it.
+	 *
+	 * @return the number of writes replayed
+	 */
+	public long replay(SimTable table, int batch) {
+		TIntList older = new TIntArrayList();
+		for (int number : segments()) {
+			if (number < segment) {
+				older.add(number);
+			}
+		}
+		long replayed = 0;
+		for (int i = 0; i < older.size(); i++) {
+			replayed += replay(table, Math.max(batch, 1), older.get(i),
+					i == older.size() - 1);
+		}
+		return replayed;
+	}
+
+	private long replay(SimTable table, int batch, int number, boolean newest) {
+		File source = new File(dir, name(number));
+		Pending pending = new Pending(table, batch);
+		CRC32 check = new CRC32();
+		long replayed = 0;
+		long valid = 0;// 最后一条完整记录之后的位置
+		Input input = null;
+		try {
+			input = new Input(new FileInputStream(source), BUFFER_SIZE);
+			long size = source.length();
+			while (valid < size) {// Kryo 2.21的eof()在流结束后仍返回false
+				int length = input.readInt();
+				if (length <= 0 || length > source.length()) {
+					throw new KryoException("Bad record length " + length);
+				}
+				byte[] command = input.readBytes(length);
+				int expected = input.readInt();
+				check.reset();
+				check.update(command, 0, length);
+				if ((int) check.getValue() != expected) {
+					throw new KryoException("CRC mismatch");
+				}
+				apply(new Input(command), pending);
+				replayed++;
+				valid = input.total();
+			}
+		} catch (KryoException e) {
+			if (!newest) {
+				throw new SimBaseException("Write-ahead log " + source
+						+ " has a bad record after " + replayed
+						+ " writes, but later segments follow it: "
+						+ e.getMessage());
+			}
+			// 崩溃时写了一半的记录，其后不再有效
+			logger.warn("Write-ahead log " + source
+					+ " ends with a torn record after " + replayed
+					+ " writes, cutting it off: " + e.getMessage());
+			input.close();
+			input = null;
+			cut(source, valid);
+		} catch (IOException e) {
+			throw new SimBaseException(e);
+		} finally {
+			if (input != null) {
+				input.close();
+			}
+		}
+		pending.flush();
+		return replayed;
+	}
+
+	private void cut(File source, long length) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(source, "rw");
+			try {
+				file.setLength(length);
+				file.getChannel().force(false);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			throw new SimBaseException(e);
+		}
+	}
+
+	private void apply(Input command, Pending pending) {
+		byte op = command.readByte();
+		if (op == ADD) {
+			int docid = command.readInt();
+			float[] distr = new float[command.readInt()];
+			for (int i = 0; i < distr.length; i++) {
+				distr[i] = command.readFloat();
+			}
+			pending.add(docid, distr);
+			return;
+		}
+		pending.flush();
+		SimTable table = pending.table;
+		if (op == APPEND) {
+			int docid = command.readInt();
+			Object[] pairs = new Object[2 * command.readInt()];
+			for (int i = 0; i < pairs.length; i += 2) {
+				pairs[i] = command.readString();
+				pairs[i + 1] = command.readFloat();
+			}
+			table.append(docid, pairs);
+		} else if (op == DELETE) {
+			table.delete(command.readInt());
+		} else if (op == REVISE) {
+			String[] schema = new String[command.readInt()];
+			for (int i = 0; i < schema.length; i++) {
+				schema[i] = command.readString();
+			}
+			table.revise(schema);
+		} else {
+			throw new KryoException("Unknown write-ahead log record " + op);
+		}
+	}
+
+	public synchronized long records() {
+		return records;
+	}
+
+	public long syncs() {
+		synchronized (syncLock) {
+			return syncs;
+		}
+	}
+
+	public void close() {
+		if (timer != null) {
+			timer.cancel();
+		}
+		synchronized (syncLock) {
+			synchronized (this) {
+				try {
+					output.flush();
+					if (force) {
+						file.getChannel().force(false);
+					}
+					output.close();
+				} catch (IOException e) {
+					throw new SimBaseException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds of new docids read in a row, waiting to be applied as one batch.
+	 */
+	private static class Pending {
+
+		private final SimTable table;
+		private final int batch;
+		private final TIntList docids = new TIntArrayList();
+		private final List<float[]> distrs = new ArrayList<float[]>();
+
+		Pending(SimTable table, int batch) {
+			this.table = table;
+			this.batch = batch;
+		}
+
+		void add(int docid, float[] distr) {
+			if (table.contains(docid)) {// 水位线只升不降，更新要按原来的顺序逐个打分
+				flush();
+				table.add(docid, distr);
+				return;
+			}
+			docids.add(docid);
+			distrs.add(distr);
+			if (docids.size() >= batch) {
+				flush();
+			}
+		}
+
+		void flush() {
+			if (docids.isEmpty()) {
+				return;
+			}
+			table.addBatch(docids.toArray(),
+					distrs.toArray(new float[distrs.size()][]));
+			docids.clear();
+			distrs.clear();
+		}
+	}
+
+}
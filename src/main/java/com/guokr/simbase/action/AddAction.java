@@ -48,23 +48,18 @@ public class AddAction implements Action {
 
 		Add cmd = new Add();
 
+		// 直接从原始字节解析，不再为每个分量创建String
 		Multiple multiple = (Multiple) payload;
-		Payload<?>[] items = multiple.data();
+		assert (multiple.stringAt(0).equals(ACTION));
 
-		Bytes actionBytes = (Bytes) items[0];
-		assert (new String(actionBytes.data()).equals(ACTION));
+		cmd.key = multiple.stringAt(1);
 
-		Bytes keyBytes = (Bytes) items[1];
-		cmd.key = new String(keyBytes.data());
+		cmd.docid = multiple.intAt(2);
 
-		Bytes docidBytes = (Bytes) items[2];
-		cmd.docid = Integer.parseInt(new String(docidBytes.data()));
-
-		int size = items.length - 3;
+		int size = multiple.size() - 3;
 		float[] array = new float[size];
 		for (int i = 0; i < size; i++) {
-			Bytes floatBytes = (Bytes) items[i + 3];
-			array[i] = Float.parseFloat(new String(floatBytes.data()));
+			array[i] = multiple.floatAt(i + 3);
 		}
 		cmd.distr = array;
 
@@ -1,11 +1,12 @@
 package com.guokr.simbase.action;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Map;
 
 import org.wahlque.net.action.Action;
 import org.wahlque.net.action.ActionException;
 import org.wahlque.net.action.Command;
-import org.wahlque.net.server.Server.ServerThread;
 import org.wahlque.net.transport.Payload;
 
 public class ExitAction implements Action {
@@ -24,7 +25,14 @@ public class ExitAction implements Action {
 
 	public Payload<?> apply(Map<String, Object> context, Payload<?> data)
 			throws ActionException {
-		((ServerThread) Thread.currentThread()).closeSession();
+		Closeable connection = (Closeable) context.get("connection");
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				throw new ActionException(e.getMessage());
+			}
+		}
 		return null;
 	}
 
@@ -0,0 +1,93 @@
+package com.guokr.simbase.action;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.wahlque.net.action.Action;
+import org.wahlque.net.action.ActionException;
+import org.wahlque.net.action.Command;
+import org.wahlque.net.transport.Payload;
+import org.wahlque.net.transport.payload.Bytes;
+import org.wahlque.net.transport.payload.Multiple;
+
+import com.guokr.simbase.SimBase;
+import com.guokr.simbase.command.MultiAdd;
+import com.guokr.simbase.reply.OK;
+
+public class MultiAddAction implements Action {
+
+	public static final String ACTION = "vmadd";
+
+	public Multiple payload(Map<String, Object> context, Command command)
+			throws ActionException {
+
+		MultiAdd cmd = (MultiAdd) command;
+
+		int width = cmd.docids.length == 0 ? 0 : cmd.distrs[0].length;
+		Bytes[] value = new Bytes[3 + cmd.docids.length * (width + 1)];
+
+		value[0] = new Bytes(ACTION.getBytes());
+
+		value[1] = new Bytes(cmd.key.getBytes());
+
+		ByteBuffer bb = ByteBuffer.allocate(4);
+		bb.putInt(cmd.docids.length);
+		value[2] = new Bytes(bb.array());
+
+		int i = 2;
+		for (int n = 0; n < cmd.docids.length; n++) {
+			bb = ByteBuffer.allocate(4);
+			bb.putInt(cmd.docids[n]);
+			value[++i] = new Bytes(bb.array());
+			for (float component : cmd.distrs[n]) {
+				bb = ByteBuffer.allocate(4);
+				bb.putFloat(component);
+				value[++i] = new Bytes(bb.array());
+			}
+		}
+
+		return new Multiple(value);
+	}
+
+	public Command command(Map<String, Object> context, Payload<?> payload)
+			throws ActionException {
+
+		MultiAdd cmd = new MultiAdd();
+
+		Multiple multiple = (Multiple) payload;
+		assert (multiple.stringAt(0).equals(ACTION));
+
+		cmd.key = multiple.stringAt(1);
+
+		int count = multiple.intAt(2);
+
+		// 每个文档占docid加上相同数目的分量
+		int rest = multiple.size() - 3;
+		if (count <= 0 || rest % count != 0 || rest / count < 2) {
+			throw new ActionException("vmadd expects " + count
+					+ " documents of the same width");
+		}
+		int size = rest / count - 1;
+
+		cmd.docids = new int[count];
+		cmd.distrs = new float[count][size];
+		int pos = 3;
+		for (int n = 0; n < count; n++) {
+			cmd.docids[n] = multiple.intAt(pos++);
+			for (int i = 0; i < size; i++) {
+				cmd.distrs[n][i] = multiple.floatAt(pos++);
+			}
+		}
+
+		return cmd;
+	}
+
+	public Payload<?> apply(Map<String, Object> context, Payload<?> data)
+			throws ActionException {
+		MultiAdd cmd = (MultiAdd) command(context, data);
+		((SimBase) context.get("simbase")).addBatch(cmd.key, cmd.docids,
+				cmd.distrs);
+		return new OK();
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.guokr.simbase.action;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.wahlque.net.action.Action;
+import org.wahlque.net.action.ActionException;
+import org.wahlque.net.action.Command;
+import org.wahlque.net.transport.Payload;
+import org.wahlque.net.transport.payload.Bytes;
+import org.wahlque.net.transport.payload.Multiple;
+
+import com.guokr.simbase.SimBase;
+import com.guokr.simbase.command.Nearby;
+import com.guokr.simbase.reply.Result;
+
+public class NearbyAction implements Action {
+
+	public static final String ACTION = "vnear";
+
+	public Multiple payload(Map<String, Object> context, Command command)
+			throws ActionException {
+
+		Nearby cmd = (Nearby) command;
+
+		Bytes[] value = new Bytes[cmd.distr.length + 2];
+
+		value[0] = new Bytes(ACTION.getBytes());
+
+		value[1] = new Bytes(cmd.key.getBytes());
+
+		int i = 1;
+		for (float component : cmd.distr) {
+			ByteBuffer bb = ByteBuffer.allocate(4);
+			bb.putFloat(component);
+			value[++i] = new Bytes(bb.array());
+		}
+
+		return new Multiple(value);
+	}
+
+	public Command command(Map<String, Object> context, Payload<?> payload)
+			throws ActionException {
+
+		Nearby cmd = new Nearby();
+
+		Multiple multiple = (Multiple) payload;
+		assert (multiple.stringAt(0).equals(ACTION));
+
+		cmd.key = multiple.stringAt(1);
+
+		int size = multiple.size() - 2;
+		float[] array = new float[size];
+		for (int i = 0; i < size; i++) {
+			array[i] = multiple.floatAt(i + 2);
+		}
+		cmd.distr = array;
+
+		return cmd;
+	}
+
+	public Payload<?> apply(Map<String, Object> context, Payload<?> data)
+			throws ActionException {
+		String[] result;
+		if (context == null) {
+			result = new String[0];
+		} else {
+			Nearby cmd = (Nearby) command(context, data);
+			result = ((SimBase) context.get("simbase")).nearby(cmd.key,
+					cmd.distr);
+		}
+		return new Result(result);
+	}
+}
@@ -58,14 +58,14 @@ public class RecommendAction implements Action {
 
 	public Payload<?> apply(Map<String, Object> context, Payload<?> data)
 			throws ActionException {
-		int[] result;
+		Payload<?> result;
 		if (context == null) {
-			result = new int[0];
+			result = new Result(new int[0]);
 		} else {
 			Recommend cmd = (Recommend) command(context, data);
-			result = ((SimBase) context.get("simbase")).recommend(cmd.key,
+			result = ((SimBase) context.get("simbase")).recommendReply(cmd.key,
 					cmd.docid);
 		}
-		return new Result(result);
+		return result;
 	}
 }
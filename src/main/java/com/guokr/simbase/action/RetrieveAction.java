@@ -58,14 +58,14 @@ public class RetrieveAction implements Action {
 
 	public Payload<?> apply(Map<String, Object> context, Payload<?> data)
 			throws ActionException {
-		String[] result;
+		Payload<?> result;
 		if (context == null) {
-			result = new String[0];
+			result = new Result(new String[0]);
 		} else {
 			Get cmd = (Get) command(context, data);
-			result = ((SimBase) context.get("simbase")).retrieve(cmd.key,
+			result = ((SimBase) context.get("simbase")).retrieveReply(cmd.key,
 					cmd.docid);
 		}
-		return new Result(result);
+		return result;
 	}
 }
@@ -0,0 +1,62 @@
+package com.guokr.simbase.action;
+
+import java.util.Map;
+
+import org.wahlque.net.action.Action;
+import org.wahlque.net.action.ActionException;
+import org.wahlque.net.action.Command;
+import org.wahlque.net.transport.Payload;
+import org.wahlque.net.transport.payload.Bytes;
+import org.wahlque.net.transport.payload.Multiple;
+
+import com.guokr.simbase.SimBase;
+import com.guokr.simbase.command.Stats;
+import com.guokr.simbase.reply.Result;
+
+public class StatsAction implements Action {
+
+	public static final String ACTION = "vstats";
+
+	public Payload<?> payload(Map<String, Object> context, Command command)
+			throws ActionException {
+
+		Stats cmd = (Stats) command;
+
+		Bytes[] value = new Bytes[2];
+
+		value[0] = new Bytes(ACTION.getBytes());
+
+		value[1] = new Bytes(cmd.key.getBytes());
+
+		return new Multiple(value);
+	}
+
+	public Command command(Map<String, Object> context, Payload<?> payload)
+			throws ActionException {
+
+		Stats cmd = new Stats();
+
+		Multiple multiple = (Multiple) payload;
+		Payload<?>[] items = multiple.data();
+
+		Bytes actionBytes = (Bytes) items[0];
+		assert (new String(actionBytes.data()).equals(ACTION));
+
+		Bytes keyBytes = (Bytes) items[1];
+		cmd.key = new String(keyBytes.data());
+
+		return cmd;
+	}
+
+	public Payload<?> apply(Map<String, Object> context, Payload<?> data)
+			throws ActionException {
+		String[] result;
+		if (context == null) {
+			result = new String[0];
+		} else {
+			Stats cmd = (Stats) command(context, data);
+			result = ((SimBase) context.get("simbase")).stats(cmd.key);
+		}
+		return new Result(result);
+	}
+}
@@ -0,0 +1,16 @@
+package com.guokr.simbase.command;
+
+import org.wahlque.net.action.Command;
+
+public class MultiAdd implements Command {
+
+	public String key;
+	public int[] docids;
+	public float[][] distrs;
+	
+	@Override
+	public String actionName() {
+		return "vmadd";
+	}
+
+}
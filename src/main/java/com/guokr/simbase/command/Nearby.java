@@ -0,0 +1,15 @@
+package com.guokr.simbase.command;
+
+import org.wahlque.net.action.Command;
+
+public class Nearby implements Command {
+
+	public String key;
+	public float[] distr;
+	
+	@Override
+	public String actionName() {
+		return "vnear";
+	}
+
+}
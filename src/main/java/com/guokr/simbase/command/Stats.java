@@ -0,0 +1,14 @@
+package com.guokr.simbase.command;
+
+import org.wahlque.net.action.Command;
+
+public class Stats implements Command {
+
+	public String key;
+
+	@Override
+	public String actionName() {
+		return "vstats";
+	}
+
+}
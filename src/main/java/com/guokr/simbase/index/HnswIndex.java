@@ -0,0 +1,425 @@
+package com.guokr.simbase.index;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.Random;
+
+import com.guokr.simbase.store.VectorStore;
+import com.guokr.simbase.util.Kernel;
+import com.guokr.simbase.util.Sorter;
+
+/**
+ * Hierarchical navigable small world graph over the documents of a
+ * VectorStore. Nodes are keyed by docid and vectors are always read from the
+ * store passed in, so the graph survives compaction of the store.
+ *
+ * Similarity is the same squared cosine SimTable keeps in its Sorter lists.
+ */
+public class HnswIndex {
+
+	private final int m;
+	private final int maxM0;
+	private final int efConstruction;
+	private final int efSearch;
+	private final double levelMultiplier;
+	private final Random random = new Random(7654);
+
+	private TIntObjectHashMap<Node> nodes = new TIntObjectHashMap<Node>();
+	private Node entry;
+
+	public HnswIndex(int m, int efConstruction, int efSearch) {
+		this.m = m;
+		this.maxM0 = 2 * m;
+		this.efConstruction = efConstruction;
+		this.efSearch = efSearch;
+		this.levelMultiplier = 1 / Math.log(m);
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	public synchronized boolean contains(int docid) {
+		return nodes.containsKey(docid);
+	}
+
+	/**
+	 * Links the document into the graph; the vector must already be in the
+	 * store.
+	 *
+	 * @return the efConstruction nearest documents met on the bottom layer
+	 */
+	public synchronized Sorter insert(VectorStore store, int docid,
+			float[] vector) {
+		float length = Kernel.norm(vector);
+		int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+		Node node = new Node(docid, level);
+
+		Sorter nearest = new Sorter(efConstruction);
+		if (entry == null) {
+			nodes.put(docid, node);
+			entry = node;
+			return nearest;
+		}
+
+		Heap found = new Heap(false);
+		found.push(entry.docid, similarity(store, vector, length, entry.docid));
+		for (int l = entry.level; l > level; l--) {
+			found = greedy(store, vector, length, found, l);
+		}
+		for (int l = Math.min(level, entry.level); l >= 0; l--) {
+			found = searchLayer(store, vector, length, found, efConstruction, l);
+			Heap best = found.copy(true);
+			for (int i = 0; i < m && best.size() > 0; i++) {
+				int neighbor = best.peekId();
+				float sim = best.peekKey();
+				best.pop();
+				node.link(l, neighbor, sim, l == 0 ? maxM0 : m);
+				nodes.get(neighbor).link(l, docid, sim, l == 0 ? maxM0 : m);
+			}
+		}
+
+		nodes.put(docid, node);
+		if (level > entry.level) {
+			entry = node;
+		}
+
+		while (found.size() > 0) {
+			nearest.add(found.peekId(), found.peekKey());
+			found.pop();
+		}
+		return nearest;
+	}
+
+	/**
+	 * Unlinks the document and reconnects its former neighbours among each
+	 * other; must be called before the vector leaves the store.
+	 */
+	public synchronized void remove(VectorStore store, int docid) {
+		Node node = nodes.remove(docid);
+		if (node == null) {
+			return;
+		}
+
+		for (int l = 0; l <= node.level; l++) {
+			int capacity = l == 0 ? maxM0 : m;
+			for (int i = 0; i < node.counts[l]; i++) {
+				Node neighbor = nodes.get(node.links[l][i]);
+				if (neighbor == null || neighbor.level < l) {
+					continue;
+				}
+				neighbor.unlink(l, docid);
+
+				float[] vector = store.get(neighbor.docid);
+				float length = Kernel.norm(vector);
+				for (int j = 0; j < node.counts[l]; j++) {
+					int other = node.links[l][j];
+					if (other != neighbor.docid && nodes.containsKey(other)
+							&& !neighbor.linked(l, other)) {
+						neighbor.link(l, other,
+								similarity(store, vector, length, other),
+								capacity);
+					}
+				}
+			}
+		}
+
+		if (entry == node) {
+			entry = null;
+			for (Node candidate : nodes.valueCollection()) {
+				if (entry == null || candidate.level > entry.level) {
+					entry = candidate;
+				}
+			}
+		}
+	}
+
+	public Sorter search(VectorStore store, float[] query, int k) {
+		return search(store, query, k, efSearch);
+	}
+
+	/**
+	 * @return the k most similar documents, ordered like a Sorter
+	 */
+	public synchronized Sorter search(VectorStore store, float[] query,
+			int k, int ef) {
+		Sorter result = new Sorter(k);
+		if (entry == null) {
+			return result;
+		}
+
+		float length = Kernel.norm(query);
+		Heap found = new Heap(false);
+		found.push(entry.docid, similarity(store, query, length, entry.docid));
+		for (int l = entry.level; l > 0; l--) {
+			found = greedy(store, query, length, found, l);
+		}
+		found = searchLayer(store, query, length, found, Math.max(ef, k), 0);
+
+		while (found.size() > 0) {
+			result.add(found.peekId(), found.peekKey());
+			if (result.size() > k) {
+				result.removeLast();
+			}
+			found.pop();
+		}
+		return result;
+	}
+
+	private Heap greedy(VectorStore store, float[] query, float length,
+			Heap from, int level) {
+		int current = from.peekId();
+		float best = from.peekKey();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Node node = nodes.get(current);
+			if (node == null || node.level < level) {
+				break;
+			}
+			for (int i = 0; i < node.counts[level]; i++) {
+				int neighbor = node.links[level][i];
+				if (!reachable(neighbor, level)) {
+					continue;
+				}
+				float sim = similarity(store, query, length, neighbor);
+				if (sim > best) {
+					best = sim;
+					current = neighbor;
+					changed = true;
+				}
+			}
+		}
+		Heap result = new Heap(false);
+		result.push(current, best);
+		return result;
+	}
+
+	/**
+	 * Beam search on one layer.
+	 *
+	 * @return a min-heap holding the ef best documents found
+	 */
+	private Heap searchLayer(VectorStore store, float[] query, float length,
+			Heap entries, int ef, int level) {
+		TIntHashSet visited = new TIntHashSet();
+		Heap candidates = entries.copy(true);
+		Heap results = entries.copy(false);
+		for (int i = 0; i < entries.size; i++) {
+			visited.add(entries.ids[i]);
+		}
+		while (results.size() > ef) {
+			results.pop();
+		}
+
+		while (candidates.size() > 0) {
+			int current = candidates.peekId();
+			float sim = candidates.peekKey();
+			if (results.size() >= ef && sim < results.peekKey()) {
+				break;
+			}
+			candidates.pop();
+
+			Node node = nodes.get(current);
+			if (node == null || node.level < level) {
+				continue;
+			}
+			for (int i = 0; i < node.counts[level]; i++) {
+				int neighbor = node.links[level][i];
+				if (!visited.add(neighbor) || !reachable(neighbor, level)) {
+					continue;
+				}
+				float nsim = similarity(store, query, length, neighbor);
+				if (results.size() < ef || nsim > results.peekKey()) {
+					candidates.push(neighbor, nsim);
+					results.push(neighbor, nsim);
+					if (results.size() > ef) {
+						results.pop();
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Links left behind by removed or re-inserted documents are skipped.
+	 */
+	private boolean reachable(int docid, int level) {
+		Node node = nodes.get(docid);
+		return node != null && node.level >= level;
+	}
+
+	private static float similarity(VectorStore store, float[] query,
+			float length, int docid) {
+		int slot = store.slot(docid);
+		float scoring = store.dot(slot, query);
+		return scoring * scoring / length / store.norm(slot);
+	}
+
+	private static class Node {
+
+		private final int docid;
+		private final int level;
+		private final int[][] links;
+		private final float[][] sims;
+		private final int[] counts;
+
+		Node(int docid, int level) {
+			this.docid = docid;
+			this.level = level;
+			this.links = new int[level + 1][];
+			this.sims = new float[level + 1][];
+			this.counts = new int[level + 1];
+			for (int l = 0; l <= level; l++) {
+				links[l] = new int[4];
+				sims[l] = new float[4];
+			}
+		}
+
+		boolean linked(int level, int docid) {
+			for (int i = 0; i < counts[level]; i++) {
+				if (links[level][i] == docid) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Adds a link, replacing the least similar one when the layer is full.
+		 */
+		void link(int level, int docid, float sim, int capacity) {
+			int count = counts[level];
+			if (count < capacity) {
+				if (count == links[level].length) {
+					int grown = Math.min(capacity, count * 2);
+					int[] ltmp = new int[grown];
+					float[] stmp = new float[grown];
+					System.arraycopy(links[level], 0, ltmp, 0, count);
+					System.arraycopy(sims[level], 0, stmp, 0, count);
+					links[level] = ltmp;
+					sims[level] = stmp;
+				}
+				links[level][count] = docid;
+				sims[level][count] = sim;
+				counts[level] = count + 1;
+				return;
+			}
+
+			int worst = 0;
+			for (int i = 1; i < count; i++) {
+				if (sims[level][i] < sims[level][worst]) {
+					worst = i;
+				}
+			}
+			if (sim > sims[level][worst]) {
+				links[level][worst] = docid;
+				sims[level][worst] = sim;
+			}
+		}
+
+		void unlink(int level, int docid) {
+			int count = counts[level];
+			for (int i = 0; i < count; i++) {
+				if (links[level][i] == docid) {
+					links[level][i] = links[level][count - 1];
+					sims[level][i] = sims[level][count - 1];
+					counts[level] = count - 1;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binary heap of (docid, similarity) pairs.
+	 */
+	private static class Heap {
+
+		private final boolean max;// true时堆顶为最相似的文档
+		private int[] ids = new int[16];
+		private float[] keys = new float[16];
+		private int size;
+
+		Heap(boolean max) {
+			this.max = max;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int peekId() {
+			return ids[0];
+		}
+
+		float peekKey() {
+			return keys[0];
+		}
+
+		Heap copy(boolean max) {
+			Heap heap = new Heap(max);
+			for (int i = 0; i < size; i++) {
+				heap.push(ids[i], keys[i]);
+			}
+			return heap;
+		}
+
+		private boolean before(float a, float b) {
+			return max ? a > b : a < b;
+		}
+
+		void push(int id, float key) {
+			if (size == ids.length) {
+				int[] itmp = new int[size * 2];
+				float[] ktmp = new float[size * 2];
+				System.arraycopy(ids, 0, itmp, 0, size);
+				System.arraycopy(keys, 0, ktmp, 0, size);
+				ids = itmp;
+				keys = ktmp;
+			}
+			int pos = size++;
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				if (!before(key, keys[parent])) {
+					break;
+				}
+				ids[pos] = ids[parent];
+				keys[pos] = keys[parent];
+				pos = parent;
+			}
+			ids[pos] = id;
+			keys[pos] = key;
+		}
+
+		void pop() {
+			size--;
+			if (size == 0) {
+				return;
+			}
+			int id = ids[size];
+			float key = keys[size];
+			int pos = 0;
+			while (true) {
+				int child = 2 * pos + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && before(keys[child + 1], keys[child])) {
+					child++;
+				}
+				if (!before(keys[child], key)) {
+					break;
+				}
+				ids[pos] = ids[child];
+				keys[pos] = keys[child];
+				pos = child;
+			}
+			ids[pos] = id;
+			keys[pos] = key;
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.guokr.simbase.reply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.wahlque.net.transport.Payload;
+import org.wahlque.net.transport.Reply;
+
+/**
+ * A reply serialized once and written out as is, byte for byte what the
+ * wrapped reply would have written.
+ */
+public class Encoded implements Reply<byte[]> {
+
+	private final char discriminator;
+	private final byte[] value;
+
+	public Encoded(Payload<?> reply) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			reply.write(bytes);
+		} catch (IOException e) {// 写入内存不会出错
+			throw new IllegalStateException(e);
+		}
+		this.discriminator = reply.discriminator();
+		this.value = bytes.toByteArray();
+	}
+
+	public char discriminator() {
+		return discriminator;
+	}
+
+	public byte[] data() {
+		return value;
+	}
+
+	public void read(InputStream is) throws IOException {
+		throw new UnsupportedOperationException("Encoded replies are only written");
+	}
+
+	public void write(OutputStream os) throws IOException {
+		os.write(value);
+	}
+
+}
@@ -0,0 +1,500 @@
+package com.guokr.simbase.store;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.Lock;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.SimBaseException;
+import com.guokr.simbase.util.Kernel;
+
+/**
+ * Dense vectors stored with a fixed stride: slot i occupies
+ * data[i * dimensions, (i + 1) * dimensions). Docids and squared norms live in
+ * their own columns and deletes only set a tombstone bit, so a scan is a tight
+ * loop over contiguous floats. A third column keeps the length of each vector
+ * past its first split components, which bounds the rest of a dot product
+ * once the first split are summed.
+ */
+public class DenseStore implements VectorStore {
+
+	public static final String STORAGE = "heap";
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int PAGE = 256;// 快照按页复制，每页的槽位数
+	private static final int CHUNK = 1024;// 写快照时每次持有锁的槽位数
+
+	private int dimensions;
+	private int capacity;
+	private int size;// 已分配的槽位数，包含已删除的槽位
+
+	private float[] data;
+	private int[] docids;
+	private float[] norms;
+	private float[] tails;// split之后分量的长度，未平方
+	private int split;
+	private BitSet tombstones = new BitSet();
+	private TIntIntMap indexer = new TIntIntHashMap();
+	private Frozen frozen;// 打开的快照，修改槽位之前先把所在的页复制给它
+
+	public DenseStore() {
+		this(0, INITIAL_CAPACITY);
+	}
+
+	public DenseStore(int dimensions) {
+		this(dimensions, INITIAL_CAPACITY);
+	}
+
+	public DenseStore(int dimensions, int capacity) {
+		this.dimensions = dimensions;
+		this.capacity = Math.max(capacity, 1);
+		this.data = new float[this.capacity * dimensions];
+		this.docids = new int[this.capacity];
+		this.norms = new float[this.capacity];
+		this.tails = new float[this.capacity];
+		this.split = split(dimensions);
+	}
+
+	/**
+	 * Half the stride, in whole runs of eight for Kernel; 0, never giving up
+	 * on a dot product, below 16 dimensions.
+	 */
+	private static int split(int dimensions) {
+		return (dimensions / 2) & ~7;
+	}
+
+	/**
+	 * @return the length of the components of the vector from the given one on
+	 */
+	private static float length(float[] vector, int from) {
+		float sum = 0;
+		for (int i = from; i < vector.length; i++) {
+			sum += vector[i] * vector[i];
+		}
+		return (float) Math.sqrt(sum);
+	}
+
+	public String storage() {
+		return STORAGE;
+	}
+
+	public int dimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * Number of allocated slots, deleted ones included; scans run over
+	 * [0, size()).
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int live() {
+		return indexer.size();
+	}
+
+	public boolean contains(int docid) {
+		return indexer.containsKey(docid);
+	}
+
+	public int slot(int docid) {
+		return indexer.containsKey(docid) ? indexer.get(docid) : -1;
+	}
+
+	public int docid(int slot) {
+		return docids[slot];
+	}
+
+	public float norm(int slot) {
+		return norms[slot];
+	}
+
+	public boolean deleted(int slot) {
+		return tombstones.get(slot);
+	}
+
+	/**
+	 * Stores the vector in place when the docid is known, otherwise appends a
+	 * new slot. Shorter vectors are padded with zeros, longer ones widen the
+	 * stride of the whole store.
+	 *
+	 * @return the slot of the document
+	 */
+	public int put(int docid, float[] vector) {
+		if (vector.length > dimensions) {
+			resize(vector.length);
+		}
+
+		int slot;
+		if (indexer.containsKey(docid)) {
+			slot = indexer.get(docid);
+			preserve(slot);
+		} else {
+			if (size == capacity) {
+				grow(capacity * 2);
+			}
+			slot = size++;
+			docids[slot] = docid;
+			indexer.put(docid, slot);
+		}
+
+		int base = slot * dimensions;
+		System.arraycopy(vector, 0, data, base, vector.length);
+		Arrays.fill(data, base + vector.length, base + dimensions, 0f);
+		norms[slot] = Kernel.norm(vector);
+		tails[slot] = length(vector, split);
+
+		return slot;
+	}
+
+	public boolean remove(int docid) {
+		if (!indexer.containsKey(docid)) {
+			return false;
+		}
+		int slot = indexer.remove(docid);
+		preserve(slot);
+		tombstones.set(slot);
+		return true;
+	}
+
+	public float[] get(int docid) {
+		if (!indexer.containsKey(docid)) {
+			return null;
+		}
+		int base = indexer.get(docid) * dimensions;
+		return Arrays.copyOfRange(data, base, base + dimensions);
+	}
+
+	/**
+	 * Dot product between a stored slot and a vector no longer than the stride.
+	 */
+	public float dot(int slot, float[] vector) {
+		return Kernel.dot(vector, data, slot * dimensions);
+	}
+
+	public float tail(float[] vector) {
+		return split == 0 ? 0f : length(vector, split);
+	}
+
+	/**
+	 * Gives up after the first split components, if the query has as many,
+	 * when they fall short of floor even with tail times the length of the
+	 * rest of the slot added.
+	 */
+	public float dot(int slot, float[] vector, float tail, float floor) {
+		if (split == 0 || !(floor > 0)) {
+			return dot(slot, vector);
+		}
+		return Kernel.dot(vector, data, slot * dimensions, split, tail
+				* tails[slot], floor);
+	}
+
+	/**
+	 * Widens every stored vector to the given stride, padding with zeros.
+	 */
+	public void resize(int newDimensions) {
+		if (newDimensions <= dimensions) {
+			return;
+		}
+		float[] resized = new float[capacity * newDimensions];
+		for (int slot = 0; slot < size; slot++) {
+			System.arraycopy(data, slot * dimensions, resized, slot
+					* newDimensions, dimensions);
+		}
+		data = resized;
+		dimensions = newDimensions;
+		split = split(dimensions);
+		for (int slot = 0; slot < size; slot++) {// 分界点移动，重新计算
+			tails[slot] = tail(slot);
+		}
+	}
+
+	private float tail(int slot) {
+		int base = slot * dimensions;
+		float sum = 0;
+		for (int i = base + split; i < base + dimensions; i++) {
+			sum += data[i] * data[i];
+		}
+		return (float) Math.sqrt(sum);
+	}
+
+	public float density() {
+		long nonzeros = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				int base = slot * dimensions;
+				for (int i = base; i < base + dimensions; i++) {
+					if (data[i] != 0) {
+						nonzeros++;
+					}
+				}
+			}
+		}
+		long total = (long) live() * dimensions;
+		return total == 0 ? 1f : (float) nonzeros / total;
+	}
+
+	private void grow(int newCapacity) {
+		data = Arrays.copyOf(data, newCapacity * dimensions);
+		docids = Arrays.copyOf(docids, newCapacity);
+		norms = Arrays.copyOf(norms, newCapacity);
+		tails = Arrays.copyOf(tails, newCapacity);
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Copies the live slots, in slot order, into a new store with some
+	 * headroom determined by the loadfactor.
+	 */
+	public DenseStore compact(double loadfactor) {
+		int live = live();
+		DenseStore peer = new DenseStore(dimensions,
+				(int) (live / loadfactor) + 1);
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				peer.copy(this, slot);
+			}
+		}
+		return peer;
+	}
+
+	public long garbage() {
+		return (long) (size - live()) * slotBytes();
+	}
+
+	private long slotBytes() {
+		return 4L * dimensions + 12;// 向量加上docid、norm和tail
+	}
+
+	public void move(int from, int to) {
+		preserve(from);
+		preserve(to);
+		System.arraycopy(data, from * dimensions, data, to * dimensions,
+				dimensions);
+		docids[to] = docids[from];
+		norms[to] = norms[from];
+		tails[to] = tails[from];
+		indexer.put(docids[to], to);
+		tombstones.clear(to);
+		tombstones.set(from);
+	}
+
+	public long truncate(int newSize, double loadfactor) {
+		long dropped = (long) (size - newSize) * slotBytes();
+		for (int page = newSize / PAGE; page * PAGE < size; page++) {
+			preserve(page * PAGE);
+		}
+		tombstones.clear(newSize, Math.max(size, newSize));
+		size = newSize;
+		int target = Math.max(INITIAL_CAPACITY, (int) (size / loadfactor) + 1);
+		if (capacity > target) {
+			grow(target);
+		}
+		return dropped;
+	}
+
+	public void flush() {
+	}
+
+	/**
+	 * Opens a snapshot that copies a page of PAGE slots aside the first time
+	 * one of them changes. A wider stride needs no copy, the snapshot only
+	 * reads the leading components. lock guards the store and is held by the
+	 * snapshot while it reads.
+	 */
+	public Snapshot snapshot(Lock lock) {
+		if (frozen != null) {
+			throw new SimBaseException("A snapshot of the store is already open");
+		}
+		frozen = new Frozen(lock);
+		return frozen;
+	}
+
+	private void preserve(int slot) {
+		if (frozen != null && slot < frozen.size) {
+			frozen.save(slot / PAGE);
+		}
+	}
+
+	private class Frozen implements Snapshot {
+
+		private final Lock lock;
+		private final int size;
+		private final int dimensions;
+		private final int live;
+		private final TIntObjectHashMap<Page> pages = new TIntObjectHashMap<Page>();
+
+		Frozen(Lock lock) {
+			this.lock = lock;
+			this.size = DenseStore.this.size;
+			this.dimensions = DenseStore.this.dimensions;
+			this.live = live();
+		}
+
+		void save(int page) {
+			if (!pages.containsKey(page)) {
+				pages.put(page, new Page(page));
+			}
+		}
+
+		public String storage() {
+			return STORAGE;
+		}
+
+		public void release() {
+			frozen = null;
+		}
+
+		public void write(Kryo kryo, Output output) {
+			kryo.writeObject(output, dimensions);
+			new Pass(live) {
+				void slot(Page page, int slot, Output output) {
+					output.writeInt(page == null ? docids[slot]
+							: page.docids[slot - page.from], false);
+				}
+			}.write(kryo, output);
+			new Pass(live) {
+				void slot(Page page, int slot, Output output) {
+					output.writeFloat(page == null ? norms[slot]
+							: page.norms[slot - page.from]);
+				}
+			}.write(kryo, output);
+			new Pass(live * dimensions) {
+				void slot(Page page, int slot, Output output) {
+					float[] vectors = page == null ? data : page.data;
+					int stride = page == null ? DenseStore.this.dimensions
+							: dimensions;
+					int base = (page == null ? slot : slot - page.from)
+							* stride;
+					for (int i = base; i < base + dimensions; i++) {
+						output.writeFloat(vectors[i]);
+					}
+				}
+			}.write(kryo, output);
+		}
+
+		/**
+		 * One column of the live slots as they were, read CHUNK slots at a
+		 * time under the lock.
+		 */
+		private abstract class Pass extends StreamedArray {
+
+			Pass(int length) {
+				super(length);
+			}
+
+			abstract void slot(Page page, int slot, Output output);
+
+			void values(Output output) {
+				for (int chunk = 0; chunk < size; chunk += CHUNK) {
+					int limit = Math.min(size, chunk + CHUNK);
+					lock.lock();
+					try {
+						for (int slot = chunk; slot < limit; slot++) {
+							Page page = pages.get(slot / PAGE);
+							boolean deleted = page == null ? tombstones
+									.get(slot) : page.tombstones.get(slot
+									- page.from);
+							if (!deleted) {
+								slot(page, slot, output);
+							}
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy of the slots of a page as they were when the snapshot was opened.
+	 */
+	private class Page {
+
+		private final int from;
+		private final int[] docids;
+		private final float[] norms;
+		private final BitSet tombstones;
+		private final float[] data;
+
+		Page(int page) {
+			int stride = frozen.dimensions;
+			from = page * PAGE;
+			int to = Math.min(frozen.size, from + PAGE);
+			docids = Arrays.copyOfRange(DenseStore.this.docids, from, to);
+			norms = Arrays.copyOfRange(DenseStore.this.norms, from, to);
+			tombstones = DenseStore.this.tombstones.get(from, to);
+			data = new float[(to - from) * stride];
+			for (int slot = from; slot < to; slot++) {
+				System.arraycopy(DenseStore.this.data, slot * dimensions, data,
+						(slot - from) * stride, stride);
+			}
+		}
+	}
+
+	private void copy(DenseStore from, int slot) {
+		int target = size++;
+		System.arraycopy(from.data, slot * dimensions, data, target
+				* dimensions, dimensions);
+		docids[target] = from.docids[slot];
+		norms[target] = from.norms[slot];
+		tails[target] = from.tails[slot];
+		indexer.put(docids[target], target);
+	}
+
+	@Override
+	public void read(Kryo kryo, Input input) {
+		dimensions = kryo.readObject(input, int.class);
+		int[] ids = kryo.readObject(input, int[].class);
+		float[] lengths = kryo.readObject(input, float[].class);
+		float[] vectors = kryo.readObject(input, float[].class);
+
+		size = ids.length;
+		capacity = Math.max(size, 1);
+		docids = Arrays.copyOf(ids, capacity);
+		norms = Arrays.copyOf(lengths, capacity);
+		data = Arrays.copyOf(vectors, capacity * dimensions);
+		tails = new float[capacity];
+		split = split(dimensions);
+		for (int slot = 0; slot < size; slot++) {
+			tails[slot] = tail(slot);
+		}
+		tombstones = new BitSet();
+		indexer = new TIntIntHashMap(capacity);
+		for (int slot = 0; slot < size; slot++) {
+			indexer.put(docids[slot], slot);
+		}
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output) {
+		int live = live();
+		int[] ids = new int[live];
+		float[] lengths = new float[live];
+		float[] vectors = new float[live * dimensions];
+		int target = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				ids[target] = docids[slot];
+				lengths[target] = norms[slot];
+				System.arraycopy(data, slot * dimensions, vectors, target
+						* dimensions, dimensions);
+				target++;
+			}
+		}
+
+		kryo.writeObject(output, dimensions);
+		kryo.writeObject(output, ids);
+		kryo.writeObject(output, lengths);
+		kryo.writeObject(output, vectors);
+	}
+
+}
@@ -0,0 +1,593 @@
+package com.guokr.simbase.store;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.SimBaseException;
+import com.guokr.simbase.util.Kernel;
+
+/**
+ * Vectors kept off-heap in memory-mapped segment files under a directory, so
+ * the heap only holds the docid index and the tombstones. The files are the
+ * persisted state: reopening a directory only rebuilds the index from the
+ * docid and flag columns.
+ *
+ * Each segment file holds a fixed number of slots laid out as
+ * [docids][norms][flags][vectors]; store.meta records the stride, the slots
+ * per segment and the number of allocated slots.
+ *
+ * A dump holds the stride and the live vectors, so loading one rebuilds the
+ * files as they were when it was taken.
+ */
+public class MappedStore implements VectorStore {
+
+	public static final String STORAGE = "mapped";
+
+	private static final int MAGIC = 0x53494d42;// "SIMB"
+	private static final int META_SIZE = 16;
+	private static final int MAX_SEGMENT_FLOATS = 1 << 28;// 每个段文件最大1GB
+	private static final int MAX_SEGMENT_SLOTS = 1 << 16;
+
+	private static final int LIVE = 0;
+	private static final int DELETED = 1;
+
+	private static final int PAGE = 256;// 快照按页复制，每页的槽位数
+	private static final int CHUNK = 1024;// 写快照时每次持有锁的槽位数
+
+	private final File dir;
+	private MappedByteBuffer meta;
+	private int dimensions;
+	private int segmentSlots;
+	private int size;
+
+	private List<Segment> segments = new ArrayList<Segment>();
+	private BitSet tombstones = new BitSet();
+	private TIntIntMap indexer = new TIntIntHashMap();
+	private Frozen frozen;// 打开的快照，修改槽位之前先把所在的页复制给它
+
+	public MappedStore(File dir) {
+		this.dir = dir;
+		try {
+			if (!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("Can not create " + dir);
+			}
+			File metaFile = new File(dir, "store.meta");
+			boolean exists = metaFile.exists();
+			meta = map(metaFile, META_SIZE);
+			if (exists && meta.getInt(0) == MAGIC) {
+				dimensions = meta.getInt(4);
+				segmentSlots = meta.getInt(8);
+				size = meta.getInt(12);
+				open();
+			} else {
+				dimensions = 0;
+				segmentSlots = segmentSlots(0);
+				size = 0;
+				meta.putInt(0, MAGIC);
+				sync();
+			}
+		} catch (IOException e) {
+			throw new SimBaseException(e);
+		}
+	}
+
+	private static int segmentSlots(int dimensions) {
+		return Math.max(1,
+				Math.min(MAX_SEGMENT_SLOTS, MAX_SEGMENT_FLOATS / (dimensions + 3)));
+	}
+
+	private static MappedByteBuffer map(File file, long length)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// 映射在通道关闭之后依然有效
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void sync() {
+		meta.putInt(4, dimensions);
+		meta.putInt(8, segmentSlots);
+		meta.putInt(12, size);
+	}
+
+	private void open() throws IOException {
+		int count = (size + segmentSlots - 1) / segmentSlots;
+		for (int i = 0; i < count; i++) {
+			segments.add(new Segment(i, dimensions, segmentSlots));
+		}
+		for (int slot = 0; slot < size; slot++) {
+			Segment segment = segments.get(slot / segmentSlots);
+			int local = slot % segmentSlots;
+			if (segment.flags.get(local) == DELETED) {
+				tombstones.set(slot);
+			} else {
+				indexer.put(segment.docids.get(local), slot);
+			}
+		}
+	}
+
+	public String storage() {
+		return STORAGE;
+	}
+
+	public int dimensions() {
+		return dimensions;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int live() {
+		return indexer.size();
+	}
+
+	public boolean contains(int docid) {
+		return indexer.containsKey(docid);
+	}
+
+	public int slot(int docid) {
+		return indexer.containsKey(docid) ? indexer.get(docid) : -1;
+	}
+
+	public int docid(int slot) {
+		return segments.get(slot / segmentSlots).docids.get(slot % segmentSlots);
+	}
+
+	public float norm(int slot) {
+		return segments.get(slot / segmentSlots).norms.get(slot % segmentSlots);
+	}
+
+	public boolean deleted(int slot) {
+		return tombstones.get(slot);
+	}
+
+	/**
+	 * Stores the vector in place when the docid is known, otherwise appends a
+	 * new slot. As in DenseStore deleted slots are only given back by a
+	 * compaction, so slots are scanned in the same order as on the heap.
+	 */
+	public int put(int docid, float[] vector) {
+		if (vector.length > dimensions) {
+			resize(vector.length);
+		}
+
+		int slot;
+		if (indexer.containsKey(docid)) {
+			slot = indexer.get(docid);
+		} else {
+			slot = size;
+			if (slot == segments.size() * segmentSlots) {
+				segments.add(segment(segments.size()));
+			}
+			size++;
+			sync();
+			indexer.put(docid, slot);
+		}
+		preserve(slot);// 新槽位也可能是截断之前快照里的
+
+		Segment segment = segments.get(slot / segmentSlots);
+		int local = slot % segmentSlots;
+		int base = local * dimensions;
+		for (int i = 0; i < vector.length; i++) {
+			segment.vectors.put(base + i, vector[i]);
+		}
+		for (int i = vector.length; i < dimensions; i++) {
+			segment.vectors.put(base + i, 0f);
+		}
+		segment.docids.put(local, docid);
+		segment.norms.put(local, Kernel.norm(vector));
+		segment.flags.put(local, LIVE);
+
+		return slot;
+	}
+
+	private Segment segment(int index) {
+		try {
+			return new Segment(index, dimensions, segmentSlots);
+		} catch (IOException e) {
+			throw new SimBaseException(e);
+		}
+	}
+
+	public boolean remove(int docid) {
+		if (!indexer.containsKey(docid)) {
+			return false;
+		}
+		int slot = indexer.remove(docid);
+		preserve(slot);
+		segments.get(slot / segmentSlots).flags.put(slot % segmentSlots,
+				DELETED);
+		tombstones.set(slot);
+		return true;
+	}
+
+	public float[] get(int docid) {
+		if (!indexer.containsKey(docid)) {
+			return null;
+		}
+		int slot = indexer.get(docid);
+		FloatBuffer vectors = segments.get(slot / segmentSlots).vectors;
+		int base = (slot % segmentSlots) * dimensions;
+		float[] result = new float[dimensions];
+		for (int i = 0; i < dimensions; i++) {
+			result[i] = vectors.get(base + i);
+		}
+		return result;
+	}
+
+	public float dot(int slot, float[] vector) {
+		FloatBuffer vectors = segments.get(slot / segmentSlots).vectors;
+		return Kernel.dot(vector, vectors, (slot % segmentSlots) * dimensions);
+	}
+
+	public float tail(float[] vector) {
+		return 0f;
+	}
+
+	/**
+	 * Always the whole dot product; the mapped files keep no partial norms.
+	 */
+	public float dot(int slot, float[] vector, float tail, float floor) {
+		return dot(slot, vector);
+	}
+
+	public float density() {
+		long nonzeros = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				FloatBuffer vectors = segments.get(slot / segmentSlots).vectors;
+				int base = (slot % segmentSlots) * dimensions;
+				for (int i = base; i < base + dimensions; i++) {
+					if (vectors.get(i) != 0) {
+						nonzeros++;
+					}
+				}
+			}
+		}
+		long total = (long) live() * dimensions;
+		return total == 0 ? 1f : (float) nonzeros / total;
+	}
+
+	/**
+	 * Rewrites every segment with the wider stride. The new files are written
+	 * aside and renamed over the old ones.
+	 */
+	public void resize(int newDimensions) {
+		if (newDimensions <= dimensions) {
+			return;
+		}
+		try {
+			int newSlots = segmentSlots(newDimensions);
+			int count = (size + newSlots - 1) / newSlots;
+			List<Segment> resized = new ArrayList<Segment>(count);
+			for (int i = 0; i < count; i++) {
+				resized.add(new Segment(file(i, ".tmp"), newDimensions,
+						newSlots));
+			}
+			for (int slot = 0; slot < size; slot++) {
+				Segment from = segments.get(slot / segmentSlots);
+				int local = slot % segmentSlots;
+				Segment to = resized.get(slot / newSlots);
+				int target = slot % newSlots;
+				to.docids.put(target, from.docids.get(local));
+				to.norms.put(target, from.norms.get(local));
+				to.flags.put(target, from.flags.get(local));
+				for (int i = 0; i < dimensions; i++) {
+					to.vectors.put(target * newDimensions + i,
+							from.vectors.get(local * dimensions + i));
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				resized.get(i).buffer.force();
+				if (!file(i, ".tmp").renameTo(file(i, ".seg"))) {
+					throw new IOException("Can not replace " + file(i, ".seg"));
+				}
+			}
+			for (int i = count; i < segments.size(); i++) {
+				file(i, ".seg").delete();
+			}
+
+			segments = resized;
+			dimensions = newDimensions;
+			segmentSlots = newSlots;
+			sync();
+			meta.force();
+		} catch (IOException e) {
+			throw new SimBaseException(e);
+		}
+	}
+
+	/**
+	 * The files are compacted in place, through move and truncate; there is
+	 * no copy to make.
+	 */
+	public MappedStore compact(double loadfactor) {
+		return this;
+	}
+
+	public long garbage() {
+		return (long) (size - live()) * slotBytes();
+	}
+
+	private long slotBytes() {
+		return 4L * (dimensions + 3);// 向量加上docid、norm和flag
+	}
+
+	/**
+	 * A step of the in-place compaction, the only way deleted slots are
+	 * given back.
+	 */
+	public void move(int from, int to) {
+		preserve(from);
+		preserve(to);
+		Segment source = segments.get(from / segmentSlots);
+		int local = from % segmentSlots;
+		Segment target = segments.get(to / segmentSlots);
+		int slot = to % segmentSlots;
+		for (int i = 0; i < dimensions; i++) {
+			target.vectors.put(slot * dimensions + i,
+					source.vectors.get(local * dimensions + i));
+		}
+		int docid = source.docids.get(local);
+		target.docids.put(slot, docid);
+		target.norms.put(slot, source.norms.get(local));
+		target.flags.put(slot, LIVE);
+		source.flags.put(local, DELETED);
+		indexer.put(docid, to);
+		tombstones.clear(to);
+		tombstones.set(from);
+	}
+
+	/**
+	 * Drops the slots from newSize on and deletes the segment files left
+	 * without any; the files are never shrunk below a segment.
+	 */
+	public long truncate(int newSize, double loadfactor) {
+		long dropped = (long) (size - newSize) * slotBytes();
+		for (int page = newSize / PAGE; page * PAGE < size; page++) {
+			preserve(page * PAGE);
+		}
+		tombstones.clear(newSize, Math.max(size, newSize));
+		size = newSize;
+		sync();
+		int count = (size + segmentSlots - 1) / segmentSlots;
+		while (segments.size() > count) {
+			int last = segments.size() - 1;
+			segments.remove(last);
+			file(last, ".seg").delete();
+		}
+		return dropped;
+	}
+
+	public void flush() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+		meta.force();
+	}
+
+	/**
+	 * Opens a snapshot that copies a page of PAGE slots aside the first time
+	 * one of them changes, as DenseStore does. A wider stride needs no copy,
+	 * the snapshot only reads the leading components. lock guards the store
+	 * and is held by the snapshot while it reads.
+	 */
+	public Snapshot snapshot(Lock lock) {
+		if (frozen != null) {
+			throw new SimBaseException("A snapshot of the store is already open");
+		}
+		frozen = new Frozen(lock);
+		return frozen;
+	}
+
+	private void preserve(int slot) {
+		if (frozen != null && slot < frozen.size) {
+			frozen.save(slot / PAGE);
+		}
+	}
+
+	private void slot(Output output, int slot, int dimensions) {
+		Segment segment = segments.get(slot / segmentSlots);
+		int local = slot % segmentSlots;
+		output.writeInt(segment.docids.get(local));
+		int base = local * this.dimensions;
+		for (int i = base; i < base + dimensions; i++) {
+			output.writeFloat(segment.vectors.get(i));
+		}
+	}
+
+	private class Frozen implements Snapshot {
+
+		private final Lock lock;
+		private final int size;
+		private final int dimensions;
+		private final int live;
+		private final TIntObjectHashMap<Page> pages = new TIntObjectHashMap<Page>();
+
+		Frozen(Lock lock) {
+			this.lock = lock;
+			this.size = MappedStore.this.size;
+			this.dimensions = MappedStore.this.dimensions;
+			this.live = live();
+		}
+
+		void save(int page) {
+			if (!pages.containsKey(page)) {
+				pages.put(page, new Page(page));
+			}
+		}
+
+		public String storage() {
+			return STORAGE;
+		}
+
+		public void release() {
+			frozen = null;
+		}
+
+		/**
+		 * The live slots as they were, read CHUNK slots at a time under the
+		 * lock.
+		 */
+		public void write(Kryo kryo, Output output) {
+			kryo.writeObject(output, dimensions);
+			output.writeInt(live, true);
+			for (int chunk = 0; chunk < size; chunk += CHUNK) {
+				int limit = Math.min(size, chunk + CHUNK);
+				lock.lock();
+				try {
+					for (int slot = chunk; slot < limit; slot++) {
+						Page page = pages.get(slot / PAGE);
+						if (page == null) {
+							if (!tombstones.get(slot)) {
+								slot(output, slot, dimensions);
+							}
+						} else if (!page.tombstones.get(slot - page.from)) {
+							page.write(output, slot - page.from);
+						}
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy of the slots of a page as they were when the snapshot was opened.
+	 */
+	private class Page {
+
+		private final int from;
+		private final int stride;
+		private final int[] docids;
+		private final BitSet tombstones;
+		private final float[] data;
+
+		Page(int page) {
+			stride = frozen.dimensions;
+			from = page * PAGE;
+			int to = Math.min(frozen.size, from + PAGE);
+			docids = new int[to - from];
+			tombstones = MappedStore.this.tombstones.get(from, to);
+			data = new float[(to - from) * stride];
+			for (int slot = from; slot < to; slot++) {
+				Segment segment = segments.get(slot / segmentSlots);
+				int local = slot % segmentSlots;
+				docids[slot - from] = segment.docids.get(local);
+				for (int i = 0; i < stride; i++) {
+					data[(slot - from) * stride + i] = segment.vectors.get(local
+							* dimensions + i);
+				}
+			}
+		}
+
+		void write(Output output, int index) {
+			output.writeInt(docids[index]);
+			for (int i = index * stride; i < (index + 1) * stride; i++) {
+				output.writeFloat(data[i]);
+			}
+		}
+	}
+
+	private File file(int index, String suffix) {
+		return new File(dir, "vectors." + index + suffix);
+	}
+
+	/**
+	 * Replaces the files with the vectors of the dump; the slots are given
+	 * out again in the order of the dump.
+	 */
+	@Override
+	public void read(Kryo kryo, Input input) {
+		int dumped = kryo.readObject(input, int.class);
+		int live = input.readInt(true);
+		reset(dumped);
+		float[] vector = new float[dumped];
+		for (int i = 0; i < live; i++) {
+			int docid = input.readInt();
+			for (int j = 0; j < dumped; j++) {
+				vector[j] = input.readFloat();
+			}
+			put(docid, vector);
+		}
+		flush();
+	}
+
+	private void reset(int newDimensions) {
+		for (int i = 0; i < segments.size(); i++) {
+			file(i, ".seg").delete();
+		}
+		segments.clear();
+		tombstones.clear();
+		indexer.clear();
+		size = 0;
+		dimensions = newDimensions;
+		segmentSlots = segmentSlots(newDimensions);
+		sync();
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output) {
+		kryo.writeObject(output, dimensions);
+		output.writeInt(live(), true);
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				slot(output, slot, dimensions);
+			}
+		}
+	}
+
+	private class Segment {
+
+		private final MappedByteBuffer buffer;
+		private final IntBuffer docids;
+		private final FloatBuffer norms;
+		private final IntBuffer flags;
+		private final FloatBuffer vectors;
+
+		Segment(int index, int dimensions, int slots) throws IOException {
+			this(file(index, ".seg"), dimensions, slots);
+		}
+
+		Segment(File file, int dimensions, int slots) throws IOException {
+			long columns = 4L * slots;
+			buffer = map(file, 3 * columns + columns * dimensions);
+			docids = slice(0, columns).asIntBuffer();
+			norms = slice(columns, columns).asFloatBuffer();
+			flags = slice(2 * columns, columns).asIntBuffer();
+			vectors = slice(3 * columns, columns * dimensions).asFloatBuffer();
+		}
+
+		private ByteBuffer slice(long offset, long length) {
+			buffer.limit((int) (offset + length));
+			buffer.position((int) offset);
+			ByteBuffer view = buffer.slice();
+			buffer.clear();
+			return view;
+		}
+	}
+
+}
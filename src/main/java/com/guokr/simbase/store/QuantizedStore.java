@@ -0,0 +1,292 @@
+package com.guokr.simbase.store;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.SimBaseException;
+import com.guokr.simbase.util.Kernel;
+
+/**
+ * Int8 codes of the vectors of another store, one byte per component plus a
+ * per-vector scale, so component i is about codes[i] * scale. The codes stay
+ * on the heap and serve approximate scans; the backing store keeps the full
+ * precision vectors and docids, and answers dot() exactly. The norms are
+ * mirrored next to the codes so an approximate scan never touches the
+ * backing store; with a MappedStore behind it only those take heap space.
+ *
+ * Slots are those of the backing store.
+ */
+public class QuantizedStore implements VectorStore {
+
+	public static final String STORAGE = "int8";
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final VectorStore backing;
+	private int dimensions;
+	private int capacity;
+
+	private byte[] codes;
+	private float[] scales;
+	private float[] norms;
+
+	public QuantizedStore(VectorStore backing) {
+		this(backing, Math.max(backing.size(), INITIAL_CAPACITY));
+		requantize();
+	}
+
+	private QuantizedStore(VectorStore backing, int capacity) {
+		this.backing = backing;
+		this.dimensions = backing.dimensions();
+		this.capacity = Math.max(capacity, 1);
+		this.codes = new byte[this.capacity * dimensions];
+		this.scales = new float[this.capacity];
+		this.norms = new float[this.capacity];
+	}
+
+	/**
+	 * Quantizes the vector symmetrically around 0 into codes, which must be
+	 * at least as long as the vector.
+	 *
+	 * @return the scale of the codes, 0 for a zero vector
+	 */
+	public static float quantize(float[] vector, byte[] codes, int offset) {
+		float max = 0;
+		for (float val : vector) {
+			max = Math.max(max, Math.abs(val));
+		}
+		if (max == 0) {
+			Arrays.fill(codes, offset, offset + vector.length, (byte) 0);
+			return 0;
+		}
+		float scale = max / 127;
+		for (int i = 0; i < vector.length; i++) {
+			codes[offset + i] = (byte) Math.round(vector[i] / scale);
+		}
+		return scale;
+	}
+
+	public VectorStore backing() {
+		return backing;
+	}
+
+	/**
+	 * Dot product between the codes of a stored slot and the codes of a
+	 * query quantized with {@link #quantize}; off by the rounding of both.
+	 */
+	public float approximate(int slot, byte[] query, float scale) {
+		return Kernel.dot(query, codes, slot * dimensions) * scale
+				* scales[slot];
+	}
+
+	public String storage() {
+		return STORAGE;
+	}
+
+	public int dimensions() {
+		return dimensions;
+	}
+
+	public int size() {
+		return backing.size();
+	}
+
+	public int live() {
+		return backing.live();
+	}
+
+	public boolean contains(int docid) {
+		return backing.contains(docid);
+	}
+
+	public int slot(int docid) {
+		return backing.slot(docid);
+	}
+
+	public int docid(int slot) {
+		return backing.docid(slot);
+	}
+
+	public float norm(int slot) {
+		return norms[slot];
+	}
+
+	public boolean deleted(int slot) {
+		return backing.deleted(slot);
+	}
+
+	public int put(int docid, float[] vector) {
+		if (vector.length > dimensions) {
+			resize(vector.length);
+		}
+		int slot = backing.put(docid, vector);
+		if (slot >= capacity) {
+			grow(Math.max(capacity * 2, slot + 1));
+		}
+		int base = slot * dimensions;
+		scales[slot] = quantize(vector, codes, base);
+		norms[slot] = backing.norm(slot);
+		Arrays.fill(codes, base + vector.length, base + dimensions, (byte) 0);
+		return slot;
+	}
+
+	public boolean remove(int docid) {
+		return backing.remove(docid);
+	}
+
+	public float[] get(int docid) {
+		return backing.get(docid);
+	}
+
+	/**
+	 * Exact dot product, computed on the backing store.
+	 */
+	public float dot(int slot, float[] vector) {
+		return backing.dot(slot, vector);
+	}
+
+	public float tail(float[] vector) {
+		return backing.tail(vector);
+	}
+
+	public float dot(int slot, float[] vector, float tail, float floor) {
+		return backing.dot(slot, vector, tail, floor);
+	}
+
+	public void resize(int newDimensions) {
+		backing.resize(newDimensions);
+		if (newDimensions <= dimensions) {
+			return;
+		}
+		byte[] resized = new byte[capacity * newDimensions];
+		for (int slot = 0; slot < backing.size(); slot++) {
+			System.arraycopy(codes, slot * dimensions, resized, slot
+					* newDimensions, dimensions);
+		}
+		codes = resized;
+		dimensions = newDimensions;
+	}
+
+	public float density() {
+		return backing.density();
+	}
+
+	private void grow(int newCapacity) {
+		codes = Arrays.copyOf(codes, newCapacity * dimensions);
+		scales = Arrays.copyOf(scales, newCapacity);
+		norms = Arrays.copyOf(norms, newCapacity);
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Compacts the backing store and carries the codes over to the new slots
+	 * without quantizing again.
+	 */
+	public QuantizedStore compact(double loadfactor) {
+		VectorStore compacted = backing.compact(loadfactor);
+		QuantizedStore peer = new QuantizedStore(compacted, compacted.size());
+		for (int slot = 0; slot < compacted.size(); slot++) {
+			if (!compacted.deleted(slot)) {
+				int from = backing.slot(compacted.docid(slot));
+				System.arraycopy(codes, from * dimensions, peer.codes, slot
+						* dimensions, dimensions);
+				peer.scales[slot] = scales[from];
+				peer.norms[slot] = norms[from];
+			}
+		}
+		return peer;
+	}
+
+	public long garbage() {
+		long garbage = backing.garbage();
+		return garbage == 0 ? 0 : garbage + (long) (size() - live())
+				* (dimensions + 8);
+	}
+
+	public void move(int from, int to) {
+		backing.move(from, to);
+		System.arraycopy(codes, from * dimensions, codes, to * dimensions,
+				dimensions);
+		scales[to] = scales[from];
+		norms[to] = norms[from];
+	}
+
+	public long truncate(int newSize, double loadfactor) {
+		long dropped = (long) (size() - newSize) * (dimensions + 8);
+		long reclaimed = backing.truncate(newSize, loadfactor);
+		int target = Math.max(INITIAL_CAPACITY,
+				(int) (newSize / loadfactor) + 1);
+		if (capacity > target) {
+			grow(target);
+		}
+		return reclaimed + dropped;
+	}
+
+	public void flush() {
+		backing.flush();
+	}
+
+	/**
+	 * The codes are not saved, the snapshot is the one of the backing store.
+	 */
+	public Snapshot snapshot(Lock lock) {
+		final Snapshot vectors = backing.snapshot(lock);
+		return new Snapshot() {
+			public String storage() {
+				return STORAGE;
+			}
+
+			public void write(Kryo kryo, Output output) {
+				kryo.writeObject(output, vectors.storage());
+				vectors.write(kryo, output);
+			}
+
+			public void release() {
+				vectors.release();
+			}
+		};
+	}
+
+	/**
+	 * Quantizes every live slot of the backing store again, e.g. after it
+	 * was loaded from disk.
+	 */
+	private void requantize() {
+		int size = backing.size();
+		dimensions = backing.dimensions();
+		capacity = Math.max(size, capacity);
+		codes = new byte[capacity * dimensions];
+		scales = new float[capacity];
+		norms = new float[capacity];
+		for (int slot = 0; slot < size; slot++) {
+			if (!backing.deleted(slot)) {
+				float[] vector = backing.get(backing.docid(slot));
+				scales[slot] = quantize(vector, codes, slot * dimensions);
+				norms[slot] = backing.norm(slot);
+			}
+		}
+	}
+
+	@Override
+	public void read(Kryo kryo, Input input) {
+		// 快照里只有全精度的向量，编码在加载后重新计算
+		String storage = kryo.readObject(input, String.class);
+		if (!storage.equals(backing.storage())) {
+			throw new SimBaseException("Snapshot was written with " + storage
+					+ " behind int8 storage, can not load it into "
+					+ backing.storage() + " storage");
+		}
+		backing.read(kryo, input);
+		requantize();
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output) {
+		kryo.writeObject(output, backing.storage());
+		backing.write(kryo, output);
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.guokr.simbase.store;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Point-in-time image of a store that can be written while the store keeps
+ * changing. Until it is released the store copies aside whatever it is about
+ * to change, so the extra memory follows the writes made during a save, not
+ * the size of the store.
+ */
+public interface Snapshot {
+
+	public String storage();
+
+	/**
+	 * Writes the image in the same format as the write() of the store.
+	 */
+	public void write(Kryo kryo, Output output);
+
+	public void release();
+
+}
@@ -0,0 +1,492 @@
+package com.guokr.simbase.store;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.Lock;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.SimBaseException;
+import com.guokr.simbase.util.Kernel;
+
+/**
+ * Vectors kept as their nonzero components only: per slot a sorted array of
+ * dimension indexes and the matching values. Memory and the cost of a dot
+ * product follow the number of nonzeros instead of the stride, which suits
+ * topic distributions over many dimensions. The arrays of a slot are never
+ * modified in place, a put replaces them.
+ */
+public class SparseStore implements VectorStore {
+
+	public static final String STORAGE = "sparse";
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int PAGE = 256;// 快照按页复制，每页的槽位数
+	private static final int CHUNK = 1024;// 写快照时每次持有锁的槽位数
+	private static final int[] NO_INDEXES = new int[0];
+	private static final float[] NO_VALUES = new float[0];
+	private static final int SLOT_BYTES = 24;// 删除后的槽位只剩docid、norm和两个数组引用
+
+	private int dimensions;
+	private int capacity;
+	private int size;// 已分配的槽位数，包含已删除的槽位
+
+	private int[][] indexes;
+	private float[][] values;
+	private int[] docids;
+	private float[] norms;
+	private BitSet tombstones = new BitSet();
+	private TIntIntMap indexer = new TIntIntHashMap();
+	private Frozen frozen;// 打开的快照，修改槽位之前先把所在的页复制给它
+
+	public SparseStore() {
+		this(0, INITIAL_CAPACITY);
+	}
+
+	public SparseStore(int dimensions, int capacity) {
+		this.dimensions = dimensions;
+		this.capacity = Math.max(capacity, 1);
+		this.indexes = new int[this.capacity][];
+		this.values = new float[this.capacity][];
+		this.docids = new int[this.capacity];
+		this.norms = new float[this.capacity];
+	}
+
+	public String storage() {
+		return STORAGE;
+	}
+
+	public int dimensions() {
+		return dimensions;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int live() {
+		return indexer.size();
+	}
+
+	public boolean contains(int docid) {
+		return indexer.containsKey(docid);
+	}
+
+	public int slot(int docid) {
+		return indexer.containsKey(docid) ? indexer.get(docid) : -1;
+	}
+
+	public int docid(int slot) {
+		return docids[slot];
+	}
+
+	public float norm(int slot) {
+		return norms[slot];
+	}
+
+	public boolean deleted(int slot) {
+		return tombstones.get(slot);
+	}
+
+	public int put(int docid, float[] vector) {
+		if (vector.length > dimensions) {
+			resize(vector.length);
+		}
+
+		int slot;
+		if (indexer.containsKey(docid)) {
+			slot = indexer.get(docid);
+			preserve(slot);
+		} else {
+			if (size == capacity) {
+				grow(capacity * 2);
+			}
+			slot = size++;
+			docids[slot] = docid;
+			indexer.put(docid, slot);
+		}
+
+		int count = 0;
+		for (float val : vector) {
+			if (val != 0) {
+				count++;
+			}
+		}
+		int[] slotIndexes = count == 0 ? NO_INDEXES : new int[count];
+		float[] slotValues = count == 0 ? NO_VALUES : new float[count];
+		int k = 0;
+		for (int i = 0; i < vector.length; i++) {
+			if (vector[i] != 0) {
+				slotIndexes[k] = i;
+				slotValues[k++] = vector[i];
+			}
+		}
+		indexes[slot] = slotIndexes;
+		values[slot] = slotValues;
+		norms[slot] = Kernel.norm(vector);
+
+		return slot;
+	}
+
+	public boolean remove(int docid) {
+		if (!indexer.containsKey(docid)) {
+			return false;
+		}
+		int slot = indexer.remove(docid);
+		preserve(slot);
+		tombstones.set(slot);
+		indexes[slot] = NO_INDEXES;
+		values[slot] = NO_VALUES;
+		return true;
+	}
+
+	public float[] get(int docid) {
+		if (!indexer.containsKey(docid)) {
+			return null;
+		}
+		int slot = indexer.get(docid);
+		float[] vector = new float[dimensions];
+		int[] slotIndexes = indexes[slot];
+		float[] slotValues = values[slot];
+		for (int k = 0; k < slotIndexes.length; k++) {
+			vector[slotIndexes[k]] = slotValues[k];
+		}
+		return vector;
+	}
+
+	public float tail(float[] vector) {
+		return 0f;
+	}
+
+	/**
+	 * Always the whole dot product, the sparse components are too few to
+	 * stop early.
+	 */
+	public float dot(int slot, float[] vector, float tail, float floor) {
+		return dot(slot, vector);
+	}
+
+	/**
+	 * Sparse-dense dot product; components beyond the end of the vector count
+	 * as zeros, as in DenseStore.
+	 */
+	public float dot(int slot, float[] vector) {
+		int[] slotIndexes = indexes[slot];
+		int count = slotIndexes.length;
+		if (count > 0 && slotIndexes[count - 1] >= vector.length) {
+			count = Arrays.binarySearch(slotIndexes, vector.length);
+			if (count < 0) {
+				count = -count - 1;
+			}
+		}
+		return Kernel.dot(slotIndexes, values[slot], count, vector);
+	}
+
+	/**
+	 * Only the stride changes; nothing is stored for the new dimensions.
+	 */
+	public void resize(int newDimensions) {
+		if (newDimensions > dimensions) {
+			dimensions = newDimensions;
+		}
+	}
+
+	public float density() {
+		long nonzeros = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				nonzeros += indexes[slot].length;
+			}
+		}
+		long total = (long) live() * dimensions;
+		return total == 0 ? 1f : (float) nonzeros / total;
+	}
+
+	private void grow(int newCapacity) {
+		indexes = Arrays.copyOf(indexes, newCapacity);
+		values = Arrays.copyOf(values, newCapacity);
+		docids = Arrays.copyOf(docids, newCapacity);
+		norms = Arrays.copyOf(norms, newCapacity);
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Copies the live slots, in slot order, into a new store with some
+	 * headroom determined by the loadfactor. The component arrays are
+	 * shared, they are replaced rather than changed by later puts.
+	 */
+	public SparseStore compact(double loadfactor) {
+		SparseStore peer = new SparseStore(dimensions,
+				(int) (live() / loadfactor) + 1);
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				int target = peer.size++;
+				peer.indexes[target] = indexes[slot];
+				peer.values[target] = values[slot];
+				peer.docids[target] = docids[slot];
+				peer.norms[target] = norms[slot];
+				peer.indexer.put(docids[slot], target);
+			}
+		}
+		return peer;
+	}
+
+	public long garbage() {
+		return (long) (size - live()) * SLOT_BYTES;
+	}
+
+	public void move(int from, int to) {
+		preserve(from);
+		preserve(to);
+		indexes[to] = indexes[from];
+		values[to] = values[from];
+		docids[to] = docids[from];
+		norms[to] = norms[from];
+		indexer.put(docids[to], to);
+		indexes[from] = NO_INDEXES;
+		values[from] = NO_VALUES;
+		tombstones.clear(to);
+		tombstones.set(from);
+	}
+
+	public long truncate(int newSize, double loadfactor) {
+		long dropped = (long) (size - newSize) * SLOT_BYTES;
+		for (int page = newSize / PAGE; page * PAGE < size; page++) {
+			preserve(page * PAGE);
+		}
+		tombstones.clear(newSize, Math.max(size, newSize));
+		size = newSize;
+		int target = Math.max(INITIAL_CAPACITY, (int) (size / loadfactor) + 1);
+		if (capacity > target) {
+			grow(target);
+		}
+		return dropped;
+	}
+
+	public void flush() {
+	}
+
+	/**
+	 * Opens a snapshot that copies a page of PAGE slots aside the first time
+	 * one of them changes; only the references of the component arrays are
+	 * copied, puts replace those arrays instead of changing them. lock guards
+	 * the store and is held by the snapshot while it reads.
+	 */
+	public Snapshot snapshot(Lock lock) {
+		if (frozen != null) {
+			throw new SimBaseException("A snapshot of the store is already open");
+		}
+		frozen = new Frozen(lock);
+		return frozen;
+	}
+
+	private void preserve(int slot) {
+		if (frozen != null && slot < frozen.size) {
+			frozen.save(slot / PAGE);
+		}
+	}
+
+	private class Frozen implements Snapshot {
+
+		private final Lock lock;
+		private final int size;
+		private final int dimensions;
+		private final int live;
+		private final TIntObjectHashMap<Page> pages = new TIntObjectHashMap<Page>();
+
+		Frozen(Lock lock) {
+			this.lock = lock;
+			this.size = SparseStore.this.size;
+			this.dimensions = SparseStore.this.dimensions;
+			this.live = live();
+		}
+
+		void save(int page) {
+			if (!pages.containsKey(page)) {
+				pages.put(page, new Page(page));
+			}
+		}
+
+		public String storage() {
+			return STORAGE;
+		}
+
+		public void release() {
+			frozen = null;
+		}
+
+		public void write(Kryo kryo, Output output) {
+			final long[] total = new long[1];
+			new Pass(0) {
+				void slot(Page page, int slot, Output output) {
+					total[0] += indexes(page, slot).length;
+				}
+			}.values(output);
+
+			kryo.writeObject(output, dimensions);
+			new Pass(live) {
+				void slot(Page page, int slot, Output output) {
+					output.writeInt(page == null ? docids[slot]
+							: page.docids[slot - page.from], false);
+				}
+			}.write(kryo, output);
+			new Pass(live) {
+				void slot(Page page, int slot, Output output) {
+					output.writeFloat(page == null ? norms[slot]
+							: page.norms[slot - page.from]);
+				}
+			}.write(kryo, output);
+			new Pass(live) {
+				void slot(Page page, int slot, Output output) {
+					output.writeInt(indexes(page, slot).length, false);
+				}
+			}.write(kryo, output);
+			new Pass((int) total[0]) {
+				void slot(Page page, int slot, Output output) {
+					for (int index : indexes(page, slot)) {
+						output.writeInt(index, false);
+					}
+				}
+			}.write(kryo, output);
+			new Pass((int) total[0]) {
+				void slot(Page page, int slot, Output output) {
+					for (float val : page == null ? values[slot]
+							: page.values[slot - page.from]) {
+						output.writeFloat(val);
+					}
+				}
+			}.write(kryo, output);
+		}
+
+		private int[] indexes(Page page, int slot) {
+			return page == null ? indexes[slot] : page.indexes[slot
+					- page.from];
+		}
+
+		/**
+		 * One column of the live slots as they were, read CHUNK slots at a
+		 * time under the lock.
+		 */
+		private abstract class Pass extends StreamedArray {
+
+			Pass(int length) {
+				super(length);
+			}
+
+			abstract void slot(Page page, int slot, Output output);
+
+			void values(Output output) {
+				for (int chunk = 0; chunk < size; chunk += CHUNK) {
+					int limit = Math.min(size, chunk + CHUNK);
+					lock.lock();
+					try {
+						for (int slot = chunk; slot < limit; slot++) {
+							Page page = pages.get(slot / PAGE);
+							boolean deleted = page == null ? tombstones
+									.get(slot) : page.tombstones.get(slot
+									- page.from);
+							if (!deleted) {
+								slot(page, slot, output);
+							}
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The slots of a page as they were when the snapshot was opened.
+	 */
+	private class Page {
+
+		private final int from;
+		private final int[] docids;
+		private final float[] norms;
+		private final BitSet tombstones;
+		private final int[][] indexes;
+		private final float[][] values;
+
+		Page(int page) {
+			from = page * PAGE;
+			int to = Math.min(frozen.size, from + PAGE);
+			docids = Arrays.copyOfRange(SparseStore.this.docids, from, to);
+			norms = Arrays.copyOfRange(SparseStore.this.norms, from, to);
+			tombstones = SparseStore.this.tombstones.get(from, to);
+			indexes = Arrays.copyOfRange(SparseStore.this.indexes, from, to);
+			values = Arrays.copyOfRange(SparseStore.this.values, from, to);
+		}
+	}
+
+	@Override
+	public void read(Kryo kryo, Input input) {
+		dimensions = kryo.readObject(input, int.class);
+		int[] ids = kryo.readObject(input, int[].class);
+		float[] lengths = kryo.readObject(input, float[].class);
+		int[] counts = kryo.readObject(input, int[].class);
+		int[] allIndexes = kryo.readObject(input, int[].class);
+		float[] allValues = kryo.readObject(input, float[].class);
+
+		size = ids.length;
+		capacity = Math.max(size, 1);
+		docids = Arrays.copyOf(ids, capacity);
+		norms = Arrays.copyOf(lengths, capacity);
+		indexes = new int[capacity][];
+		values = new float[capacity][];
+		tombstones = new BitSet();
+		indexer = new TIntIntHashMap(capacity);
+		int offset = 0;
+		for (int slot = 0; slot < size; slot++) {
+			indexes[slot] = Arrays.copyOfRange(allIndexes, offset, offset
+					+ counts[slot]);
+			values[slot] = Arrays.copyOfRange(allValues, offset, offset
+					+ counts[slot]);
+			offset += counts[slot];
+			indexer.put(docids[slot], slot);
+		}
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output) {
+		int live = live();
+		int[] ids = new int[live];
+		float[] lengths = new float[live];
+		int[] counts = new int[live];
+		int total = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				total += indexes[slot].length;
+			}
+		}
+		int[] allIndexes = new int[total];
+		float[] allValues = new float[total];
+		int target = 0, offset = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (!tombstones.get(slot)) {
+				int count = indexes[slot].length;
+				ids[target] = docids[slot];
+				lengths[target] = norms[slot];
+				counts[target] = count;
+				System.arraycopy(indexes[slot], 0, allIndexes, offset, count);
+				System.arraycopy(values[slot], 0, allValues, offset, count);
+				offset += count;
+				target++;
+			}
+		}
+
+		kryo.writeObject(output, dimensions);
+		kryo.writeObject(output, ids);
+		kryo.writeObject(output, lengths);
+		kryo.writeObject(output, counts);
+		kryo.writeObject(output, allIndexes);
+		kryo.writeObject(output, allValues);
+	}
+
+}
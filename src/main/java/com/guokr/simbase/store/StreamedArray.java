@@ -0,0 +1,35 @@
+package com.guokr.simbase.store;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.ReferenceResolver;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * An int[] or float[] written in the format of Kryo's array serializers
+ * without being built first: values() emits the elements one by one, ints
+ * with output.writeInt(value, false) and floats with output.writeFloat.
+ * write() puts the same reference marker in front as kryo.writeObject does
+ * for an array, so the result reads back with kryo.readObject(input,
+ * int[].class) or float[].class. Only ever written, never read as such.
+ */
+abstract class StreamedArray {
+
+	private final int length;
+
+	StreamedArray(int length) {
+		this.length = length;
+	}
+
+	abstract void values(Output output);
+
+	void write(Kryo kryo, Output output) {
+		ReferenceResolver references = kryo.getReferenceResolver();
+		if (kryo.getReferences() && references.useReferences(getClass())) {// 数组的引用id，读取时同样分配一个
+			references.addWrittenObject(this);
+			output.writeByte(Kryo.NOT_NULL);
+		}
+		output.writeInt(length + 1, true);
+		values(output);
+	}
+
+}
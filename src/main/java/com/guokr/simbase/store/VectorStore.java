@@ -0,0 +1,90 @@
+package com.guokr.simbase.store;
+
+import java.util.concurrent.locks.Lock;
+
+import com.esotericsoftware.kryo.KryoSerializable;
+
+/**
+ * Slot based storage of the document vectors of a SimTable. Slots in
+ * [0, size()) are scanned in order, deleted slots are skipped.
+ */
+public interface VectorStore extends KryoSerializable {
+
+	public String storage();
+
+	public int dimensions();
+
+	public int size();
+
+	public int live();
+
+	public boolean contains(int docid);
+
+	public int slot(int docid);
+
+	public int docid(int slot);
+
+	public float norm(int slot);
+
+	public boolean deleted(int slot);
+
+	public int put(int docid, float[] vector);
+
+	public boolean remove(int docid);
+
+	public float[] get(int docid);
+
+	public float dot(int slot, float[] vector);
+
+	/**
+	 * Length of the part of the vector past the point where
+	 * dot(slot, vector, tail, floor) may give up; 0 if the store never does.
+	 * Valid until the store is resized.
+	 */
+	public float tail(float[] vector);
+
+	/**
+	 * The dot product, unless even the largest value the components not yet
+	 * summed could add leaves its magnitude below floor; then some value
+	 * below floor in magnitude. tail comes from tail(vector).
+	 */
+	public float dot(int slot, float[] vector, float tail, float floor);
+
+	public void resize(int dimensions);
+
+	/**
+	 * Share of nonzero components over the live slots, 1 when empty.
+	 */
+	public float density();
+
+	public VectorStore compact(double loadfactor);
+
+	/**
+	 * Bytes held by deleted slots until a compaction gives them back.
+	 */
+	public long garbage();
+
+	/**
+	 * Moves a live slot into a deleted one earlier in scan order; the old
+	 * slot becomes deleted. A step of the in-place compaction.
+	 */
+	public void move(int from, int to);
+
+	/**
+	 * Drops the slots from size on, which must all be deleted, and shrinks
+	 * the storage down to the headroom given by the loadfactor.
+	 *
+	 * @return the bytes of the dropped slots
+	 */
+	public long truncate(int size, double loadfactor);
+
+	public void flush();
+
+	/**
+	 * Opens a point-in-time image of the store for saving while it keeps
+	 * changing; one at a time. lock guards the store, the snapshot holds it
+	 * while reading.
+	 */
+	public Snapshot snapshot(Lock lock);
+
+}
@@ -0,0 +1,198 @@
+package com.guokr.simbase.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Reads back a stream written by {@link ChunkedOutput}. The chunks ahead of
+ * the one being read are checked against their CRC32 on a pool of threads;
+ * a chunk that does not match, a missing end mark or a wrong chunk count
+ * fail the read with an IOException naming the chunk, never with a short
+ * stream.
+ */
+public class ChunkedInput extends InputStream {
+
+	private final DataInputStream in;
+	private final int chunkSize;
+	private final ExecutorService verifier;
+	private final int depth;
+	private final LinkedList<Future<byte[]>> ahead = new LinkedList<Future<byte[]>>();
+
+	private byte[] chunk = new byte[0];
+	private int position;
+	private long read;// 已读入的块数
+	private boolean ended;
+
+	/**
+	 * @param in
+	 *            must support mark/reset if it was passed to
+	 *            {@link #chunked}
+	 * @param threads
+	 *            the threads checking chunks ahead, 1 to check them inline
+	 */
+	public ChunkedInput(InputStream in, int threads) throws IOException {
+		this.in = new DataInputStream(in);
+		byte[] magic = new byte[ChunkedOutput.MAGIC.length];
+		this.in.readFully(magic);
+		if (!Arrays.equals(magic, ChunkedOutput.MAGIC)) {
+			throw new IOException("Not a chunked snapshot");
+		}
+		int version = this.in.readInt();
+		if (version != ChunkedOutput.VERSION) {
+			throw new IOException("Unknown chunk format version " + version);
+		}
+		chunkSize = this.in.readInt();
+		if (threads > 1) {
+			verifier = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "chunk-verifier");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			depth = 2 * threads;
+		} else {
+			verifier = null;
+			depth = 1;
+		}
+	}
+
+	/**
+	 * Whether the stream starts with the header of a chunked snapshot; the
+	 * stream is reset to where it was.
+	 */
+	public static boolean chunked(InputStream in) throws IOException {
+		byte[] magic = new byte[ChunkedOutput.MAGIC.length];
+		in.mark(magic.length);
+		int n = 0;
+		while (n < magic.length) {
+			int count = in.read(magic, n, magic.length - n);
+			if (count < 0) {
+				break;
+			}
+			n += count;
+		}
+		in.reset();
+		return n == magic.length && Arrays.equals(magic, ChunkedOutput.MAGIC);
+	}
+
+	/**
+	 * Reads the next chunk off the stream and queues its check; at the end
+	 * mark checks the chunk count instead.
+	 */
+	private boolean fetch() throws IOException {
+		final long index = read;
+		final int length;
+		final int expected;
+		final byte[] bytes;
+		try {
+			length = in.readInt();
+			if (length == 0) {
+				long chunks = in.readLong();
+				if (chunks != index) {
+					throw new IOException("Snapshot ends after " + chunks
+							+ " chunks, but " + index + " were read");
+				}
+				return false;
+			}
+			if (length < 0 || length > chunkSize) {
+				throw new IOException("Snapshot chunk " + index
+						+ " has a bad length " + length);
+			}
+			expected = in.readInt();
+			bytes = new byte[length];
+			in.readFully(bytes);
+		} catch (EOFException e) {
+			throw new IOException("Snapshot is truncated after " + index
+					+ " chunks");
+		}
+		read++;
+
+		Callable<byte[]> check = new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				CRC32 crc = new CRC32();
+				crc.update(bytes, 0, length);
+				if ((int) crc.getValue() != expected) {
+					throw new IOException("Snapshot chunk " + index
+							+ " is corrupt, its CRC32 does not match");
+				}
+				return bytes;
+			}
+		};
+		if (verifier != null) {
+			ahead.add(verifier.submit(check));
+		} else {
+			FutureTask<byte[]> task = new FutureTask<byte[]>(check);
+			task.run();
+			ahead.add(task);
+		}
+		return true;
+	}
+
+	private boolean next() throws IOException {
+		while (!ended && ahead.size() < depth) {
+			ended = !fetch();
+		}
+		if (ahead.isEmpty()) {
+			return false;
+		}
+		try {
+			chunk = ahead.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		position = 0;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == chunk.length && !next()) {
+			return -1;
+		}
+		return chunk[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position == chunk.length && !next()) {
+			return -1;
+		}
+		int n = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (verifier != null) {
+			verifier.shutdownNow();
+		}
+		in.close();
+	}
+
+}
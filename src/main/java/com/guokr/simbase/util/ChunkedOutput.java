@@ -0,0 +1,104 @@
+package com.guokr.simbase.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Cuts a stream into chunks of chunkSize bytes, the last one shorter, each
+ * written as its length, its CRC32 and its bytes. A header with a magic
+ * number, the format version and the chunk size comes first; an empty chunk
+ * followed by the number of chunks marks the end, so a truncated file is
+ * told apart from a complete one. Read back with {@link ChunkedInput}.
+ *
+ * flush() only passes on what whole chunks were written, finish() writes the
+ * last chunk and the end mark.
+ */
+public class ChunkedOutput extends OutputStream {
+
+	static final byte[] MAGIC = { 'S', 'I', 'M', 'B' };
+	static final int VERSION = 1;
+
+	public static final int CHUNK_SIZE = 1 << 20;
+
+	private final DataOutputStream out;
+	private final byte[] buffer;
+	private final CRC32 crc = new CRC32();
+	private int position;
+	private long chunks;
+	private boolean finished;
+
+	public ChunkedOutput(OutputStream out) throws IOException {
+		this(out, CHUNK_SIZE);
+	}
+
+	public ChunkedOutput(OutputStream out, int chunkSize) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.buffer = new byte[chunkSize];
+		this.out.write(MAGIC);
+		this.out.writeInt(VERSION);
+		this.out.writeInt(chunkSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (position == buffer.length) {
+			emit();
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (position == buffer.length) {
+				emit();
+			}
+			int n = Math.min(len, buffer.length - position);
+			System.arraycopy(b, off, buffer, position, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void emit() throws IOException {
+		if (position == 0) {
+			return;
+		}
+		crc.reset();
+		crc.update(buffer, 0, position);
+		out.writeInt(position);
+		out.writeInt((int) crc.getValue());
+		out.write(buffer, 0, position);
+		position = 0;
+		chunks++;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes the last chunk and the end mark; nothing can be written after.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		emit();
+		out.writeInt(0);
+		out.writeLong(chunks);
+		out.flush();
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.guokr.simbase.util;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Dot products behind the cosine scores. The loops are unrolled by eight
+ * into independent partial sums without any branch in the body, so eight
+ * multiply-adds are in flight at once instead of one long chain of adds.
+ * The sums are therefore not accumulated strictly left to right and may
+ * differ from a naive loop in the last bits.
+ */
+public final class Kernel {
+
+	private Kernel() {
+	}
+
+	/**
+	 * @return the dot product of vector and data[offset, offset + vector.length)
+	 */
+	public static float dot(float[] vector, float[] data, int offset) {
+		int length = vector.length;
+		int bound = length & ~7;
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+		int i = 0;
+		for (; i < bound; i += 8) {
+			int j = offset + i;
+			s0 += vector[i] * data[j];
+			s1 += vector[i + 1] * data[j + 1];
+			s2 += vector[i + 2] * data[j + 2];
+			s3 += vector[i + 3] * data[j + 3];
+			s4 += vector[i + 4] * data[j + 4];
+			s5 += vector[i + 5] * data[j + 5];
+			s6 += vector[i + 6] * data[j + 6];
+			s7 += vector[i + 7] * data[j + 7];
+		}
+		for (; i < length; i++) {
+			s0 += vector[i] * data[offset + i];
+		}
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+
+	/**
+	 * dot(vector, data, offset), given up after the first split components
+	 * when the magnitude of their sum plus tail, a bound on the rest, stays
+	 * below floor; split is a multiple of eight. The lanes are the same as in
+	 * dot, so a product carried to the end is the same to the last bit.
+	 *
+	 * @return the dot product, or the bound that fell short of floor
+	 */
+	public static float dot(float[] vector, float[] data, int offset,
+			int split, float tail, float floor) {
+		int length = vector.length;
+		int bound = length & ~7;
+		int head = Math.min(split, bound);
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+		int i = 0;
+		for (; i < head; i += 8) {
+			int j = offset + i;
+			s0 += vector[i] * data[j];
+			s1 += vector[i + 1] * data[j + 1];
+			s2 += vector[i + 2] * data[j + 2];
+			s3 += vector[i + 3] * data[j + 3];
+			s4 += vector[i + 4] * data[j + 4];
+			s5 += vector[i + 5] * data[j + 5];
+			s6 += vector[i + 6] * data[j + 6];
+			s7 += vector[i + 7] * data[j + 7];
+		}
+		if (head == split && head < length) {// 柯西-施瓦茨：剩余部分至多贡献tail
+			float reach = Math.abs(((s0 + s1) + (s2 + s3))
+					+ ((s4 + s5) + (s6 + s7)))
+					+ tail;
+			if (reach < floor) {
+				return reach;
+			}
+		}
+		for (; i < bound; i += 8) {
+			int j = offset + i;
+			s0 += vector[i] * data[j];
+			s1 += vector[i + 1] * data[j + 1];
+			s2 += vector[i + 2] * data[j + 2];
+			s3 += vector[i + 3] * data[j + 3];
+			s4 += vector[i + 4] * data[j + 4];
+			s5 += vector[i + 5] * data[j + 5];
+			s6 += vector[i + 6] * data[j + 6];
+			s7 += vector[i + 7] * data[j + 7];
+		}
+		for (; i < length; i++) {
+			s0 += vector[i] * data[offset + i];
+		}
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+
+	/**
+	 * @return the dot product of vector and the floats of data from offset on
+	 */
+	public static float dot(float[] vector, FloatBuffer data, int offset) {
+		int length = vector.length;
+		int bound = length & ~7;
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+		int i = 0;
+		for (; i < bound; i += 8) {
+			int j = offset + i;
+			s0 += vector[i] * data.get(j);
+			s1 += vector[i + 1] * data.get(j + 1);
+			s2 += vector[i + 2] * data.get(j + 2);
+			s3 += vector[i + 3] * data.get(j + 3);
+			s4 += vector[i + 4] * data.get(j + 4);
+			s5 += vector[i + 5] * data.get(j + 5);
+			s6 += vector[i + 6] * data.get(j + 6);
+			s7 += vector[i + 7] * data.get(j + 7);
+		}
+		for (; i < length; i++) {
+			s0 += vector[i] * data.get(offset + i);
+		}
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+
+	/**
+	 * @return the dot product of a dense vector and the first count components
+	 *         of a sparse one, given as dimension indexes and values
+	 */
+	public static float dot(int[] indexes, float[] values, int count,
+			float[] vector) {
+		int bound = count & ~3;
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int k = 0;
+		for (; k < bound; k += 4) {
+			s0 += values[k] * vector[indexes[k]];
+			s1 += values[k + 1] * vector[indexes[k + 1]];
+			s2 += values[k + 2] * vector[indexes[k + 2]];
+			s3 += values[k + 3] * vector[indexes[k + 3]];
+		}
+		for (; k < count; k++) {
+			s0 += values[k] * vector[indexes[k]];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * @return the dot product of int8 codes and data[offset, offset +
+	 *         vector.length), summed exactly in ints
+	 */
+	public static int dot(byte[] vector, byte[] data, int offset) {
+		int length = vector.length;
+		int bound = length & ~7;
+		int s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+		int i = 0;
+		for (; i < bound; i += 8) {
+			int j = offset + i;
+			s0 += vector[i] * data[j];
+			s1 += vector[i + 1] * data[j + 1];
+			s2 += vector[i + 2] * data[j + 2];
+			s3 += vector[i + 3] * data[j + 3];
+			s4 += vector[i + 4] * data[j + 4];
+			s5 += vector[i + 5] * data[j + 5];
+			s6 += vector[i + 6] * data[j + 6];
+			s7 += vector[i + 7] * data[j + 7];
+		}
+		for (; i < length; i++) {
+			s0 += vector[i] * data[offset + i];
+		}
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+
+	/**
+	 * @return the squared length, summed the same way as dot so stored norms
+	 *         and query lengths agree
+	 */
+	public static float norm(float[] vector) {
+		return dot(vector, vector, 0);
+	}
+
+}
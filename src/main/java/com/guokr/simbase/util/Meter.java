@@ -0,0 +1,37 @@
+package com.guokr.simbase.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count, total and maximum of a duration in nanoseconds, updated from
+ * several threads without locking.
+ */
+public class Meter {
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long mean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+}
@@ -1,5 +1,18 @@
 package com.guokr.simbase.util;
 
+/**
+ * Top-K list of (docid, score) pairs ordered by descending score; equal
+ * scores keep the latest added first.
+ *
+ * Both the ordered arrays and the docid table are allocated once with room
+ * for limits + 1 entries, so add/remove only shift entries in place. The
+ * docid table maps a docid to its score, the position is then found by a
+ * binary search over the scores.
+ *
+ * Only the writer holding the list changes it; readers see the order as of
+ * the last {@link #publish()}, an immutable {@link View} swapped in whole, so
+ * they never lock and never see a half shifted array.
+ */
 public class Sorter {
 
 	private int limits = 20;
@@ -7,81 +20,139 @@ public class Sorter {
 	private int[] docids;
 	private float[] scores;
 
+	// 开放寻址的docid -> score表，线性探测，删除时回移
+	private int mask;
+	private int[] keys;
+	private float[] values;
+	private boolean[] used;
+
+	private boolean dirty;// 上次发布后是否改动过
+	private volatile View view = View.EMPTY;
+	private volatile float waterLine = Float.NEGATIVE_INFINITY;
+
 	public Sorter(int limits) {
 		this.limits = limits;
 		int maxlen = 1 + limits;
 		this.docids = new int[maxlen];
 		this.scores = new float[maxlen];
 
-		for (int i = 0; i < maxlen; i++) {
-			this.docids[i] = -1;
-			this.scores[i] = -1.0f;
+		int buckets = 4;
+		while (buckets < 2 * maxlen) {
+			buckets <<= 1;
 		}
+		this.mask = buckets - 1;
+		this.keys = new int[buckets];
+		this.values = new float[buckets];
+		this.used = new boolean[buckets];
 	}
 
-	private int indexOf(int docid) {
-		int pos = -1;
-		for (int i = 0; i < this.size; i++) {
-			if (this.docids[i] == docid) {
-				pos = i;
-				break;
-			}
+	private static int hash(int docid) {
+		int h = docid * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int bucket(int docid) {
+		int pos = hash(docid) & mask;
+		while (used[pos] && keys[pos] != docid) {
+			pos = (pos + 1) & mask;
 		}
 		return pos;
 	}
 
+	private void forget(int pos) {
+		used[pos] = false;
+		int next = (pos + 1) & mask;
+		while (used[next]) {
+			int home = hash(keys[next]) & mask;
+			// 当home不在(pos, next]区间内时，把next回移到pos
+			if (((next - home) & mask) >= ((next - pos) & mask)) {
+				keys[pos] = keys[next];
+				values[pos] = values[next];
+				used[pos] = true;
+				used[next] = false;
+				pos = next;
+			}
+			next = (next + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return the first position whose score is not greater than the given one
+	 */
 	private int lookup(float score) {
-		int pos = -1;
-		if (this.size == 0) {
-			pos = 0;
-		} else if (this.size > 0 && score >= this.scores[0]) {
-			pos = 0;
-		} else if (this.size > 0 && this.size < this.limits
-				&& score < this.scores[this.size - 1]) {
-			pos = this.size;
-		} else if (this.size > 0 && score < this.scores[this.size - 1]) {
-			pos = this.size;
-		} else {
-			for (int cur = 0; cur < this.size - 1; cur++) {
-				if (score < this.scores[cur] && score >= this.scores[cur + 1]) {
-					pos = cur + 1;
-					break;
-				}
+		int low = 0;
+		int high = this.size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (this.scores[mid] > score) {
+				low = mid + 1;
+			} else {
+				high = mid;
 			}
 		}
-		return pos;
+		return low;
+	}
+
+	private int indexOf(int docid, float score) {
+		for (int i = lookup(score); i < this.size; i++) {
+			if (this.docids[i] == docid) {
+				return i;
+			}
+		}
+		return -1;
 	}
 
 	public int size() {
 		return this.size;
 	}
 
+	/**
+	 * @return an independent copy with the same entries and the same order
+	 */
+	public Sorter copy() {
+		Sorter copy = new Sorter(this.limits);
+		copy.size = this.size;
+		System.arraycopy(this.docids, 0, copy.docids, 0, this.size);
+		System.arraycopy(this.scores, 0, copy.scores, 0, this.size);
+		System.arraycopy(this.keys, 0, copy.keys, 0, this.keys.length);
+		System.arraycopy(this.values, 0, copy.values, 0, this.values.length);
+		System.arraycopy(this.used, 0, copy.used, 0, this.used.length);
+		copy.view = this.view;
+		copy.waterLine = this.waterLine;
+		return copy;
+	}
+
+	/**
+	 * Adds or moves the document; when the list is already holding limits + 1
+	 * entries the lowest one falls off.
+	 */
 	public void add(int docid, float score) {
-        remove(docid);
+		remove(docid);
+		if (score != score && this.size > 0) {// NaN无法排序
+			return;
+		}
 		int pos = lookup(score);
-		if (pos == 0 && this.size == 0) {
-			this.docids[pos] = docid;
-			this.scores[pos] = score;
-			this.size = this.size + 1;
-		} else {
-			if (pos > -1) {
-				this.size = this.size + 1;
-				int[] tdocids = this.docids;
-				float[] tscores = this.scores;
-				this.docids = new int[this.size];
-				this.scores = new float[this.size];
-
-				System.arraycopy(tdocids, 0, this.docids, 0, pos);
-				System.arraycopy(tdocids, pos, this.docids, pos + 1, this.size
-						- pos - 1);
-				System.arraycopy(tscores, 0, this.scores, 0, pos);
-				System.arraycopy(tscores, pos, this.scores, pos + 1, this.size
-						- pos - 1);
-
-				this.docids[pos] = docid;
-				this.scores[pos] = score;
+		if (this.size == this.docids.length) {
+			if (pos == this.size) {
+				return;
 			}
+			this.size = this.size - 1;
+			forget(bucket(this.docids[this.size]));
 		}
+
+		System.arraycopy(this.docids, pos, this.docids, pos + 1, this.size
+				- pos);
+		System.arraycopy(this.scores, pos, this.scores, pos + 1, this.size
+				- pos);
+		this.docids[pos] = docid;
+		this.scores[pos] = score;
+		this.size = this.size + 1;
+
+		int slot = bucket(docid);
+		keys[slot] = docid;
+		values[slot] = score;
+		used[slot] = true;
+		dirty = true;
 	}
 
 	public int[] docids() {
@@ -90,48 +161,137 @@ public class Sorter {
 		return result;
 	}
 
-	public float get(int docid) {
-		float result = -1.0f;
-		for (int i = 0; i < this.size; i++) {
-			if (this.docids[i] == docid) {
-				result = this.scores[i];
-				break;
-			}
-		}
+	public float[] scores() {
+		float[] result = new float[size];
+		System.arraycopy(this.scores, 0, result, 0, size);
 		return result;
 	}
 
+	public boolean contains(int docid) {
+		return used[bucket(docid)];
+	}
+
+	public float get(int docid) {
+		int slot = bucket(docid);
+		return used[slot] ? values[slot] : -1.0f;
+	}
+
 	public void remove(int docid) {
-		int pos = indexOf(docid);
+		int slot = bucket(docid);
+		if (!used[slot]) {
+			return;
+		}
+		int pos = indexOf(docid, values[slot]);
+		forget(slot);
+		dirty = true;
 		if (pos > -1) {
 			this.size = this.size - 1;
-			int[] tdocids = this.docids;
-			float[] tscores = this.scores;
-			this.docids = new int[this.size];
-			this.scores = new float[this.size];
-
-			System.arraycopy(tdocids, 0, this.docids, 0, pos);
-			System.arraycopy(tdocids, pos + 1, this.docids, pos, this.size
+			System.arraycopy(this.docids, pos + 1, this.docids, pos, this.size
 					- pos);
-			System.arraycopy(tscores, 0, this.scores, 0, pos);
-			System.arraycopy(tscores, pos + 1, this.scores, pos, this.size
+			System.arraycopy(this.scores, pos + 1, this.scores, pos, this.size
 					- pos);
 		}
 	}
 
+	/**
+	 * @return the docid of the lowest entry; the list must not be empty
+	 */
+	public int last() {
+		return this.docids[this.size - 1];
+	}
+
+	/**
+	 * Drops the lowest entry.
+	 *
+	 * @return the score of the new lowest entry, -1 when the list is empty
+	 */
 	public float removeLast() {
-		this.scores[this.size - 1] = -1.0f;
+		if (this.size == 0) {
+			return -1.0f;
+		}
 		this.size = this.size - 1;
-		return this.scores[this.size - 1];
+		forget(bucket(this.docids[this.size]));
+		dirty = true;
+		return this.size > 0 ? this.scores[this.size - 1] : -1.0f;
 	}
 
 	public String[] pickle() {
-		String[] result = new String[2 * this.size];
-		for (int i = 0; i < this.size; i++) {
-			result[2 * i] = String.valueOf(this.docids[i]);
-			result[2 * i + 1] = String.valueOf(this.scores[i]);
+		return new View(docids(), scores()).pickle();
+	}
+
+	/**
+	 * @return the score a new entry must reach as set by the owner of the
+	 *         list, negative infinity when it has set none; safe to read from
+	 *         any thread
+	 */
+	public float waterLine() {
+		return waterLine;
+	}
+
+	public void waterLine(float score) {
+		this.waterLine = score;
+	}
+
+	/**
+	 * Makes the changes since the last call visible to readers.
+	 */
+	public void publish() {
+		if (dirty) {
+			view = new View(docids(), scores());
+			dirty = false;
+		}
+	}
+
+	/**
+	 * @return the order as of the last publish; safe to read from any thread
+	 */
+	public View view() {
+		return view;
+	}
+
+	/**
+	 * An immutable copy of the order of a Sorter.
+	 */
+	public static final class View {
+
+		static final View EMPTY = new View(new int[0], new float[0]);
+
+		private final int[] docids;
+		private final float[] scores;
+
+		private View(int[] docids, float[] scores) {
+			this.docids = docids;
+			this.scores = scores;
+		}
+
+		public int size() {
+			return docids.length;
+		}
+
+		public int[] docids() {
+			return docids.clone();
+		}
+
+		/**
+		 * @return the score of docid, -1 when it is not in the list
+		 */
+		public float get(int docid) {
+			for (int i = 0; i < docids.length; i++) {
+				if (docids[i] == docid) {
+					return scores[i];
+				}
+			}
+			return -1.0f;
+		}
+
+		public String[] pickle() {
+			String[] result = new String[2 * docids.length];
+			for (int i = 0; i < docids.length; i++) {
+				result[2 * i] = String.valueOf(docids[i]);
+				result[2 * i + 1] = String.valueOf(scores[i]);
+			}
+			return result;
 		}
-		return result;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,398 @@
+package org.wahlque.net.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wahlque.net.action.Action;
+import org.wahlque.net.action.ActionRegistry;
+import org.wahlque.net.transport.FrameDecoder;
+import org.wahlque.net.transport.ReplyWriter;
+import org.wahlque.net.transport.payload.Error;
+import org.wahlque.net.transport.payload.Frame;
+
+/**
+ * Non-blocking transport: one thread accepts connections and hands them
+ * round-robin to a fixed number of I/O threads, each running its own
+ * selector. The I/O threads only move bytes. The commands a read brought in
+ * are decoded and applied on a pooled action thread, one batch per
+ * connection at a time, so replies keep the order of the requests. The
+ * connection stops reading until its batch is done, so a command that
+ * blocks, e.g. on a full writer queue with overflow: block, holds up only
+ * its own connection.
+ */
+public class NioServer {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(NioServer.class);
+
+	private static final int BUFFER_SIZE = 4096;
+	private static final int OUTPUT_LIMIT = 16 * 1024 * 1024;
+
+	private final Map<String, Object> serverContext;
+	private final ActionRegistry registry;
+	private final Worker[] workers;
+	private final int outputLimit;// 待发送的回复超过它时，连接暂停读取和执行
+	private final int maxArray;
+	private final int maxBulk;
+	private final ExecutorService actions = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private int count;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "nio-action-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private volatile boolean running = true;
+	private ServerSocketChannel channel;
+	private Selector acceptor;
+
+	public NioServer(Map<String, Object> context, ActionRegistry registry,
+			int threads) {
+		this.serverContext = context;
+		this.registry = registry;
+		this.workers = new Worker[Math.max(threads, 1)];
+		this.outputLimit = context.containsKey("outputLimit") ? ((Number) context
+				.get("outputLimit")).intValue() : OUTPUT_LIMIT;
+		this.maxArray = context.containsKey("maxArrayLength") ? ((Number) context
+				.get("maxArrayLength")).intValue() : FrameDecoder.MAX_ARRAY;
+		this.maxBulk = context.containsKey("maxBulkLength") ? ((Number) context
+				.get("maxBulkLength")).intValue() : FrameDecoder.MAX_BULK;
+	}
+
+	public void run() throws IOException {
+		channel = ServerSocketChannel.open();
+		channel.socket().setReuseAddress(true);
+		channel.socket().bind(
+				new InetSocketAddress((Integer) serverContext.get("port")));
+		channel.configureBlocking(false);
+		acceptor = Selector.open();
+		channel.register(acceptor, SelectionKey.OP_ACCEPT);
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker();
+			Thread thread = new Thread(workers[i], "nio-worker-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int next = 0;
+		try {
+			while (running) {
+				acceptor.select();
+				Iterator<SelectionKey> keys = acceptor.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					keys.next();
+					keys.remove();
+					SocketChannel client;
+					while ((client = channel.accept()) != null) {
+						client.configureBlocking(false);
+						client.socket().setTcpNoDelay(true);
+						workers[next++ % workers.length].add(client);
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// shutdown
+		} finally {
+			for (Worker worker : workers) {
+				if (worker != null) {
+					worker.stop();
+				}
+			}
+			actions.shutdownNow();
+		}
+	}
+
+	public void shutdown() {
+		running = false;
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			if (acceptor != null) {
+				acceptor.close();
+			}
+		} catch (IOException e) {
+			logger.error("server shutdown error", e);
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final Selector selector;
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+		private final Queue<Connection> done = new ConcurrentLinkedQueue<Connection>();// 动作线程处理完的连接
+
+		Worker() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(SocketChannel client) {
+			pending.add(client);
+			selector.wakeup();
+		}
+
+		void done(Connection connection) {
+			done.add(connection);
+			selector.wakeup();
+		}
+
+		void stop() {
+			try {
+				for (SelectionKey key : selector.keys()) {
+					((Connection) key.attachment()).close();
+				}
+				selector.close();
+			} catch (Exception e) {
+				logger.error("worker shutdown error", e);
+			}
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					SocketChannel client;
+					while ((client = pending.poll()) != null) {
+						SelectionKey key = client.register(selector,
+								SelectionKey.OP_READ);
+						key.attach(new Connection(this, client, key));
+					}
+					Connection back;
+					while ((back = done.poll()) != null) {
+						try {
+							back.resume();
+						} catch (IOException e) {
+							logger.debug("connection closed", e);
+							back.close();
+						}
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()
+									&& !connection.busy) {
+								connection.flush();
+							}
+						} catch (IOException e) {
+							logger.debug("connection closed", e);
+							connection.close();
+						}
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// shutdown
+			} catch (IOException e) {
+				logger.error("worker loop error", e);
+			}
+		}
+	}
+
+	private class Connection implements Closeable {
+
+		private final Worker worker;
+		private final SocketChannel client;
+		private final SelectionKey key;
+		private final Map<String, Object> context;
+		private final FrameDecoder decoder = new FrameDecoder(maxArray, maxBulk);
+		private final Output output = new Output();
+		private final ReplyWriter writer = new ReplyWriter(output);
+		private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+		private boolean busy;// 动作线程持有input和output期间，I/O线程不碰它们
+		private boolean throttled;// 因回复积压而停下，input里可能还有完整的命令
+
+		private final Runnable process = new Runnable() {
+			public void run() {
+				try {
+					process();
+				} catch (IOException e) {
+					logger.debug("connection closed", e);
+					close();
+				} finally {
+					worker.done(Connection.this);
+				}
+			}
+		};
+
+		Connection(Worker worker, SocketChannel client, SelectionKey key) {
+			this.worker = worker;
+			this.client = client;
+			this.key = key;
+			this.context = new HashMap<String, Object>(serverContext);
+			this.context.put("connection", this);
+		}
+
+		/**
+		 * On the I/O thread: reads what arrived and hands it to an action
+		 * thread, with the connection off the selector until it is back.
+		 */
+		void read() throws IOException {
+			int count = client.read(input);
+			if (count < 0) {
+				close();
+				return;
+			}
+			if (count > 0) {
+				dispatch();
+			}
+		}
+
+		private void dispatch() {
+			busy = true;
+			key.interestOps(0);
+			actions.execute(process);
+		}
+
+		/**
+		 * On an action thread: applies the complete commands in the input
+		 * and serializes their replies, stopping once outputLimit bytes of
+		 * them wait to be sent.
+		 */
+		private void process() throws IOException {
+			input.flip();
+			Frame frame;
+			while (client.isOpen() && output.size() < outputLimit
+					&& (frame = decoder.decode(input)) != null) {
+				execute(frame);
+			}
+			throttled = output.size() >= outputLimit;
+			input.compact();
+			int needed = decoder.pending() + 64;// 还没读完的bulk string加上下一行
+			if (input.capacity() - input.position() < needed
+					|| !input.hasRemaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(
+						input.capacity() * 2, input.position() + needed));
+				input.flip();
+				grown.put(input);
+				input = grown;
+			}
+			writer.flush();
+		}
+
+		/**
+		 * Back on the I/O thread once the action thread is done.
+		 */
+		void resume() throws IOException {
+			busy = false;
+			if (client.isOpen()) {
+				flush();
+			}
+		}
+
+		private void execute(Frame frame) {
+			if (frame.size() == 0) {
+				return;
+			}
+			String name = frame.stringAt(0).toLowerCase();
+			Action instance = registry.get(name);
+			if (instance == null) {
+				instance = registry.failback();
+			}
+			try {
+				writer.write(instance.apply(context, frame));
+			} catch (Exception e) {
+				logger.error("payload writing error", e);
+				try {
+					writer.write(new Error(e.getMessage()));
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		void flush() throws IOException {
+			ByteBuffer buffer = output.buffer;
+			buffer.flip();
+			client.write(buffer);
+			boolean drained = !buffer.hasRemaining();
+			buffer.compact();
+			if (!key.isValid()) {
+				return;
+			}
+			if (output.size() >= outputLimit) {// 客户端不读回复，也不再读它的命令
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (throttled) {// 积压已降下来，接着执行剩下的命令
+				throttled = false;
+				dispatch();
+			} else {
+				key.interestOps(drained ? SelectionKey.OP_READ
+						: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		public void close() {// 动作线程中的exit也会调用
+			key.cancel();
+			try {
+				client.close();
+			} catch (IOException e) {
+				logger.error("session closing error", e);
+			}
+		}
+	}
+
+	/**
+	 * Growable buffer the replies are serialized into before being written
+	 * to the channel. It grows past outputLimit by one reply at most, as no
+	 * command runs while that much is pending.
+	 */
+	private static class Output extends OutputStream {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		int size() {
+			return buffer.position();
+		}
+
+		private void ensure(int length) {
+			if (buffer.remaining() < length) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(
+						buffer.capacity() * 2, buffer.position() + length));
+				buffer.flip();
+				grown.put(buffer);
+				buffer = grown;
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			ensure(1);
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensure(len);
+			buffer.put(b, off, len);
+		}
+	}
+
+}
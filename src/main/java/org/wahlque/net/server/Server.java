@@ -19,7 +19,11 @@ public class Server {
 
 	private static final Logger logger = LoggerFactory.getLogger(Server.class);
 
+	public static final String BLOCKING = "blocking";
+	public static final String NIO = "nio";
+
 	private boolean listening = true;
+	private NioServer nioServer;
 	private final Map<String, Object> serverContext;
 	private final ActionRegistry registry;
 	private final ThreadPoolExecutor serverThreadPool = new ThreadPoolExecutor(
@@ -43,6 +47,10 @@ public class Server {
 	}
 
 	public synchronized void shutdown() {
+		if (nioServer != null) {
+			nioServer.shutdown();
+			return;
+		}
 		try {
 			((ServerSocket) this.serverContext.get("serverSocket")).close();
 		} catch (IOException e) {
@@ -52,6 +60,11 @@ public class Server {
 	}
 
 	public void run() {
+		if (NIO.equals(serverContext.get("transport"))) {
+			runNio();
+			return;
+		}
+
 		ServerSocket serverSocket = null;
 		try {
 			serverSocket = new ServerSocket((Integer) serverContext.get("port"));
@@ -111,6 +124,26 @@ public class Server {
 		System.exit(0);
 	}
 
+	/**
+	 * Serves every connection from a fixed number of selector threads
+	 * instead of one pooled thread per connection.
+	 */
+	private void runNio() {
+		int threads = serverContext.containsKey("ioThreads") ? (Integer) serverContext
+				.get("ioThreads") : Runtime.getRuntime().availableProcessors();
+		synchronized (this) {
+			nioServer = new NioServer(serverContext, registry, threads);
+		}
+		try {
+			nioServer.run();
+		} catch (IOException e) {
+			logger.error("server loop error", e);
+		}
+
+		logger.info("Server shutdown!");
+		System.exit(0);
+	}
+
 	public class ServerThread extends Thread {
 		private Session session = null;
 
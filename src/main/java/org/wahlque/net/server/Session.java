@@ -1,5 +1,7 @@
 package org.wahlque.net.server;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -10,21 +12,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wahlque.net.action.Action;
 import org.wahlque.net.action.ActionRegistry;
-import org.wahlque.net.transport.Transport;
+import org.wahlque.net.transport.Payload;
+import org.wahlque.net.transport.ReplyWriter;
+import org.wahlque.net.transport.RespReader;
 import org.wahlque.net.transport.payload.Error;
-import org.wahlque.net.transport.payload.Multiple;
+import org.wahlque.net.transport.payload.Frame;
 
-public class Session {
+public class Session implements Closeable {
 
 	private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
 	private Map<String, Object> context;
 	private ActionRegistry registry;
+	private RespReader reader;
+	private ReplyWriter writer;
 
 	public Session(ActionRegistry registry, Map<String, Object> context,
 			Socket clientSocket) {
 		this.context = context;
 		this.registry = registry;
+		this.context.put("connection", this);
 		try {
 			if (!context.containsKey("clientSocket")) {
 				context.put("clientSocket", clientSocket);
@@ -33,55 +40,68 @@ public class Session {
 				context.put("inputStream", clientSocket.getInputStream());
 			}
 			if (!context.containsKey("outputStream")) {
-				context.put("outputStream", clientSocket.getOutputStream());
+				context.put("outputStream", new BufferedOutputStream(
+						clientSocket.getOutputStream(), 8192));
 			}
+			writer = new ReplyWriter(
+					(OutputStream) context.get("outputStream"));
+			reader = new RespReader((InputStream) context.get("inputStream"),
+					writer);
 		} catch (IOException e) {
 			e.printStackTrace();
 			logger.error("session construct error", e);
 		}
 	}
 
+	/**
+	 * Runs the next command and every further one the client has already
+	 * pipelined, then flushes all their replies at once. The reader flushes
+	 * them earlier when it has to wait for the rest of a frame.
+	 */
 	public void execute() {
 
-		InputStream ins = (InputStream) this.context.get("inputStream");
-		OutputStream outs = (OutputStream) this.context.get("outputStream");
+		do {
+			Frame multiple = null;
+			try {
+				multiple = reader.readFrame();
+			} catch (IOException e) {
+				e.printStackTrace();
+				logger.error("command reading error", e);
+			}
 
-		Multiple multiple = null;
-		try {
-			multiple = (Multiple) (Transport.readPayload(ins));
-		} catch (IOException e) {
-			e.printStackTrace();
-			logger.error("command reading error", e);
-		}
+			String action = "exit";
+			if (multiple != null) {
+				action = multiple.stringAt(0).toLowerCase();
+			}
 
-		String action = "exit";
-		if (multiple != null) {
-			action = new String((byte[]) (multiple.data()[0].data()))
-					.toLowerCase();
-		}
+			Action instance = registry.get(action);
+			if (instance == null) {
+				instance = registry.failback();
+			}
 
-		Action instance = registry.get(action);
-		if (instance == null) {
-			instance = registry.failback();
-		}
+			Payload<?> reply;
+			try {
+				reply = instance.apply(context, multiple);
+			} catch (Exception e) {
+				e.printStackTrace();
+				logger.error("command applying error", e);
+				reply = new Error(e.getMessage());
+			}
 
-		Exception err = null;
-		try {
-			Transport.writePayload(outs, instance.apply(context, multiple));
-			outs.flush();
-		} catch (Exception e) {
-			e.printStackTrace();
-			logger.error("payload writing error", e);
-			err = e;
-		}
+			try {
+				writer.write(reply);
+			} catch (Exception e) {
+				e.printStackTrace();
+				logger.error("payload writing error", e);
+			}
+		} while (!isClosed() && reader.buffered());
 
-		if (err != null) {
+		if (!isClosed()) {
 			try {
-				Transport.writePayload(outs, new Error(err.getMessage()));
-				outs.flush();
+				writer.flush();
 			} catch (Exception e) {
 				e.printStackTrace();
-				logger.error("error payload writing error", e);
+				logger.error("payload flushing error", e);
 			}
 		}
 
@@ -106,7 +126,7 @@ public class Session {
 				ins.close();
 			}
 			if (outs != null) {
-				outs.flush();
+				writer.flush();
 				outs.close();
 			}
 			if (clientSocket != null) {
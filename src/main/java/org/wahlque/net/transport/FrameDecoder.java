@@ -0,0 +1,158 @@
+package org.wahlque.net.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.wahlque.net.transport.payload.Bytes;
+import org.wahlque.net.transport.payload.Frame;
+import org.wahlque.net.transport.payload.Multiple;
+
+/**
+ * Incremental decoder for client commands, i.e. arrays of bulk strings, fed
+ * from a non-blocking channel. The decoder keeps its place between calls, so
+ * a frame may arrive in any number of pieces; only whole lines and whole bulk
+ * strings are consumed from the buffer. Like RespReader it decodes every
+ * command into the same Frame.
+ *
+ * The sizes in the headers come from the client and size the buffers of the
+ * caller, so an array or bulk string over the limits given is refused with
+ * an IOException before anything is allocated for it.
+ */
+public class FrameDecoder {
+
+	private static final long NONE = Long.MIN_VALUE;
+	public static final int MAX_ARRAY = 16 * 1024 * 1024;
+	public static final int MAX_BULK = 16 * 1024 * 1024;
+
+	private final int maxArray;
+	private final int maxBulk;
+
+	private int count = -1;// 当前数组的元素个数，-1表示还没有读到数组头
+	private final Frame frame = new Frame();
+	private int index;
+	private int bulk = -1;// 当前bulk string的长度，-1表示还没有读到长度行
+
+	public FrameDecoder() {
+		this(MAX_ARRAY, MAX_BULK);
+	}
+
+	/**
+	 * @param maxArray
+	 *            the most items a command may have
+	 * @param maxBulk
+	 *            the longest bulk string, in bytes
+	 */
+	public FrameDecoder(int maxArray, int maxBulk) {
+		this.maxArray = maxArray;
+		this.maxBulk = maxBulk;
+	}
+
+	/**
+	 * @return the next complete frame, valid until the next call, or null when
+	 *         the buffer ends inside one
+	 */
+	public Frame decode(ByteBuffer buffer) throws IOException {
+		if (count < 0) {
+			long size = line(buffer, Multiple.discriminator);
+			if (size == NONE) {
+				return null;
+			}
+			if (size < 0 || size > Integer.MAX_VALUE) {
+				throw new IOException("Invalid array size: " + size);
+			}
+			if (size > maxArray) {
+				throw new IOException("Array size " + size + " over the limit of "
+						+ maxArray);
+			}
+			count = (int) size;
+			frame.clear();
+			index = 0;
+		}
+
+		while (index < count) {
+			if (bulk < 0) {
+				long size = line(buffer, Bytes.discriminator);
+				if (size == NONE) {
+					return null;
+				}
+				if (size < 0 || size > Integer.MAX_VALUE - 2) {
+					throw new IOException("Invalid bulk size: " + size);
+				}
+				if (size > maxBulk) {
+					throw new IOException("Bulk size " + size
+							+ " over the limit of " + maxBulk);
+				}
+				bulk = (int) size;
+			}
+			if (buffer.remaining() < bulk + 2) {
+				return null;
+			}
+			int offset = frame.reserve(bulk);
+			buffer.get(frame.buffer(), offset, bulk);
+			if (buffer.get() != Transport.CR || buffer.get() != Transport.LF) {
+				throw new IOException(
+						"Invalid ending character in the section for bytes");
+			}
+			index++;
+			bulk = -1;
+		}
+
+		count = -1;
+		return frame;
+	}
+
+	/**
+	 * Bytes still needed before the pending bulk string is complete, so the
+	 * caller can grow its buffer; 0 when no bulk string is pending.
+	 */
+	public int pending() {
+		return bulk < 0 ? 0 : bulk + 2;
+	}
+
+	/**
+	 * Reads a "&lt;discriminator&gt;&lt;number&gt;\r\n" line, leaving the buffer
+	 * untouched when the line is not complete yet.
+	 */
+	private static long line(ByteBuffer buffer, char discriminator)
+			throws IOException {
+		int start = buffer.position();
+		int limit = buffer.limit();
+		int end = -1;
+		for (int i = start; i + 1 < limit; i++) {
+			if (buffer.get(i) == Transport.CR
+					&& buffer.get(i + 1) == Transport.LF) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			return NONE;
+		}
+		if (buffer.get(start) != discriminator) {
+			throw new IOException("Unexpected " + (char) buffer.get(start)
+					+ ", expecting " + discriminator);
+		}
+
+		int pos = start + 1;
+		int sign = 1;
+		if (pos < end && buffer.get(pos) == '-') {
+			sign = -1;
+			pos++;
+		}
+		if (pos == end) {
+			throw new IOException("Missing number after " + discriminator);
+		}
+		long number = 0;
+		for (; pos < end; pos++) {
+			int digit = buffer.get(pos) - '0';
+			if (digit < 0 || digit > 9 || number > Integer.MAX_VALUE) {
+				throw new IOException(
+						"Invalid character in the section for size");
+			}
+			number = number * 10 + digit;
+		}
+		buffer.position(end + 2);
+		return sign * number;
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.wahlque.net.transport;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.wahlque.net.transport.payload.Status;
+
+/**
+ * Writes the replies of a pipeline of commands. Runs of "+OK", which is what
+ * every queued write acknowledges with, are counted and copied out in bulk
+ * from a pre-encoded block instead of being serialized one by one; nothing
+ * reaches the client before flush().
+ */
+public class ReplyWriter implements Flushable {
+
+	private static final byte[] OK = "+OK\r\n".getBytes();
+	private static final int BLOCK = 64;
+	private static final byte[] OKS = new byte[OK.length * BLOCK];
+
+	static {
+		for (int i = 0; i < BLOCK; i++) {
+			System.arraycopy(OK, 0, OKS, i * OK.length, OK.length);
+		}
+	}
+
+	private final OutputStream os;
+	private int acks;// 还没写出的OK个数
+
+	public ReplyWriter(OutputStream os) {
+		this.os = os;
+	}
+
+	public void write(Payload<?> payload) throws IOException {
+		if (payload instanceof Status && "OK".equals(payload.data())) {
+			acks++;
+			return;
+		}
+		drain();
+		Transport.writePayload(os, payload);
+	}
+
+	public void flush() throws IOException {
+		drain();
+		os.flush();
+	}
+
+	private void drain() throws IOException {
+		while (acks > 0) {
+			int count = Math.min(acks, BLOCK);
+			os.write(OKS, 0, count * OK.length);
+			acks -= count;
+		}
+	}
+
+}
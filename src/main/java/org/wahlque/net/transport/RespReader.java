@@ -0,0 +1,137 @@
+package org.wahlque.net.transport;
+
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.wahlque.net.transport.payload.Bytes;
+import org.wahlque.net.transport.payload.Frame;
+import org.wahlque.net.transport.payload.Multiple;
+
+/**
+ * Buffered reader for client commands on a blocking stream. The stream is
+ * read in large chunks into a reusable buffer and every command is decoded
+ * into the same Frame, so reading a command allocates nothing once the
+ * buffers have grown to the size of the largest one.
+ *
+ * Replies to a pipeline are held back until the pipeline is read, so before
+ * any read that would block the reader flushes them: the client may be
+ * waiting on them before it sends the rest of a frame.
+ */
+public class RespReader {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final InputStream is;
+	private final Flushable replies;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+	private final Frame frame = new Frame();
+
+	public RespReader(InputStream is) {
+		this(is, null);
+	}
+
+	/**
+	 * @param replies flushed before every read of the stream that may block
+	 */
+	public RespReader(InputStream is, Flushable replies) {
+		this.is = is;
+		this.replies = replies;
+	}
+
+	/**
+	 * @return whether more input is already buffered, i.e. the client has
+	 *         pipelined another command
+	 */
+	public boolean buffered() {
+		return position < limit;
+	}
+
+	/**
+	 * @return the next command, valid until the next call, or null at the end
+	 *         of the stream
+	 */
+	public Frame readFrame() throws IOException {
+		int discr = read();
+		if (discr == -1) {
+			return null;
+		}
+		if (discr != Multiple.discriminator) {
+			throw new IOException(String.valueOf((char) discr));
+		}
+
+		frame.clear();
+		int count = readSize();
+		for (int i = 0; i < count; i++) {
+			int next = read();
+			if (next != Bytes.discriminator) {
+				throw new IOException("Unexpected " + (char) next
+						+ ", expecting " + Bytes.discriminator);
+			}
+			int length = readSize();
+			int offset = frame.reserve(length);
+			byte[] target = frame.buffer();
+			while (length > 0) {
+				if (position == limit && !fill()) {
+					throw new EOFException("Unexpected end");
+				}
+				int chunk = Math.min(length, limit - position);
+				System.arraycopy(buffer, position, target, offset, chunk);
+				position += chunk;
+				offset += chunk;
+				length -= chunk;
+			}
+			int cr = read(), lf = read();
+			if (cr != Transport.CR || lf != Transport.LF) {
+				throw new IOException(
+						"Invalid ending character in the section for bytes: "
+								+ cr + ", " + lf);
+			}
+		}
+		return frame;
+	}
+
+	private boolean fill() throws IOException {
+		if (replies != null && is.available() == 0) {
+			replies.flush();
+		}
+		int count = is.read(buffer, 0, buffer.length);
+		position = 0;
+		limit = Math.max(count, 0);
+		return count > 0;
+	}
+
+	private int read() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	private int readSize() throws IOException {
+		int next = read();
+		if (next == '-') {
+			throw new IOException("Server only supports nonnegitive sizes");
+		}
+		long size = 0;
+		while (next != Transport.CR) {
+			int digit = next - '0';
+			if (next == -1) {
+				throw new EOFException("Unexpected end");
+			} else if (digit < 0 || digit > 9 || size > Integer.MAX_VALUE) {
+				throw new IOException(
+						"Invalid character in the section for size");
+			}
+			size = size * 10 + digit;
+			next = read();
+		}
+		if (read() != Transport.LF || size > Integer.MAX_VALUE) {
+			throw new IOException("Invalid character in the section for size");
+		}
+		return (int) size;
+	}
+
+}
@@ -127,6 +127,111 @@ public class Transport {
 		return number;
 	}
 
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+			1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// 再乘10之后仍然要满足mantissa + 1 < 2^53
+	private static final long MANTISSA_LIMIT = (1L << 53) / 10 - 1;
+
+	/**
+	 * Parses a decimal float straight from the bytes of a bulk string, with
+	 * the same result as Float.parseFloat. Plain decimals are converted
+	 * through an exact double without allocating; exponents, very long
+	 * numbers and the rare ambiguous roundings fall back to Float.parseFloat.
+	 */
+	public static float parseFloat(byte[] bytes, int offset, int length) {
+		int pos = offset, end = offset + length;
+		boolean negative = false;
+		if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+			negative = bytes[pos] == '-';
+			pos++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean digits = false, dot = false, truncated = false;
+		for (; pos < end; pos++) {
+			int digit = bytes[pos] - ZERO;
+			if (digit >= 0 && digit < 10) {
+				digits = true;
+				if (mantissa <= MANTISSA_LIMIT) {
+					mantissa = mantissa * 10 + digit;
+					if (dot) {
+						exponent--;
+					}
+				} else {
+					truncated |= digit != 0;
+					if (!dot) {
+						exponent++;
+					}
+				}
+			} else if (bytes[pos] == '.' && !dot) {
+				dot = true;
+			} else {
+				return Float.parseFloat(new String(bytes, offset, length));
+			}
+		}
+		if (!digits || exponent < -22 || exponent > 22) {
+			return Float.parseFloat(new String(bytes, offset, length));
+		}
+
+		// 截断过的数字落在(mantissa, mantissa + 1)之间，两端舍入到同一个float才可信
+		float result = narrow(mantissa, exponent);
+		if (result != result
+				|| (truncated && narrow(mantissa + 1, exponent) != result)) {
+			return Float.parseFloat(new String(bytes, offset, length));
+		}
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Rounds mantissa * 10^exponent to a float, or NaN when the double in
+	 * between sits exactly halfway between two floats or below the normal
+	 * range, where rounding twice could differ from rounding once.
+	 */
+	private static float narrow(long mantissa, int exponent) {
+		double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa
+				* POW10[exponent];
+		if (value == 0) {
+			return 0f;
+		}
+		if (value < Float.MIN_NORMAL
+				|| (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L) {
+			return Float.NaN;
+		}
+		return (float) value;
+	}
+
+	/**
+	 * Parses a decimal int straight from the bytes of a bulk string, failing
+	 * the same way as Integer.parseInt.
+	 */
+	public static int parseInt(byte[] bytes, int offset, int length) {
+		int pos = offset, end = offset + length;
+		boolean negative = false;
+		if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+			negative = bytes[pos] == '-';
+			pos++;
+		}
+		long number = 0;
+		if (pos == end || end - pos > 10) {
+			return Integer.parseInt(new String(bytes, offset, length));
+		}
+		for (; pos < end; pos++) {
+			int digit = bytes[pos] - ZERO;
+			if (digit < 0 || digit > 9) {
+				return Integer.parseInt(new String(bytes, offset, length));
+			}
+			number = number * 10 + digit;
+		}
+		number = negative ? -number : number;
+		if (number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+			return Integer.parseInt(new String(bytes, offset, length));
+		}
+		return (int) number;
+	}
+
 	public static void writeFloat(OutputStream os, float value)
 			throws IOException {
 		String s = String.valueOf(value);
@@ -0,0 +1,108 @@
+package org.wahlque.net.transport.payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.wahlque.net.transport.Payload;
+import org.wahlque.net.transport.Transport;
+
+/**
+ * A client command whose bulk strings are kept back to back in one reusable
+ * byte array, so numbers can be parsed in place. A reader hands out the same
+ * frame for every command; it is only valid until the next one is read.
+ * Items are turned into Bytes only when data() is called.
+ */
+public class Frame extends Multiple {
+
+	private byte[] buffer = new byte[1024];
+	private int used;
+	private int[] offsets = new int[16];
+	private int[] lengths = new int[16];
+	private int size;
+
+	public Frame() {
+		super(null);
+	}
+
+	public void clear() {
+		used = 0;
+		size = 0;
+		value = null;
+	}
+
+	/**
+	 * Appends an item of the given length, to be filled in by the caller.
+	 *
+	 * @return the offset of the item in buffer()
+	 */
+	public int reserve(int length) {
+		if (size == offsets.length) {
+			int[] grown = new int[size * 2];
+			System.arraycopy(offsets, 0, grown, 0, size);
+			offsets = grown;
+			grown = new int[size * 2];
+			System.arraycopy(lengths, 0, grown, 0, size);
+			lengths = grown;
+		}
+		if (buffer.length - used < length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, used + length)];
+			System.arraycopy(buffer, 0, grown, 0, used);
+			buffer = grown;
+		}
+		int offset = used;
+		offsets[size] = offset;
+		lengths[size] = length;
+		size++;
+		used += length;
+		return offset;
+	}
+
+	public byte[] buffer() {
+		return buffer;
+	}
+
+	@Override
+	public void read(InputStream is) throws IOException {
+		clear();
+		int count = Transport.readSize(is);
+		for (int i = 0; i < count; i++) {
+			byte[] item = (byte[]) Transport.readPayload(is).data();
+			int offset = reserve(item.length);
+			System.arraycopy(item, 0, buffer, offset, item.length);
+		}
+	}
+
+	@Override
+	public Payload<?>[] data() {
+		if (value == null) {
+			value = new Payload<?>[size];
+			for (int i = 0; i < size; i++) {
+				byte[] item = new byte[lengths[i]];
+				System.arraycopy(buffer, offsets[i], item, 0, lengths[i]);
+				value[i] = new Bytes(item);
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String stringAt(int i) {
+		return new String(buffer, offsets[i], lengths[i]);
+	}
+
+	@Override
+	public int intAt(int i) {
+		return Transport.parseInt(buffer, offsets[i], lengths[i]);
+	}
+
+	@Override
+	public float floatAt(int i) {
+		return Transport.parseFloat(buffer, offsets[i], lengths[i]);
+	}
+
+}
@@ -24,6 +24,27 @@ public class Multiple implements Payload<Payload<?>[]> {
         return value;
     }
 
+    public int size() {
+        return data().length;
+    }
+
+    /**
+     * The i-th item as a string; items are expected to be bulk strings.
+     */
+    public String stringAt(int i) {
+        return new String((byte[]) data()[i].data());
+    }
+
+    public int intAt(int i) {
+        byte[] bytes = (byte[]) data()[i].data();
+        return Transport.parseInt(bytes, 0, bytes.length);
+    }
+
+    public float floatAt(int i) {
+        byte[] bytes = (byte[]) data()[i].data();
+        return Transport.parseFloat(bytes, 0, bytes.length);
+    }
+
     public void read(InputStream is) throws IOException {
     	int size = Transport.readSize(is);
         value = new Payload<?>[size];
@@ -33,6 +54,7 @@ public class Multiple implements Payload<Payload<?>[]> {
     }
 
     public void write(OutputStream os) throws IOException {
+        Payload<?>[] value = data();
         Transport.writeDiscriminator(os, discriminator);
         Transport.writeSize(os, value.length);
         Transport.writeCRLF(os);
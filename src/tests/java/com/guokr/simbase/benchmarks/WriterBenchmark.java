@@ -0,0 +1,58 @@
+package com.guokr.simbase.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.guokr.simbase.SimTable;
+
+/**
+ * Ingest throughput of one table as the number of writer threads grows.
+ * Each writer owns the docids congruent to its number, as SimEngine does.
+ */
+public class WriterBenchmark {
+
+	private static final int DOCS = 20000;
+	private static final int DIMENSIONS = 64;
+
+	public static void main(String[] args) throws InterruptedException {
+		final float[][] distrs = new float[DOCS][DIMENSIONS];
+		Random random = new Random(42);
+		for (float[] distr : distrs) {
+			for (int j = 0; j < DIMENSIONS; j++) {
+				distr[j] = random.nextFloat();
+			}
+		}
+
+		int max = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= max; threads *= 2) {
+			Map<String, Object> context = new HashMap<String, Object>();
+			context.put("loadfactor", 0.75);
+			context.put("maxlimits", 20);
+			final SimTable table = new SimTable(context);
+
+			Thread[] writers = new Thread[threads];
+			long start = System.nanoTime();
+			for (int w = 0; w < threads; w++) {
+				final int offset = w;
+				final int step = threads;
+				writers[w] = new Thread() {
+					public void run() {
+						for (int i = offset; i < DOCS; i += step) {
+							table.add(i, distrs[i]);
+						}
+					}
+				};
+				writers[w].start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			long duration = System.nanoTime() - start;
+
+			System.out.println("writers:" + threads + "\tdocs/s:"
+					+ (DOCS * 1000000000L / duration));
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.guokr.simbase.SimTable;
+
+/**
+ * Seeded random vectors and tables built from them, shared by the benchmarks
+ * so every run scores the same corpus.
+ */
+public class Corpus {
+
+	public static float[][] vectors(int count, int dimensions, long seed) {
+		Random random = new Random(seed);
+		float[][] vectors = new float[count][dimensions];
+		for (float[] vector : vectors) {
+			float total = 0;
+			for (int j = 0; j < dimensions; j++) {
+				vector[j] = random.nextFloat();
+				total += vector[j];
+			}
+			for (int j = 0; j < dimensions; j++) {
+				vector[j] = vector[j] / total;
+			}
+		}
+		return vectors;
+	}
+
+	public static Map<String, Object> context() {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 20);
+		return context;
+	}
+
+	public static SimTable table(float[][] vectors) {
+		SimTable table = new SimTable(context());
+		for (int i = 0; i < vectors.length; i++) {
+			table.add(i, vectors[i]);
+		}
+		return table;
+	}
+
+}
@@ -0,0 +1,71 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.guokr.simbase.util.Kernel;
+
+/**
+ * Scoring a query against a block of slots laid out like DenseStore, with
+ * the plain one-accumulator loop the stores used before and with Kernel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KernelBench {
+
+	private static final int SLOTS = 256;
+
+	@Param({ "128", "512", "2048" })
+	public int dimensions;
+
+	private float[] query;
+	private float[] data;
+
+	@Setup(Level.Trial)
+	public void fill() {
+		query = Corpus.vectors(1, dimensions, 7)[0];
+		float[][] vectors = Corpus.vectors(SLOTS, dimensions, 42);
+		data = new float[SLOTS * dimensions];
+		for (int slot = 0; slot < SLOTS; slot++) {
+			System.arraycopy(vectors[slot], 0, data, slot * dimensions,
+					dimensions);
+		}
+	}
+
+	@Benchmark
+	public void naive(Blackhole hole) {
+		for (int slot = 0; slot < SLOTS; slot++) {
+			int base = slot * dimensions;
+			float sum = 0;
+			for (int i = 0; i < query.length; i++) {
+				sum += query[i] * data[base + i];
+			}
+			hole.consume(sum);
+		}
+	}
+
+	@Benchmark
+	public void kernel(Blackhole hole) {
+		for (int slot = 0; slot < SLOTS; slot++) {
+			hole.consume(Kernel.dot(query, data, slot * dimensions));
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.SimTable;
+
+/**
+ * Snapshot serialization of a table, in memory so the disk stays out of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KryoBench {
+
+	@Param({ "1000", "10000" })
+	public int docs;
+
+	@Param({ "64", "512" })
+	public int dimensions;
+
+	private final Kryo kryo = new Kryo();
+	private SimTable table;
+	private Output output;
+	private byte[] snapshot;
+
+	@Setup(Level.Trial)
+	public void build() {
+		table = Corpus.table(Corpus.vectors(docs, dimensions, 42));
+		output = new Output(1 << 20, -1);
+		table.write(kryo, output);
+		snapshot = output.toBytes();
+	}
+
+	@Benchmark
+	public Output write() {
+		output.clear();
+		table.write(kryo, output);
+		return output;
+	}
+
+	@Benchmark
+	public SimTable read() {
+		SimTable copy = new SimTable(Corpus.context());
+		copy.read(kryo, new Input(snapshot));
+		return copy;
+	}
+
+}
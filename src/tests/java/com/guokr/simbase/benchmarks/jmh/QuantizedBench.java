@@ -0,0 +1,156 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.guokr.simbase.SimTable;
+import com.guokr.simbase.store.MappedStore;
+import com.guokr.simbase.store.QuantizedStore;
+
+/**
+ * Heap storage against int8 codes backed by mapped files. Besides the timed
+ * add and vnear scans, the setup prints the heap taken by the table and the
+ * recall@20 of the vrec lists and of vnear against the exact heap table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QuantizedBench {
+
+	private static final int DOCS = 5000;
+	private static final int DIMENSIONS = 256;
+
+	@Param({ "heap", "int8" })
+	public String storage;
+
+	private float[][] probes;
+	private SimTable table;
+	private File dir;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void build() throws Exception {
+		float[][] vectors = Corpus.vectors(DOCS, DIMENSIONS, 42);
+		probes = Corpus.vectors(64, DIMENSIONS, 7);
+		SimTable exact = Corpus.table(vectors);
+
+		long before = used();
+		Map<String, Object> context = Corpus.context();
+		if (QuantizedStore.STORAGE.equals(storage)) {
+			dir = File.createTempFile("quantized", "");
+			dir.delete();
+			table = new SimTable(context, new QuantizedStore(new MappedStore(
+					dir)));
+		} else {
+			table = new SimTable(context);
+		}
+		for (int i = 0; i < vectors.length; i++) {
+			table.add(i, vectors[i]);
+		}
+		long heap = used() - before;
+
+		int found = 0;
+		int total = 0;
+		for (int i = 0; i < DOCS; i++) {
+			found += overlap(exact.recommend(i), table.recommend(i));
+			total += exact.recommend(i).length;
+		}
+		int nearFound = 0;
+		int nearTotal = 0;
+		for (float[] probe : probes) {
+			int[] expected = docids(exact.nearby(probe));
+			nearFound += overlap(expected, docids(table.nearby(probe)));
+			nearTotal += expected.length;
+		}
+		System.out.println();
+		System.out.println("storage " + storage + ": heap " + heap / 1024
+				+ " KB, vrec recall@20 " + (float) found / total
+				+ ", vnear recall@20 " + (float) nearFound / nearTotal);
+	}
+
+	@TearDown(Level.Trial)
+	public void clean() {
+		if (dir != null) {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static long used() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static int overlap(int[] expected, int[] actual) {
+		Set<Integer> set = new HashSet<Integer>();
+		for (int docid : expected) {
+			set.add(docid);
+		}
+		int found = 0;
+		for (int docid : actual) {
+			if (set.contains(docid)) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	private static int[] docids(String[] pickled) {
+		int[] docids = new int[pickled.length / 2];
+		for (int i = 0; i < docids.length; i++) {
+			docids[i] = Integer.parseInt(pickled[2 * i]);
+		}
+		return docids;
+	}
+
+	private float[] vector() {
+		next = (next + 1) % probes.length;
+		return probes[next];
+	}
+
+	@State(Scope.Thread)
+	public static class WithoutProbe {
+		@Setup(Level.Invocation)
+		public void remove(QuantizedBench bench) {
+			bench.table.delete(DOCS);
+		}
+	}
+
+	@Benchmark
+	public SimTable add(WithoutProbe state) {
+		table.add(DOCS, vector());
+		return table;
+	}
+
+	@Benchmark
+	public String[] nearby() {
+		return table.nearby(vector());
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.guokr.simbase.SimTable;
+
+/**
+ * SimTable operations against a corpus of the given size and dimension.
+ * add and delete work on one extra docid that the per-invocation setup
+ * removes or puts back, so the table keeps its size however long the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SimTableBench {
+
+	@Param({ "1000", "10000" })
+	public int docs;
+
+	@Param({ "64", "512" })
+	public int dimensions;
+
+	private float[][] vectors;
+	private float[][] probes;
+	private SimTable table;
+	private int next;
+	private int cursor;
+
+	@Setup(Level.Trial)
+	public void build() {
+		vectors = Corpus.vectors(docs, dimensions, 42);
+		probes = Corpus.vectors(64, dimensions, 7);
+		table = Corpus.table(vectors);
+	}
+
+	private int probe() {
+		return docs;
+	}
+
+	private float[] vector() {
+		next = (next + 1) % probes.length;
+		return probes[next];
+	}
+
+	private int docid() {
+		cursor = (cursor + 1) % docs;
+		return cursor;
+	}
+
+	@State(Scope.Thread)
+	public static class WithoutProbe {
+		@Setup(Level.Invocation)
+		public void remove(SimTableBench bench) {
+			bench.table.delete(bench.probe());
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class WithProbe {
+		@Setup(Level.Invocation)
+		public void restore(SimTableBench bench) {
+			bench.table.add(bench.probe(), bench.vector());
+		}
+	}
+
+	@Benchmark
+	public SimTable add(WithoutProbe state) {
+		table.add(probe(), vector());
+		return table;
+	}
+
+	@Benchmark
+	public SimTable delete(WithProbe state) {
+		table.delete(probe());
+		return table;
+	}
+
+	@Benchmark
+	public int[] recommend() {
+		return table.recommend(docid());
+	}
+
+	@Benchmark
+	public String[] retrieve() {
+		return table.retrieve(docid());
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public SimTable cloneTable() {
+		return table.clone();
+	}
+
+}
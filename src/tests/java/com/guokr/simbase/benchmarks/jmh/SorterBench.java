@@ -0,0 +1,71 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.guokr.simbase.util.Sorter;
+
+/**
+ * Sorter updates on a full list, with docids drawn from twice the limit so
+ * adds mix inserts, moves and drops.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SorterBench {
+
+	private static final int SAMPLES = 4096;
+
+	@Param({ "20", "100" })
+	public int limits;
+
+	private Sorter sorter;
+	private int[] docids = new int[SAMPLES];
+	private float[] scores = new float[SAMPLES];
+	private int next;
+
+	@Setup(Level.Trial)
+	public void fill() {
+		Random random = new Random(42);
+		for (int i = 0; i < SAMPLES; i++) {
+			docids[i] = random.nextInt(2 * limits);
+			scores[i] = random.nextFloat();
+		}
+		sorter = new Sorter(limits);
+		for (int i = 0; i <= limits; i++) {
+			sorter.add(i, random.nextFloat());
+		}
+	}
+
+	@Benchmark
+	public Sorter add() {
+		next = (next + 1) & (SAMPLES - 1);
+		sorter.add(docids[next], scores[next]);
+		return sorter;
+	}
+
+	@Benchmark
+	public Sorter removeAndAdd() {
+		next = (next + 1) & (SAMPLES - 1);
+		sorter.remove(docids[next]);
+		sorter.add(docids[(next + 1) & (SAMPLES - 1)], scores[next]);
+		return sorter;
+	}
+
+}
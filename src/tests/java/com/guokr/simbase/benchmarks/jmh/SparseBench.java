@@ -0,0 +1,72 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.guokr.simbase.SimTable;
+
+/**
+ * A full scan (vnear without an index) over topic distributions with the
+ * given share of nonzero components, with dense and with sparse storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SparseBench {
+
+	private static final int DOCS = 2000;
+	private static final int DIMENSIONS = 2048;
+
+	@Param({ "0.01", "0.05", "0.25" })
+	public float density;
+
+	@Param({ "heap", "sparse" })
+	public String storage;
+
+	private SimTable table;
+	private float[] query;
+
+	@Setup(Level.Trial)
+	public void build() {
+		Map<String, Object> context = Corpus.context();
+		context.put("storage", storage);
+		table = new SimTable(context);
+		Random random = new Random(42);
+		for (int i = 0; i < DOCS; i++) {
+			table.add(i, topics(random));
+		}
+		query = topics(random);
+	}
+
+	private float[] topics(Random random) {
+		float[] vector = new float[DIMENSIONS];
+		int nonzeros = Math.max(1, (int) (density * DIMENSIONS));
+		for (int k = 0; k < nonzeros; k++) {
+			vector[random.nextInt(DIMENSIONS)] = random.nextFloat();
+		}
+		return vector;
+	}
+
+	@Benchmark
+	public String[] nearby() {
+		return table.nearby(query);
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.guokr.simbase.benchmarks.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wahlque.net.transport.Payload;
+import org.wahlque.net.transport.RespReader;
+import org.wahlque.net.transport.Transport;
+import org.wahlque.net.transport.payload.Bytes;
+import org.wahlque.net.transport.payload.Frame;
+import org.wahlque.net.transport.payload.Multiple;
+
+/**
+ * Decoding one vadd frame into the float[] handed to SimBase, through
+ * Transport.readPayload and through RespReader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TransportBench {
+
+	@Param({ "64", "512" })
+	public int dimensions;
+
+	private ByteArrayInputStream input;
+	private RespReader reader;
+
+	@Setup(Level.Trial)
+	public void encode() throws IOException {
+		Random random = new Random(42);
+		Payload<?>[] items = new Payload<?>[dimensions + 3];
+		items[0] = new Bytes("vadd".getBytes());
+		items[1] = new Bytes("article".getBytes());
+		items[2] = new Bytes("123456".getBytes());
+		for (int i = 0; i < dimensions; i++) {
+			items[i + 3] = new Bytes(String.valueOf(random.nextDouble())
+					.getBytes());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Multiple(items).write(out);
+		// 每次调用都从头重读同一帧，reader和连接上一样复用
+		input = new ByteArrayInputStream(out.toByteArray());
+		reader = new RespReader(input);
+	}
+
+	@Benchmark
+	public float[] readPayload() throws IOException {
+		input.reset();
+		Payload<?>[] items = ((Multiple) Transport.readPayload(input)).data();
+		float[] distr = new float[items.length - 3];
+		for (int i = 0; i < distr.length; i++) {
+			distr[i] = Float.parseFloat(new String((byte[]) items[i + 3]
+					.data()));
+		}
+		return distr;
+	}
+
+	@Benchmark
+	public float[] respReader() throws IOException {
+		input.reset();
+		Frame multiple = reader.readFrame();
+		float[] distr = new float[multiple.size() - 3];
+		for (int i = 0; i < distr.length; i++) {
+			distr[i] = multiple.floatAt(i + 3);
+		}
+		return distr;
+	}
+
+}
@@ -1,16 +1,29 @@
 package com.guokr.simbase.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
+import org.wahlque.net.transport.Payload;
 import org.yaml.snakeyaml.Yaml;
 
 import com.guokr.simbase.SimBase;
+import com.guokr.simbase.SimBaseException;
+import com.guokr.simbase.SimEngine;
+import com.guokr.simbase.WriteAheadLog;
+import com.guokr.simbase.reply.Result;
 
 public class SimEngineTests {
 
@@ -50,7 +63,7 @@ public class SimEngineTests {
 		System.out.println();
 	}
 
-	private SimBase initSimBase(String key) {
+	private Map<String, Object> config() {
 		Map<String, Object> context = new HashMap<String, Object>();
 		try {
 			Yaml yaml = new Yaml();
@@ -60,8 +73,11 @@ public class SimEngineTests {
 			context = new HashMap<String, Object>(config);
 		} catch (IOException e) {
 		}
+		return context;
+	}
 
-		SimBase simbase = new SimBase(context);
+	private SimBase initSimBase(String key) {
+		SimBase simbase = new SimBase(config());
 		simbase.add(key, 0, new float[] { 0.18257418583505536f,
 				0.3651483716701107f, 0.5477225575051661f, 0.7302967433402214f });
 		simbase.add(key, 1, new float[] { 0.18257418583505536f,
@@ -163,4 +179,138 @@ public class SimEngineTests {
 
 	}
 
+	@Test
+	public void test_stats() {
+		String key = "test3";
+		SimBase simbase = initSimBase(key);
+		delay(1);
+		String[] stats = simbase.stats(key);
+		assertEquals("queue.depth", stats[0]);
+		assertEquals("0", stats[1]);
+		assertEquals("add.count", stats[8]);
+		assertEquals("24", stats[9]);
+		assertEquals(0, simbase.stats("missing").length);
+	}
+
+	@Test
+	public void test_reply_cache() throws Exception {
+		String key = "test5";
+		SimBase simbase = initSimBase(key);
+		delay(1);
+		Payload<?> first = simbase.recommendReply(key, 0);
+		assertTrue(first == simbase.recommendReply(key, 0));
+		assertTrue(Arrays.equals(encode(new Result(simbase.recommend(key, 0))),
+				encode(first)));
+
+		int top = simbase.recommend(key, 0)[0];
+		simbase.delete(key, top);// 删除改变了0的列表，缓存随之失效
+		delay(1);
+		Payload<?> second = simbase.recommendReply(key, 0);
+		assertTrue(first != second);
+		assertTrue(Arrays.equals(encode(new Result(simbase.recommend(key, 0))),
+				encode(second)));
+
+		List<String> stats = Arrays.asList(simbase.stats(key));
+		assertEquals("1", stats.get(stats.indexOf("cache.hits") + 1));
+		assertEquals("2", stats.get(stats.indexOf("cache.misses") + 1));
+	}
+
+	private byte[] encode(Payload<?> reply) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		reply.write(bytes);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void test_loading() throws Exception {
+		SimEngine engine = new SimEngine("test4", config());
+		engine.loading();
+		try {
+			engine.retrieve(0);
+			fail("read while loading");
+		} catch (SimBaseException e) {
+			assertTrue(e.getMessage().startsWith("LOADING test4"));
+		}
+		engine.add(0, new float[] { 0.6f, 0.8f });// 排在加载之后
+		try {
+			engine.load("test4");
+			fail("no dump for test4");
+		} catch (FileNotFoundException e) {
+		}
+		assertTrue(engine.ready());
+		delay(1);
+		assertEquals(2, engine.get(0).size());
+	}
+
+	@Test
+	public void test_wal() throws Exception {
+		Map<String, Object> config = config();
+		config.put("wal", true);
+		config.put("walSync", "always");
+		SimEngine engine = new SimEngine("test6", config);
+		engine.add(0, new float[] { 0.6f, 0.8f });
+		engine.add(1, new float[] { 0.8f, 0.6f });
+		engine.add(2, new float[] { 0.7f, 0.7f });
+		engine.delete(2);
+		delay(1);
+
+		// 没有存盘，重启后从日志恢复
+		SimEngine restarted = new SimEngine("test6", config);
+		restarted.loading();
+		try {
+			restarted.load("test6");
+			fail("no dump for test6");
+		} catch (FileNotFoundException e) {
+		}
+		assertTrue(restarted.ready());
+		assertEquals(engine.get(0), restarted.get(0));
+		assertEquals(engine.get(1), restarted.get(1));
+		assertTrue(Arrays.equals(engine.retrieve(0), restarted.retrieve(0)));// 删除的2不在列表中
+
+		File log = new File("data/test6" + WriteAheadLog.EXTENSION);
+		for (File file : log.listFiles()) {
+			file.delete();
+		}
+		log.delete();
+	}
+
+	@Test
+	public void test_wal_corrupt_dump() throws Exception {
+		Map<String, Object> config = config();
+		config.put("wal", true);
+		config.put("walSync", "always");
+		SimEngine engine = new SimEngine("test7", config);
+		engine.add(0, new float[] { 0.6f, 0.8f });
+		engine.add(1, new float[] { 0.8f, 0.6f });
+		engine.save("test7");
+		delay(1);
+		engine.add(2, new float[] { 0.7f, 0.7f });// 存盘之后只在日志中
+		delay(1);
+
+		File dump = new File("data/test7.dmp");
+		RandomAccessFile file = new RandomAccessFile(dump, "rw");
+		file.setLength(file.length() / 2);
+		file.close();
+
+		SimEngine restarted = new SimEngine("test7", config);
+		restarted.loading();
+		try {
+			restarted.load("test7");
+			fail("truncated dump for test7");
+		} catch (SimBaseException e) {
+			assertTrue(e.getMessage().startsWith("Can not load"));
+		}
+		assertTrue(!restarted.ready());
+		List<String> stats = Arrays.asList(restarted.stats());
+		assertEquals("0", stats.get(stats.indexOf("score.pairs") + 1));// 没有重放
+
+		dump.delete();
+		new File("data/test7.bak").delete();
+		File log = new File("data/test7" + WriteAheadLog.EXTENSION);
+		for (File segment : log.listFiles()) {
+			segment.delete();
+		}
+		log.delete();
+	}
+
 }
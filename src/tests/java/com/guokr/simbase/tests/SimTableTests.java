@@ -1,12 +1,37 @@
 package com.guokr.simbase.tests;
 
 import static org.junit.Assert.assertTrue;
+import gnu.trove.list.TFloatList;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guokr.simbase.SimBaseException;
 import com.guokr.simbase.SimTable;
+import com.guokr.simbase.WriteAheadLog;
+import com.guokr.simbase.store.MappedStore;
+import com.guokr.simbase.store.Snapshot;
+import com.guokr.simbase.util.ChunkedInput;
+import com.guokr.simbase.util.ChunkedOutput;
 
 public class SimTableTests {
 
@@ -25,9 +50,751 @@ public class SimTableTests {
 		}
 	}
 
+	private SimTable parallelTable() {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 20);
+		context.put("parallelism", 4);
+		context.put("minSegmentSize", 1);
+		return new SimTable(context);
+	}
+
 	@Test
 	public void test3d() {
+		check3d(new SimTable());
+	}
+
+	@Test
+	public void test3dParallel() {
+		check3d(parallelTable());
+	}
+
+	@Test
+	public void test4d() {
+		check4d(new SimTable());
+	}
+
+	@Test
+	public void test4dParallel() {
+		check4d(parallelTable());
+	}
+
+	@Test
+	public void testParallelMatchesSerial() {
+		SimTable serial = new SimTable();
+		SimTable parallel = parallelTable();
+		for (int i = 0; i < 200; i++) {
+			float[] distr = new float[] { (i % 7) * 0.1f + 0.05f,
+					(i % 5) * 0.1f + 0.05f, (i % 3) * 0.1f + 0.05f,
+					(i % 11) * 0.05f + 0.05f };
+			serial.add(i, distr);
+			parallel.add(i, distr);
+		}
+		for (int i = 0; i < 200; i++) {
+			assertTrue(Arrays.equals(serial.retrieve(i), parallel.retrieve(i)));
+		}
+	}
+
+	@Test
+	public void testConcurrentWritersMatchSerial() throws InterruptedException {
+		final SimTable serial = new SimTable();
+		final SimTable concurrent = new SimTable();
+		final float[][] distrs = new float[400][];
+		Random random = new Random(7);
+		for (int i = 0; i < distrs.length; i++) {
+			distrs[i] = new float[] { random.nextFloat(), random.nextFloat(),
+					random.nextFloat(), random.nextFloat() };
+			serial.add(i, distrs[i]);
+		}
+
+		Thread[] writers = new Thread[4];
+		for (int w = 0; w < writers.length; w++) {
+			final int offset = w;
+			writers[w] = new Thread() {
+				public void run() {
+					for (int i = offset; i < distrs.length; i += 4) {
+						concurrent.add(i, distrs[i]);
+					}
+				}
+			};
+			writers[w].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		// 先加入的一方决定了除法的顺序，分数只在末位上有差别
+		for (int i = 0; i < distrs.length; i++) {
+			assertTrue(Arrays.equals(serial.recommend(i),
+					concurrent.recommend(i)));
+		}
+	}
+
+	@Test
+	public void testReadersDuringWrites() throws InterruptedException {
+		final SimTable table = new SimTable();
+		final Random random = new Random(13);
+		for (int i = 0; i < 200; i++) {
+			table.add(i, new float[] { random.nextFloat(), random.nextFloat(),
+					random.nextFloat(), random.nextFloat() });
+		}
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int n = 0; n < 3000; n++) {
+						int docid = random.nextInt(400);
+						if (n % 5 == 0) {
+							table.delete(docid);
+						} else {
+							table.add(docid, new float[] { random.nextFloat(),
+									random.nextFloat(), random.nextFloat(),
+									random.nextFloat() });
+						}
+					}
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				} finally {
+					writing.set(false);
+				}
+			}
+		};
+		Thread[] readers = new Thread[50];
+		for (int r = 0; r < readers.length; r++) {
+			final Random picks = new Random(r);
+			readers[r] = new Thread() {
+				public void run() {
+					try {
+						while (writing.get()) {
+							int docid = picks.nextInt(400);
+							String[] set = table.retrieve(docid);
+							assertTrue(set.length % 2 == 0 && set.length <= 40);
+							for (int i = 3; i < set.length; i += 2) {// 读到的列表总是有序的
+								assertTrue(Float.parseFloat(set[i - 2]) >= Float
+										.parseFloat(set[i]));
+							}
+							Set<Integer> docids = new HashSet<Integer>();
+							for (int id : table.recommend(docid)) {
+								assertTrue(docids.add(id));
+							}
+							TFloatList vector = table.get(docid);
+							assertTrue(vector == null || vector.size() == 4);
+						}
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			};
+			readers[r].start();
+		}
+		writer.start();
+		writer.join();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+	}
+
+	@Test
+	public void testBatchMatchesSerial() {
+		SimTable serial = new SimTable();
+		SimTable batched = new SimTable();
+		SimTable parallel = parallelTable();
+		Random random = new Random(11);
+		int[] docids = new int[300];
+		float[][] distrs = new float[300][];
+		for (int i = 0; i < docids.length; i++) {
+			docids[i] = i;
+			distrs[i] = new float[] { random.nextFloat(), random.nextFloat(),
+					random.nextFloat(), random.nextFloat() };
+			serial.add(docids[i], distrs[i]);
+		}
+		for (int from = 0; from < docids.length; from += 70) {
+			int to = Math.min(docids.length, from + 70);
+			int[] ids = Arrays.copyOfRange(docids, from, to);
+			float[][] vectors = Arrays.copyOfRange(distrs, from, to);
+			batched.addBatch(ids, vectors);
+			parallel.addBatch(ids, vectors);
+		}
+		for (int i = 0; i < docids.length; i++) {
+			assertTrue(Arrays.equals(serial.recommend(i), batched.recommend(i)));
+			assertTrue(Arrays.equals(serial.recommend(i), parallel.recommend(i)));
+		}
+	}
+
+	@Test
+	public void testUnboundedValues() {
+		SimTable table = new SimTable();
+		int big = 100000007;// 超出float能精确表示的整数范围
+
+		table.add(big, new float[] { 2.5f, -1f, 0f });
+		table.add(big + 1, new float[] { 2.5f, -1f, 0f });
+		table.add(3, new float[] { 0f, 0f, 1f });
+		table.delete(3);
+
+		float[] stored = table.get(big).toArray();
+		assertTrue(Arrays.equals(new float[] { 2.5f, -1f, 0f }, stored));
+		assertTrue(table.get(3) == null);
+		assertTrue(Arrays.equals(new int[] { big + 1 }, table.recommend(big)));
+		assertTrue(Arrays.equals(new int[] { big }, table.recommend(big + 1)));
+	}
+
+	@Test
+	public void testMappedStorage() {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"simbase-mapped-" + System.nanoTime());
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 20);
+
+		SimTable heap = new SimTable();
+		SimTable mapped = new SimTable(context, new MappedStore(dir));
+		for (int i = 0; i < 50; i++) {
+			float[] distr = new float[] { (i % 7) * 0.1f + 0.05f,
+					(i % 5) * 0.1f + 0.05f, (i % 3) * 0.1f + 0.05f };
+			heap.add(i, distr);
+			mapped.add(i, distr);
+		}
+		for (int i = 0; i < 50; i++) {
+			assertTrue(Arrays.equals(heap.retrieve(i), mapped.retrieve(i)));
+		}
+		mapped.delete(7);
+
+		// 重新打开映射文件，向量无需反序列化
+		MappedStore reopened = new MappedStore(dir);
+		assertTrue(reopened.live() == 49);
+		assertTrue(!reopened.contains(7));
+		assertTrue(Arrays.equals(heap.get(8).toArray(), reopened.get(8)));
+
+		// 压缩一步：最后一个槽位移进删除的槽位
+		reopened.move(reopened.slot(49), 7);
+		assertTrue(reopened.truncate(49, 0.75) > 0);
+		reopened = new MappedStore(dir);
+		assertTrue(reopened.size() == 49 && reopened.live() == 49);
+		assertTrue(reopened.slot(49) == 7);
+		assertTrue(Arrays.equals(heap.get(49).toArray(), reopened.get(49)));
+
+		// 与堆上存储一样追加，删除的槽位只由压缩收回
+		reopened.remove(3);
+		assertTrue(reopened.garbage() > 0);
+		assertTrue(reopened.put(60, new float[] { 0.1f, 0.2f, 0.3f }) == 49);
+		assertTrue(reopened.deleted(3));
+
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testSparseStorage() {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 20);
+		context.put("storage", "sparse");
+		SimTable sparse = new SimTable(context);
+		context.put("storage", "auto");
+		SimTable auto = new SimTable(context);
+
+		SimTable dense = new SimTable();
+		Random random = new Random(5);
+		for (int i = 0; i < 200; i++) {
+			float[] distr = new float[64];
+			for (int j = 0; j < 4; j++) {
+				distr[random.nextInt(64)] = random.nextFloat();
+			}
+			dense.add(i, distr);
+			sparse.add(i, distr);
+			auto.add(i, distr);
+		}
+		assertTrue(auto.storage().equals("heap"));
+		SimTable compacted = auto.clone();
+		assertTrue(compacted.storage().equals("sparse"));
+
+		for (int i = 0; i < 200; i++) {
+			String[] expected = dense.retrieve(i);
+			for (SimTable table : new SimTable[] { sparse, compacted }) {
+				String[] actual = table.retrieve(i);
+				assertTrue(expected.length == actual.length);
+				for (int k = 1; k < expected.length; k += 2) {// 求和顺序不同，分数只差最后几位
+					assertTrue(Math.abs(Float.parseFloat(expected[k])
+							- Float.parseFloat(actual[k])) < 1e-5);
+				}
+			}
+		}
+		assertTrue(Arrays.equals(dense.get(17).toArray(), sparse.get(17)
+				.toArray()));
+	}
+
+	@Test
+	public void testQuantizedStorage() {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 20);
+		context.put("storage", "int8");
+		SimTable quantized = new SimTable(context);
+
+		SimTable dense = new SimTable();
+		Random random = new Random(7);
+		for (int i = 0; i < 300; i++) {
+			float[] distr = new float[32];
+			for (int j = 0; j < distr.length; j++) {
+				distr[j] = random.nextFloat();
+			}
+			dense.add(i, distr);
+			quantized.add(i, distr);
+		}
+		assertTrue(quantized.storage().equals("int8"));
+
+		int found = 0;
+		int total = 0;
+		for (int i = 0; i < 300; i++) {
+			Set<Integer> expected = new HashSet<Integer>();
+			for (int docid : dense.recommend(i)) {
+				expected.add(docid);
+			}
+			for (int docid : quantized.recommend(i)) {
+				if (expected.contains(docid)) {
+					found++;
+				}
+			}
+			total += expected.size();
+		}
+		assertTrue(found >= 0.95 * total);
+
+		// 重排后的分数是精确值
+		String[] result = quantized.retrieve(42);
+		for (int k = 0; k < result.length; k += 2) {
+			int docid = Integer.parseInt(result[k]);
+			if (dense.recommend(42).length > 0) {
+				float exact = dense.similarity(docid, 42);
+				if (exact >= 0) {
+					assertTrue(Float.parseFloat(result[k + 1]) == exact);
+				}
+			}
+		}
+		assertTrue(Arrays.equals(quantized.nearby(dense.get(9).toArray()),
+				dense.nearby(dense.get(9).toArray())));
+	}
+
+	@Test
+	public void testWriteAheadLog() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"simbase-wal-" + System.nanoTime());
+		WriteAheadLog wal = new WriteAheadLog(dir, WriteAheadLog.ALWAYS, 4096);
+		SimTable expected = new SimTable();
+		String[] schema = new String[] { "a", "b", "c", "d" };
+		wal.revise(schema);
+		expected.revise(schema);
+		Random random = new Random(3);
+		for (int i = 0; i < 400; i++) {
+			int docid = random.nextInt(300);
+			float[] distr = new float[] { random.nextFloat(),
+					random.nextFloat(), random.nextFloat(), random.nextFloat() };
+			if (i % 7 == 0) {
+				wal.delete(docid);
+				expected.delete(docid);
+			} else if (i % 5 == 0) {
+				Object[] pairs = new Object[] { "b", distr[1], "d", distr[3] };
+				wal.append(docid, pairs);
+				expected.append(docid, pairs);
+			} else {
+				wal.add(docid, distr);
+				expected.add(docid, distr);
+			}
+		}
+		wal.close();
+
+		// 最后一段末尾是崩溃时写了一半的记录
+		File[] segments = dir.listFiles();
+		Arrays.sort(segments);
+		assertTrue(segments.length > 1);
+		FileOutputStream torn = new FileOutputStream(
+				segments[segments.length - 1], true);
+		torn.write(new byte[] { 0, 0, 0, 40, 1, 2 });
+		torn.close();
+
+		SimTable replayed = new SimTable();
+		WriteAheadLog reopened = new WriteAheadLog(dir, WriteAheadLog.NEVER,
+				4096);
+		assertTrue(reopened.replay(replayed, 64) == 401);
+		for (int i = 0; i < 300; i++) {
+			assertTrue(Arrays.equals(expected.retrieve(i),
+					replayed.retrieve(i)));
+		}
+		reopened.truncate(reopened.rotate());
+		assertTrue(reopened.replay(new SimTable(), 64) == 0);
+		reopened.close();
+
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testWriteAheadLogRecovery() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"simbase-wal-" + System.nanoTime());
+		WriteAheadLog wal = new WriteAheadLog(dir, WriteAheadLog.ALWAYS, 1024);
+		for (int docid = 0; docid < 100; docid++) {
+			wal.add(docid, new float[] { docid, 1, 2, 3 });
+		}
+		wal.close();
+		File[] segments = dir.listFiles();
+		Arrays.sort(segments);
+		assertTrue(segments.length > 2);
+		FileOutputStream torn = new FileOutputStream(
+				segments[segments.length - 1], true);
+		torn.write(new byte[] { 0, 0, 0, 40, 1, 2 });
+		torn.close();
+
+		// 截掉写了一半的记录后，再次启动时它所在的段已不是最新的一段
+		for (int run = 0; run < 2; run++) {
+			WriteAheadLog reopened = new WriteAheadLog(dir,
+					WriteAheadLog.NEVER, 1024);
+			SimTable replayed = new SimTable();
+			assertTrue(reopened.replay(replayed, 16) == 100);
+			assertTrue(replayed.contains(99));
+			reopened.close();
+		}
+
+		// 较早的段中间损坏，不能跳过它接着重放后面的段
+		RandomAccessFile corrupt = new RandomAccessFile(segments[0], "rw");
+		corrupt.seek(20);
+		int value = corrupt.read();
+		corrupt.seek(20);
+		corrupt.write(value ^ 0xff);
+		corrupt.close();
+		WriteAheadLog broken = new WriteAheadLog(dir, WriteAheadLog.NEVER,
+				1024);
+		try {
+			broken.replay(new SimTable(), 16);
+			assertTrue(false);
+		} catch (SimBaseException e) {
+			assertTrue(e.getMessage().contains("later segments"));
+		}
+		broken.close();
+
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testCompaction() {
+		SimTable compacted = new SimTable();
+		SimTable reference = new SimTable();
+		Random random = new Random(11);
+		for (int i = 0; i < 300; i++) {
+			float[] distr = new float[] { random.nextFloat(),
+					random.nextFloat(), random.nextFloat(), random.nextFloat() };
+			compacted.add(i, distr);
+			reference.add(i, distr);
+		}
+		for (int i = 0; i < 300; i += 2) {
+			compacted.delete(i);
+			reference.delete(i);
+		}
+		assertTrue(compacted.garbageRatio() == 0.5f);
+		long garbage = compacted.garbage();
+
+		// 每一步之间继续写入，压缩不改变扫描顺序
+		int docid = 1000;
+		while (compacted.compact(16)) {
+			float[] distr = new float[] { random.nextFloat(),
+					random.nextFloat(), random.nextFloat(), random.nextFloat() };
+			compacted.add(docid, distr);
+			reference.add(docid, distr);
+			docid++;
+		}
+		assertTrue(compacted.garbage() == 0);
+		assertTrue(compacted.reclaimed() == garbage);
+
+		for (int i = 0; i < docid; i++) {
+			assertTrue(Arrays.equals(reference.retrieve(i),
+					compacted.retrieve(i)));
+		}
+		float[] query = new float[] { 0.1f, 0.2f, 0.3f, 0.4f };
+		assertTrue(Arrays.equals(reference.nearby(query),
+				compacted.nearby(query)));
+	}
+
+	@Test
+	public void testPruning() {
 		SimTable table = new SimTable();
+		Random random = new Random(19);
+		float[][] distrs = new float[500][];
+		for (int i = 0; i < distrs.length; i++) {
+			distrs[i] = new float[] { random.nextFloat(), random.nextFloat(),
+					random.nextFloat(), random.nextFloat() };
+			table.add(i, distrs[i]);
+		}
+		long[] pruning = table.pruning();
+		assertTrue(pruning[0] == 500 * 501 / 2);// 每次add与已有的文档及自身配对
+		assertTrue(pruning[1] > pruning[0]);
+
+		// 跳过的打分不影响结果：与逐个计算全部余弦的前20个相同
+		for (int i = 0; i < distrs.length; i += 7) {
+			final float[] cosines = new float[distrs.length];
+			Integer[] order = new Integer[distrs.length - 1];
+			for (int j = 0, k = 0; j < distrs.length; j++) {
+				float dot = 0, a = 0, b = 0;
+				for (int d = 0; d < 4; d++) {
+					dot += distrs[i][d] * distrs[j][d];
+					a += distrs[i][d] * distrs[i][d];
+					b += distrs[j][d] * distrs[j][d];
+				}
+				cosines[j] = dot * dot / a / b;
+				if (j != i) {
+					order[k++] = j;
+				}
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer x, Integer y) {
+					return Float.compare(cosines[y], cosines[x]);
+				}
+			});
+			int[] recommended = table.recommend(i);
+			assertTrue(recommended.length == 20);
+			for (int k = 0; k < 20; k++) {
+				assertTrue(Math.abs(cosines[recommended[k]] - cosines[order[k]]) < 1e-5);
+			}
+		}
+	}
+
+	@Test
+	public void testDotProductFloor() {
+		SimTable serial = new SimTable();
+		SimTable parallel = parallelTable();// 并行扫描不放弃点积
+		Random random = new Random(23);
+		for (int i = 0; i < 600; i++) {
+			float[] distr = new float[i < 300 ? 48 : 64];// 中途加宽，分界点随之移动
+			for (int k = 0; k < 3; k++) {// 少数几个主题
+				distr[random.nextInt(distr.length)] += random.nextFloat();
+			}
+			for (int d = 0; d < distr.length; d++) {
+				distr[d] += random.nextFloat() * 0.05f;
+			}
+			serial.add(i, distr);
+			parallel.add(i, distr);
+			if (i % 50 == 49) {
+				serial.delete(i - 10);
+				parallel.delete(i - 10);
+			}
+		}
+		assertTrue(serial.pruning()[2] > 0);
+		assertTrue(parallel.pruning()[2] == 0);
+		for (int i = 0; i < 600; i++) {// 分数逐位相同
+			assertTrue(Arrays.equals(serial.retrieve(i), parallel.retrieve(i)));
+		}
+	}
+
+	@Test
+	public void testReverseIndex() {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 20);
+		SimTable table = new SimTable(context);
+		Random random = new Random(17);
+		for (int n = 0; n < 3000; n++) {// 反复重打分，列表里的文档不断进出
+			table.add(random.nextInt(300), new float[] { random.nextFloat(),
+					random.nextFloat(), random.nextFloat(), random.nextFloat() });
+			if (n % 10 == 0) {
+				table.delete(random.nextInt(300));
+			}
+		}
+		assertTrue(table.reverseSize()[0] == listed(table, 300));
+		assertTrue(reload(context, dump(table)).reverseSize()[0] == listed(
+				table, 300));
+		for (int i = 0; i < 300; i++) {
+			table.delete(i);
+		}
+		assertTrue(table.reverseSize()[0] == 0);
+	}
+
+	private long listed(SimTable table, int docids) {
+		long count = 0;
+		for (int i = 0; i < docids; i++) {
+			count += table.recommend(i).length;
+		}
+		return count;
+	}
+
+	@Test
+	public void testSnapshot() {
+		for (String storage : new String[] { "heap", "sparse", "int8" }) {
+			Map<String, Object> context = new HashMap<String, Object>();
+			context.put("loadfactor", 0.75);
+			context.put("maxlimits", 20);
+			context.put("storage", storage);
+			SimTable table = new SimTable(context);
+			Random random = new Random(13);
+			for (int i = 0; i < 600; i++) {
+				table.add(i, new float[] { random.nextFloat(), 0f,
+						random.nextFloat(), random.nextFloat() });
+			}
+			for (int i = 0; i < 600; i += 3) {
+				table.delete(i);
+			}
+			SimTable expected = reload(context, dump(table));
+
+			// 快照打开之后的写入都不应出现在快照里
+			Snapshot snapshot = table.snapshot();
+			for (int i = 0; i < 600; i += 2) {
+				table.delete(i);
+			}
+			while (table.compact(64)) {
+				table.add(1000 + random.nextInt(100), new float[] {
+						random.nextFloat(), random.nextFloat() });
+			}
+			for (int i = 1; i < 600; i += 4) {
+				table.add(i, new float[] { random.nextFloat(),
+						random.nextFloat(), 0f, random.nextFloat(), 1f });
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			Output output = new Output(bytes);
+			snapshot.write(new Kryo(), output);
+			output.close();
+			snapshot.release();
+			SimTable actual = reload(context, bytes.toByteArray());
+
+			for (int i = 0; i < 1100; i++) {
+				assertTrue(Arrays.equals(expected.retrieve(i),
+						actual.retrieve(i)));
+				TFloatList vector = expected.get(i);
+				assertTrue(vector == null ? actual.get(i) == null : Arrays
+						.equals(vector.toArray(), actual.get(i).toArray()));
+			}
+		}
+	}
+
+	@Test
+	public void testMappedSnapshot() {
+		File base = new File(System.getProperty("java.io.tmpdir"),
+				"simbase-mapped-" + System.nanoTime());
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 20);
+		SimTable table = new SimTable(context, new MappedStore(new File(base,
+				"table")));
+		Random random = new Random(13);
+		for (int i = 0; i < 600; i++) {
+			table.add(i, new float[] { random.nextFloat(), 0f,
+					random.nextFloat(), random.nextFloat() });
+		}
+		for (int i = 0; i < 600; i += 3) {
+			table.delete(i);
+		}
+		SimTable expected = reload(new SimTable(context, new MappedStore(
+				new File(base, "expected"))), dump(table));
+
+		// 映射文件在快照打开之后被改写，快照里依然是打开时的向量
+		Snapshot snapshot = table.snapshot();
+		for (int i = 0; i < 600; i += 2) {
+			table.delete(i);
+		}
+		while (table.compact(64)) {
+			table.add(1000 + random.nextInt(100), new float[] {
+					random.nextFloat(), random.nextFloat() });
+		}
+		for (int i = 1; i < 600; i += 4) {
+			table.add(i, new float[] { random.nextFloat(), random.nextFloat(),
+					0f, random.nextFloat(), 1f });
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Output output = new Output(bytes);
+		snapshot.write(new Kryo(), output);
+		output.close();
+		snapshot.release();
+		SimTable actual = reload(new SimTable(context, new MappedStore(
+				new File(base, "actual"))), bytes.toByteArray());
+
+		for (int i = 0; i < 1100; i++) {
+			assertTrue(Arrays.equals(expected.retrieve(i), actual.retrieve(i)));
+			TFloatList vector = expected.get(i);
+			assertTrue(vector == null ? actual.get(i) == null : Arrays.equals(
+					vector.toArray(), actual.get(i).toArray()));
+		}
+		assertTrue(actual.get(1).size() == 4);
+
+		for (File dir : base.listFiles()) {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+		base.delete();
+	}
+
+	@Test
+	public void testChunkedSnapshot() throws IOException {
+		SimTable table = new SimTable();
+		Random random = new Random(17);
+		for (int i = 0; i < 500; i++) {
+			table.add(i, new float[] { random.nextFloat(), random.nextFloat(),
+					random.nextFloat() });
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ChunkedOutput chunks = new ChunkedOutput(bytes, 512);
+		Output output = new Output(chunks);
+		table.write(new Kryo(), output);
+		output.flush();
+		chunks.finish();
+		byte[] dump = bytes.toByteArray();
+
+		SimTable loaded = new SimTable();
+		Input input = new Input(new ChunkedInput(new ByteArrayInputStream(
+				dump), 4));
+		loaded.read(new Kryo(), input);
+		for (int i = 0; i < 500; i++) {
+			assertTrue(Arrays.equals(table.retrieve(i), loaded.retrieve(i)));
+		}
+
+		byte[] corrupt = dump.clone();
+		corrupt[corrupt.length / 2] ^= 1;
+		assertTrue(failure(corrupt).contains("corrupt"));
+		byte[] truncated = Arrays.copyOf(dump, dump.length - 20);
+		assertTrue(failure(truncated).contains("truncated"));
+	}
+
+	private String failure(byte[] dump) {
+		try {
+			Input input = new Input(new ChunkedInput(new ByteArrayInputStream(
+					dump), 4));
+			new SimTable().read(new Kryo(), input);
+		} catch (KryoException e) {
+			return e.getMessage();
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+		return "";
+	}
+
+	private byte[] dump(SimTable table) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Output output = new Output(bytes);
+		table.write(new Kryo(), output);
+		output.close();
+		return bytes.toByteArray();
+	}
+
+	private SimTable reload(Map<String, Object> context, byte[] bytes) {
+		return reload(new SimTable(context), bytes);
+	}
+
+	private SimTable reload(SimTable table, byte[] bytes) {
+		Input input = new Input(new ByteArrayInputStream(bytes));
+		table.read(new Kryo(), input);
+		input.close();
+		return table;
+	}
+
+	private void check3d(SimTable table) {
 
 		table.add(2, new float[] { 0.9f, 0.1f, 0f });
 		table.add(3, new float[] { 0.9f, 0f, 0.1f });
@@ -93,9 +860,7 @@ public class SimTableTests {
 
 	}
 
-	@Test
-	public void test4d() {
-		SimTable table = new SimTable();
+	private void check4d(SimTable table) {
 
 		table.add(0, new float[] { 0.18257418583505536f, 0.3651483716701107f,
 				0.5477225575051661f, 0.7302967433402214f });
@@ -162,4 +927,133 @@ public class SimTableTests {
 		}
 	}
 
+	@Test
+	public void testNearbyRecall() {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 10);
+		SimTable exact = new SimTable(context);
+		context = new HashMap<String, Object>(context);
+		context.put("hnsw", true);
+		SimTable approx = new SimTable(context);
+
+		Random random = new Random(42);
+		for (int docid = 0; docid < 2000; docid++) {
+			float[] distr = new float[32];
+			for (int i = 0; i < distr.length; i++) {
+				distr[i] = random.nextFloat();
+			}
+			exact.add(docid, distr);
+			approx.add(docid, distr);
+		}
+		for (int docid = 0; docid < 2000; docid += 10) {
+			exact.delete(docid);
+			approx.delete(docid);
+		}
+
+		int hits = 0;
+		int total = 0;
+		for (int q = 0; q < 50; q++) {
+			float[] query = new float[32];
+			for (int i = 0; i < query.length; i++) {
+				query[i] = random.nextFloat();
+			}
+			String[] truth = exact.nearby(query);
+			String[] found = approx.nearby(query);
+			validator(found);
+			Set<String> expected = new HashSet<String>();
+			for (int i = 0; i < truth.length; i += 2) {
+				expected.add(truth[i]);
+			}
+			for (int i = 0; i < found.length; i += 2) {
+				assertTrue(Integer.parseInt(found[i]) % 10 != 0);
+				if (expected.contains(found[i])) {
+					hits++;
+				}
+			}
+			total += expected.size();
+		}
+		assertTrue(hits >= 0.9 * total);
+	}
+
+	@Test
+	public void testClusterRecall() {
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put("loadfactor", 0.75);
+		context.put("maxlimits", 10);
+		SimTable exact = new SimTable(context);
+		context = new HashMap<String, Object>(context);
+		context.put("ivf", true);
+		context.put("ivfClusters", 16);
+		context.put("ivfNprobe", 8);
+		context.put("ivfSeeding", true);
+		SimTable approx = new SimTable(context);
+
+		Random random = new Random(42);
+		for (int docid = 0; docid < 2000; docid++) {
+			float[] distr = new float[32];
+			for (int i = 0; i < distr.length; i++) {
+				distr[i] = random.nextFloat();
+			}
+			exact.add(docid, distr);
+			approx.add(docid, distr);
+			if (docid == 999) {// 前一半全量扫描，后一半只查最近的簇
+				assertTrue(approx.clusters() == 0);
+				assertTrue(approx.retrainDue());
+				approx.retrain();
+				assertTrue(approx.clusters() == 16);
+				assertTrue(!approx.retrainDue());
+			}
+		}
+		for (int docid = 0; docid < 2000; docid += 10) {
+			exact.delete(docid);
+			approx.delete(docid);
+		}
+		assertTrue(approx.recall() >= 0.75);// 均匀随机的向量，只查一半的簇
+		assertTrue(approx.recall(50) >= 0.75);
+
+		int hits = 0;
+		int total = 0;
+		for (int q = 0; q < 50; q++) {
+			float[] query = new float[32];
+			for (int i = 0; i < query.length; i++) {
+				query[i] = random.nextFloat();
+			}
+			String[] truth = exact.nearby(query);
+			String[] found = approx.nearby(query);
+			validator(found);
+			Set<String> expected = new HashSet<String>();
+			for (int i = 0; i < truth.length; i += 2) {
+				expected.add(truth[i]);
+			}
+			for (int i = 0; i < found.length; i += 2) {
+				assertTrue(Integer.parseInt(found[i]) % 10 != 0);
+				if (expected.contains(found[i])) {
+					hits++;
+				}
+			}
+			total += expected.size();
+		}
+		assertTrue(hits >= 0.75 * total);
+
+		hits = 0;
+		total = 0;
+		for (int docid = 1001; docid < 2000; docid += 7) {// 只打分最近的簇，列表仍与全量扫描大体一致
+			if (docid % 10 == 0) {
+				continue;
+			}
+			Set<Integer> expected = new HashSet<Integer>();
+			for (int tgt : exact.view(docid).docids()) {
+				expected.add(tgt);
+			}
+			for (int tgt : approx.view(docid).docids()) {
+				if (expected.contains(tgt)) {
+					hits++;
+				}
+			}
+			total += expected.size();
+		}
+		assertTrue(hits >= 0.8 * total);
+	}
+
 }